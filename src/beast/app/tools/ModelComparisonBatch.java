@@ -0,0 +1,177 @@
+package beast.app.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * The batch mode of ModelComparisonCalculator: analyses many logs in one go, several at a time, and writes the log Bayes factors of all
+ * of them into one tab-separated table.
+ *
+ * Usage: ModelComparisonCalculator -batch TABLE [-threads N] (file | directory | glob pattern) ...
+ *
+ * A directory stands for the .log and .mcb files in it (also with .gz after them), and a glob pattern (such as "runs/replicate?.log", or "runs/**.log" to include
+ * subdirectories; quoted, so that the shell leaves it alone) for the files matching it. The rows of the table are in the order the
+ * logs were given, with the files of a directory or pattern sorted by name, whichever order the analyses finish in.
+ * At most N logs are analysed at the same time (default: the number of processors).
+ *
+ * The table has a row for each log Bayes factor estimated from each log:
+ *   File, Analysis (oneway, bothways, stepwise or multimodel; none if the log fits none of these, failed if it could not be read),
+ *   Direction (0to1 or 1to0, the direction of beta along the pass), Model and AgainstModel (the log Bayes factor is of Model against AgainstModel),
+ *   LogBayesFactor, Samples (the rows used for the estimate) and Rows (all rows of the log which were not left out while equilibrating).
+ */
+public class ModelComparisonBatch {
+
+    static final String HEADER = "File\tAnalysis\tDirection\tModel\tAgainstModel\tLogBayesFactor\tSamples\tRows";
+
+    static void run(File table, int nrOfThreads, List<String> inputs) throws IOException {
+        List<File> inputFiles = findInputFiles(inputs);
+        if (inputFiles.isEmpty()){
+            System.out.println("No log files found in: " + String.join(" ", inputs));
+            return;
+        }
+        System.out.println("Analysing " + inputFiles.size() + " log files...");
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nrOfThreads));
+        try (PrintStream out = new PrintStream(table)){
+            List<Future<List<String>>> analyses = new ArrayList<>();
+            for (File inputFile : inputFiles){
+                analyses.add(pool.submit(() -> analyse(inputFile)));
+            }
+            out.println(HEADER);
+            for (int i = 0; i < inputFiles.size(); i++){
+                List<String> rows;
+                try {
+                    rows = analyses.get(i).get();
+                }
+                catch (ExecutionException e){
+                    System.out.println("Could not analyse " + inputFiles.get(i) + ": " + e.getCause());
+                    rows = Arrays.asList(inputFiles.get(i).getPath() + "\tfailed\t\t\t\tNaN\t0\t0");
+                }
+                catch (InterruptedException e){
+                    throw new IOException("Interrupted while analysing the log files", e);
+                }
+                for (String row : rows){
+                    out.println(row);
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        System.out.println("Table of log Bayes factors written to: " + table);
+    }
+
+    /**
+     * The files the inputs stand for, each once, in order
+     */
+    static List<File> findInputFiles(List<String> inputs) throws IOException {
+        Set<File> inputFiles = new LinkedHashSet<>();
+        for (String input : inputs){
+            if (isGlobPattern(input)){
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+                try (Stream<Path> paths = Files.walk(getGlobBase(input))){
+                    inputFiles.addAll(paths.filter(path -> Files.isRegularFile(path) && matcher.matches(path))
+                            .sorted().map(Path::toFile).collect(Collectors.toList()));
+                }
+            }
+            else if (new File(input).isDirectory()){
+                File[] files = new File(input).listFiles(file -> file.isFile() && isLogFileName(file.getName().replaceFirst("\\.gz$", "")));
+                if (files != null){
+                    Arrays.sort(files);
+                    inputFiles.addAll(Arrays.asList(files));
+                }
+            }
+            else {
+                inputFiles.add(new File(input));
+            }
+        }
+        return new ArrayList<>(inputFiles);
+    }
+
+    private static boolean isLogFileName(String fileName){
+        return fileName.endsWith(".log") || fileName.endsWith(".mcb");
+    }
+
+    private static boolean isGlobPattern(String input){
+        return input.contains("*") || input.contains("?") || input.contains("[") || input.contains("{");
+    }
+
+    /**
+     * The directory to search for files matching the pattern: the part of it before the first name with a wildcard
+     */
+    private static Path getGlobBase(String pattern){
+        Path base = Paths.get(pattern).isAbsolute() ? Paths.get(pattern).getRoot() : Paths.get("");
+        for (Path name : Paths.get(pattern)){
+            if (isGlobPattern(name.toString())){
+                break;
+            }
+            base = base.resolve(name);
+        }
+        return base;
+    }
+
+    /**
+     * The rows of the table for one log
+     */
+    static List<String> analyse(File inputFile) throws IOException {
+        ModelComparisonLogAnalysis analysis = ModelComparisonCalculator.analyseFile(inputFile, 1);
+        String analysisType = ModelComparisonCalculator.getAnalysisType(analysis);
+        String rowStart = inputFile.getPath() + "\t" + (analysisType != null ? analysisType : "none") + "\t";
+        List<String> rows = new ArrayList<>();
+        if (ModelComparisonCalculator.ONEWAY.equals(analysisType)){
+            rows.add(rowStart + getDirection(analysis, 0) + "\t1\t0\t" + analysis.getOneWaySums().getEstimate()
+                    + "\t" + analysis.getOneWaySums().getCount() + "\t" + analysis.getNrOfRows());
+        }
+        else if (ModelComparisonCalculator.BOTHWAYS.equals(analysisType)){
+            for (int pass = 0; pass < 2; pass++){
+                rows.add(rowStart + getDirection(analysis, pass) + "\t1\t0\t" + analysis.getBothWaysSums(pass).getEstimate()
+                        + "\t" + analysis.getBothWaysSums(pass).getCount() + "\t" + analysis.getNrOfRows());
+            }
+        }
+        else if (analysisType != null){
+            //Stepwise, or more than two models: the sections of the path of each pair of neighbouring models
+            ModelComparisonLogAnalysis.RunSums runs = analysis.getRunSums();
+            for (int pass = 0; pass < (runs.hasTurned() ? 2 : 1); pass++){
+                double[] pairEstimates = runs.getSectionIntegrals(pass);
+                for (int first = 0; first < pairEstimates.length; first++){
+                    double logBayesFactor = 0.0;
+                    for (int second = first + 1; second <= pairEstimates.length; second++){
+                        logBayesFactor = logBayesFactor + pairEstimates[second - 1];
+                        rows.add(rowStart + getDirection(analysis, pass) + "\t" + second + "\t" + first + "\t" + logBayesFactor
+                                + "\t" + runs.getPassRows(pass) + "\t" + analysis.getNrOfRows());
+                    }
+                }
+            }
+        }
+        else {
+            rows.add(rowStart + "\t\t\tNaN\t0\t" + analysis.getNrOfRows());
+        }
+        return rows;
+    }
+
+    /**
+     * The first pass goes away from the value of beta the log starts at, the second back to it
+     */
+    private static String getDirection(ModelComparisonLogAnalysis analysis, int pass){
+        boolean startsAt0 = analysis.getStartingBetaValue() < 0.5;
+        return (pass == 0) == startsAt0 ? "0to1" : "1to0";
+    }
+}
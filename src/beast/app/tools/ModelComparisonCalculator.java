@@ -5,11 +5,20 @@ import beast.core.Citation;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
  * This class allows for calculating the estimate for the Bayes factor between two models,
  * from a log file which contains values for U and beta (which were captured using ModelComparisonLogger)
+ * The log file can be a text log, or a binary log written with the binaryFileName of ModelComparisonLogger.
+ * It is read in one pass without keeping the values (see ModelComparisonLogReader and ModelComparisonLogAnalysis), so it can be of any size.
+ * A large text log is parsed by several threads (default: the number of processors), with the option -threads N before the file name.
+ * With -batch TABLE, many logs are analysed in one go into a table, see ModelComparisonBatch.
+ * With -bootstrap N, the log Bayes factors of a oneway or bothways analysis are printed with their standard errors, by batch means
+ * and by a block bootstrap with N replicates worked out by the threads (see ModelComparisonStandardErrors). The values of beta and U
+ * are then kept while the log is read.
  * This supports oneway and bothways analyses automatically.
  */
 @Citation("Lartillot and Philippe (2006) 'Computing Bayes Factors Using Thermodynamic Integration'")
@@ -73,12 +82,38 @@ public class ModelComparisonCalculator {
 
             // Command line version
 
-            if (args.length == 0){
+            int nrOfThreads = Runtime.getRuntime().availableProcessors();
+            int nrOfReplicates = 0;
+            String fileName = null;
+            File batchTable = null;
+            List<String> batchInputs = new ArrayList<>();
+            for (int i = 0; i < args.length; i++){
+                if (args[i].equals("-threads") && i + 1 < args.length){
+                    nrOfThreads = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-bootstrap") && i + 1 < args.length){
+                    nrOfReplicates = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-batch") && i + 1 < args.length){
+                    batchTable = new File(args[++i]);
+                }
+                else {
+                    batchInputs.add(args[i]);
+                    if (fileName == null){
+                        fileName = args[i];
+                    }
+                }
+            }
+
+            if (batchTable != null){
+                ModelComparisonBatch.run(batchTable, nrOfThreads, batchInputs);
+            }
+            else if (fileName == null){
                 System.out.println("Please enter just one filename for a log file which contains sampled values for beta and U.");
                 //Would be lovely to create a GUI for this also.... one day perhaps
             }
             else{
-                File inputFile = new File(args[0]);
+                File inputFile = new File(fileName);
 
                 boolean accessProblem = false;
 
@@ -93,16 +128,18 @@ public class ModelComparisonCalculator {
                 }
                 else{
                     System.out.println("Checking and reading file...");
-                    ArrayList<Double>[] valuesFromFiles = new ArrayList[2];
-
                     try {
 
-                        valuesFromFiles = extractValuesFromFile(inputFile);
+                        ModelComparisonLogAnalysis analysis = analyseFile(inputFile, nrOfThreads, nrOfReplicates > 0);
 
-                        //Have successfully read a value for beta and U for each line in each input file
+                        //Have successfully read a value for beta and U for each line in the input file
                         //Now perform the analysis of the values
 
-                        oneFileAnalysis(valuesFromFiles);
+                        oneFileAnalysis(analysis);
+
+                        if (nrOfReplicates > 0){
+                            printStandardErrors(analysis, nrOfReplicates, nrOfThreads);
+                        }
 
                     }
                     catch(Exception e){
@@ -115,71 +152,65 @@ public class ModelComparisonCalculator {
             }
     }
 
-    private static ArrayList<Double>[] extractValuesFromFile(File inputFile) throws Exception{
+    /**
+     * Reads the log (text or binary) in one pass, working out everything needed for its analysis
+     * @param nrOfThreads to parse a large text log with
+     */
+    static ModelComparisonLogAnalysis analyseFile(File inputFile, int nrOfThreads) throws IOException {
+        return analyseFile(inputFile, nrOfThreads, false);
+    }
 
-        ArrayList<Double>[] retValue = new ArrayList[2];
-        ArrayList<Double> betaValues = new ArrayList<>();
-        ArrayList<Double> UValues = new ArrayList<>();
+    /**
+     * @param keepValues if true, the values of the rows are kept for the standard errors
+     */
+    static ModelComparisonLogAnalysis analyseFile(File inputFile, int nrOfThreads, boolean keepValues) throws IOException {
+        ModelComparisonLogReader reader = new ModelComparisonLogReader(inputFile);
+        reader.setNrOfThreads(nrOfThreads);
+        ModelComparisonLogAnalysis analysis = new ModelComparisonLogAnalysis(reader.getNrOfPairs());
+        if (keepValues){
+            analysis.keepValues();
+        }
+        reader.read(analysis);
+        analysis.finish();
+        return analysis;
+    }
 
-        int betaColumnIndex = -1, UColumnIndex = -1;
-        Reader read = new FileReader(inputFile);
-        BufferedReader buff = new BufferedReader(read);
+    static final String MULTI_MODEL = "multimodel", STEPWISE = "stepwise", ONEWAY = "oneway", BOTHWAYS = "bothways";
 
-        if(buff.ready()){
-            String line;
-            while ((line = buff.readLine()) != null) {
-                if (line.substring(0,1).equals("#")){
+    private static void oneFileAnalysis(ModelComparisonLogAnalysis analysis){
+        String analysisType = getAnalysisType(analysis);
+        if(MULTI_MODEL.equals(analysisType)){
+            //The log has the values of U for each pair of neighbouring models along a path through more than two models
+            multiModelAnalysis(analysis);
+        }
+        else if(STEPWISE.equals(analysisType)){
+            //Beta was held fixed at several values in turn
+            stepwiseAnalysis(analysis);
+        }
+        else if(ONEWAY.equals(analysisType)){
+            //We have a oneway analysis to perform
+           oneWayAnalysis(analysis);
 
-                    //This is a comment line
-                }
-                else{
-                    if (betaColumnIndex == -1 || UColumnIndex == -1){
-                        //Can only assume that this line is the header line, so find the columns we are interested in
-
-                        String[] colNames = line.split("\\t");
-                        for (int i = 0; i < colNames.length; i++){
-                            if (colNames[i].toLowerCase().equals("betavalue") || colNames[i].toLowerCase().equals("beta.value")){
-                                betaColumnIndex = i;
-                            }
-                            else if(colNames[i].toLowerCase().equals("uvalue") || colNames[i].toLowerCase().equals("u.value")){
-                                UColumnIndex = i;
-                            }
-                        }
 
 
-                        //User error handling
-                        if (betaColumnIndex == -1){
-                            System.out.println("PROBLEM: Couldn't find the column for beta in the log file: " + inputFile);
-                        }
-                        if (UColumnIndex == -1){
-                            System.out.println("PROBLEM: Couldn't find the column for U in the log file: " + inputFile);
-                        }
-                        if(betaColumnIndex == -1 || UColumnIndex == -1){
-                            throw new NoSuchFieldException();
-                        }
-                    }
-                    else{
-                        //Extract values from this line
-                        String[] lineValues = line.split("\\t");
-                        betaValues.add(Double.parseDouble(lineValues[betaColumnIndex]));
-                        UValues.add(Double.parseDouble(lineValues[UColumnIndex]));
-                    }
-                }
-            }
         }
-        retValue[0] = betaValues;
-        retValue[1] = UValues;
-        return retValue;
-    }
-
+        else if(BOTHWAYS.equals(analysisType)){
+            //We have a bothways analysis to perform
+            //Not 100% certain of how to exactly this will be done
+            bothWaysAnalysis(analysis);
 
+        }
+    }
 
-    private static void oneFileAnalysis(ArrayList<Double>[] valuesFromFile){
+    /**
+     * Which analysis the log needs, or null if none fits it
+     */
+    static String getAnalysisType(ModelComparisonLogAnalysis analysis){
         //NEED TO HANDLE BOTH ONEWAY AND BOTHWAYS ANALYSIS
-        double startingBetaValue = valuesFromFile[0].get(0);
-        double endingBetaValue = valuesFromFile[0].get(valuesFromFile[0].size() - 1);
+        double startingBetaValue = analysis.getStartingBetaValue();
+        double endingBetaValue = analysis.getEndingBetaValue();
         double epsilon = 0.0000001;
-        
+
         boolean oneway0to1 = (Math.abs(startingBetaValue) < epsilon && Math.abs(endingBetaValue - 1.0) < epsilon);
         boolean oneway1to0 = (Math.abs(startingBetaValue - 1.0) < epsilon && Math.abs(endingBetaValue) < epsilon);
 
@@ -187,202 +218,180 @@ public class ModelComparisonCalculator {
         boolean bothways0to0 = (Math.abs(startingBetaValue) < epsilon && Math.abs(endingBetaValue) < epsilon);
         boolean bothways1to1 = (Math.abs(startingBetaValue - 1.0) < epsilon && Math.abs(endingBetaValue - 1.0) < epsilon);
 
-        if(oneway0to1 || oneway1to0){
-            //We have a oneway analysis to perform
-           oneWayAnalysis(valuesFromFile);
-
-
-
+        if(analysis.getNrOfPairs() > 0){
+            return MULTI_MODEL;
         }
-        else if(bothways0to0 || bothways1to1){
-            //We have a bothways analysis to perform
-            //Not 100% certain of how to exactly this will be done
-            bothWaysAnalysis(valuesFromFile);
-
+        else if(analysis.getRunSums().isStepwise()){
+            return STEPWISE;
         }
-    }
-
-    private static void oneWayAnalysis(ArrayList<Double>[] valuesFromFile){
-        ArrayList<Double> usefulUValues = new ArrayList<>();
-        boolean betaIsChanging = true; //Assume true at first, then set to false if find it is not the case
-        for (int row = 0; row < valuesFromFile[0].size(); row++){
-            //For each row in the file
-            if (row == 0) {
-                if (valuesFromFile[0].get(row).equals(valuesFromFile[0].get(row + 1))){
-                    betaIsChanging = false;
-                } else {
-                    //Use the current line as the first U value
-                    usefulUValues.add(valuesFromFile[1].get(row));
-                }
-            }
-            else if( ! betaIsChanging){ //Need to notice when beta starts changing
-                if ((row + 1) != valuesFromFile[0].size()) { //Checking that there is an element one ahead before using it
-                    if ( ! valuesFromFile[0].get(row).equals(valuesFromFile[0].get(row + 1))) {
-                        betaIsChanging = true;
-                        usefulUValues.add(valuesFromFile[1].get(row));
-                    }
-                }
-            }
-            else if (betaIsChanging){
-                usefulUValues.add(valuesFromFile[1].get(row));
-            }
-
+        else if(oneway0to1 || oneway1to0){
+            return ONEWAY;
         }
-
-
-        //Calculate using the usefulUValues
-        double Utotal = 0.0;
-        for (int i = 0; i < usefulUValues.size(); i++ ){
-            if (i == 0 || i == usefulUValues.size() - 1){
-                Utotal = Utotal + (usefulUValues.get(i) * 0.5);
-            }
-            else{
-                Utotal = Utotal + usefulUValues.get(i);
-            }
+        else if(bothways0to0 || bothways1to1){
+            return BOTHWAYS;
         }
+        return null;
+    }
 
-        double result = Utotal / usefulUValues.size();
+    private static void oneWayAnalysis(ModelComparisonLogAnalysis analysis){
+        //Calculate using the values of U from where beta starts changing
+        double result = integratePath(analysis.getOneWaySums());
 
         System.out.println("Log file analysed. The log Bayes factor calculated is: ");
         System.out.println(result);
 
     }
 
-    private static void bothWaysAnalysis(ArrayList<Double>[] valuesFromFile){
-        //ArrayList<Double> usefulUValuesA = new ArrayList<>();
-        //ArrayList<Double> usefulUValuesB = new ArrayList<>();
-
-        ArrayList<Double>[] usefulUValues = new ArrayList[2];
-        usefulUValues[0] = new ArrayList<Double>();
-        usefulUValues[1] = new ArrayList<Double>();
-
-        // usefulUValuesA
-        int stage = 0;
-        int direction = 0; // 0 = not yet set, 1 = increasing, -1 = decreasing
-        boolean betaIsChanging = true; //Assume true at first, then set to false if find it is not the case
-        //Need to also identify when the direction changes, and start doing things differently after that
-        for (int row = 0; row < valuesFromFile[0].size(); row++){
-            //For each row in the file
-            if (row == 0) {
-                if (valuesFromFile[0].get(row).equals(valuesFromFile[0].get(row + 1))){
-                    betaIsChanging = false;
-                } else {
-                    //Use the current line as the first U value
-                    usefulUValues[stage].add(valuesFromFile[1].get(row));
-                    //Set the direction
-                    if (valuesFromFile[0].get(row + 1) > valuesFromFile[0].get(row)){
-                        //Increasing
-                        direction = 1;
-                    }
-                    else{
-                        //Decreasing
-                        direction = -1;
-                    }
-                }
-            }
-            else if( ! betaIsChanging){ //Need to notice when beta starts changing
-                if ((row + 1) != valuesFromFile[0].size()) { //Checking that there is an element one ahead before using it
-                    if ( ! valuesFromFile[0].get(row).equals(valuesFromFile[0].get(row + 1))) {
-                        betaIsChanging = true;
-                        usefulUValues[stage].add(valuesFromFile[1].get(row));
-                        //Set the direction
-                        if (valuesFromFile[0].get(row + 1) > valuesFromFile[0].get(row)){
-                            //Increasing
-                            direction = 1;
-                        }
-                        else{
-                            //Decreasing
-                            direction = -1;
-                        }
-                    }
-                }
-            }
-            else if (betaIsChanging){
-                usefulUValues[stage].add(valuesFromFile[1].get(row));
-
-                //Manage the direction and stage variables
-                if (direction == 0){
-                    //Not yet set, so need to set it
-                    //Set the direction
-                    if (valuesFromFile[0].get(row + 1) > valuesFromFile[0].get(row)){
-                        //Increasing
-                        direction = 1;
-                    }
-                    else{
-                        //Decreasing
-                        direction = -1;
-                    }
-                }
-                else{
-                    //Check if direction has changed
-                    //Set the direction
-                    int temp_direction;
-                    if ((row + 1) != valuesFromFile[0].size()) {
-                        if (valuesFromFile[0].get(row + 1) > valuesFromFile[0].get(row)) {
-                            //Increasing
-                            temp_direction = 1;
-                        } else {
-                            //Decreasing
-                            temp_direction = -1;
-                        }
-                        if (temp_direction != direction) {
-                            //Change the stage variable and the direction vairable
-                            direction = temp_direction;
-                            stage = 1 - stage; //If was 0, now becomes 1; if was 1, now becomes 0.
-                            System.out.println("Changed direction!");
-                        }
-                    }
-                }
-            }
+    private static void stepwiseAnalysis(ModelComparisonLogAnalysis analysis){
+        //The mean of U for each run of rows with the same value of beta, integrated over beta
+        //For bothways, the steps are split where beta turns around (the step at the turn belongs to both passes)
+        ModelComparisonLogAnalysis.RunSums steps = analysis.getRunSums();
 
+        System.out.println("Log file analysed (beta was held fixed at " + steps.getNrOfRuns() + " values in turn). The log Bayes factor calculated is: ");
+        if ( ! steps.hasTurned()){
+            System.out.println(steps.getSectionIntegrals(0)[0]);
         }
+        else {
+            System.out.println(" - First Direction:");
+            System.out.println(steps.getSectionIntegrals(0)[0]);
+            System.out.println(" - Second Direction:");
+            System.out.println(steps.getSectionIntegrals(1)[0]);
+        }
+    }
 
+    private static void multiModelAnalysis(ModelComparisonLogAnalysis analysis){
+        int nrOfPairs = analysis.getNrOfPairs();
 
+        //Mean of the values of U of each pair for each run of rows with the same value of beta (each row is a run of its own unless beta was held fixed),
+        //integrated over the section of the path of each pair
+        ModelComparisonLogAnalysis.RunSums runs = analysis.getRunSums();
 
+        System.out.println("Log file analysed (" + (nrOfPairs + 1) + " models). The log Bayes factors calculated are: ");
+        if ( ! runs.hasTurned()){
+            printPairwiseLogBayesFactors(runs.getSectionIntegrals(0), System.out);
+        }
+        else {
+            System.out.println(" - First Direction:");
+            printPairwiseLogBayesFactors(runs.getSectionIntegrals(0), System.out);
+            System.out.println(" - Second Direction:");
+            printPairwiseLogBayesFactors(runs.getSectionIntegrals(1), System.out);
+        }
+    }
 
+    /**
+     * The standard errors of the log Bayes factor of each pass of a oneway or bothways analysis
+     */
+    private static void printStandardErrors(ModelComparisonLogAnalysis analysis, int nrOfReplicates, int nrOfThreads){
+        String analysisType = getAnalysisType(analysis);
+        List<ModelComparisonLogAnalysis.PathSums> passes = new ArrayList<>();
+        if (ONEWAY.equals(analysisType)){
+            passes.add(analysis.getOneWaySums());
+        }
+        else if (BOTHWAYS.equals(analysisType)){
+            passes.add(analysis.getBothWaysSums(0));
+            passes.add(analysis.getBothWaysSums(1));
+        }
+        else {
+            System.out.println("Standard errors are only worked out for oneway and bothways analyses.");
+            return;
+        }
 
-
-
-        //FOR CHECKING PURPOSES
-        /*
-        System.out.println("PRINTING STAGE 1 (first direction found)");
-        for (int i = 0; i < usefulUValues[0].size(); i++ ){
-            System.out.println(usefulUValues[0].get(i));
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, nrOfThreads));
+        try {
+            System.out.println("Standard errors of the log Bayes factor" + (passes.size() > 1 ? "s" : "") + ": ");
+            for (int pass = 0; pass < passes.size(); pass++){
+                if (passes.size() > 1){
+                    System.out.println(pass == 0 ? " - First Direction:" : " - Second Direction:");
+                }
+                ModelComparisonStandardErrors standardErrors = analysis.getStandardErrors(passes.get(pass));
+                System.out.println("Batch means (batches of " + standardErrors.getBlockLength() + " rows; autocorrelation time of U about "
+                        + String.format("%.1f", standardErrors.getAutocorrelationTime()) + " rows): " + standardErrors.getBatchMeansStandardError());
+                System.out.println("Block bootstrap (" + nrOfReplicates + " replicates, blocks of " + standardErrors.getBootstrapBlockLength() + " rows): "
+                        + standardErrors.getBootstrapStandardError(nrOfReplicates, pool));
+                if ( ! standardErrors.isBlockLengthFound()){
+                    System.out.println("The standard error was still growing with the length of the batches, so the pass is too short for the autocorrelation of U, and the standard errors are too small.");
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
         }
+    }
 
-        System.out.println("PRINTING STAGE 2 (second direction found)");
-        for (int i = 0; i < usefulUValues[1].size(); i++ ){
-           System.out.println(usefulUValues[1].get(i));
+    /**
+     * Estimate of the integral of U over beta for the values of U sampled along one pass of beta between 0 and 1.
+     * If beta was changed by the same amount every sample (the linear betaSchedule), every value of U has the same weight.
+     * Otherwise (such as with the adaptive betaSchedule) each value of U is weighted by how far beta moved around it.
+     */
+    private static double integratePath(ModelComparisonLogAnalysis.PathSums pathSums){
+        if ( ! pathSums.isEvenlySpaced()){
+            System.out.println("The values of beta are not evenly spaced, so each value of U is weighted by the change in beta around it.");
         }
+        return pathSums.getEstimate();
+    }
 
-        int total_count = usefulUValues[0].size() + usefulUValues[1].size();
-        System.out.println("In total had " + total_count + "useful U values found.");
-        */
+    /**
+     * Trapezoid rule estimate of the integral of U over beta (which is the log Bayes factor when the betaValues cover 0 to 1),
+     * for mean values of U at the given, not necessarily evenly spaced, values of beta.
+     */
+    public static double integrateOverBeta(double[] betaValues, double[] UValues){
+        double integral = 0.0;
+        for (int i = 1; i < betaValues.length; i++){
+            integral = integral + (0.5 * (UValues[i - 1] + UValues[i]) * Math.abs(betaValues[i] - betaValues[i - 1]));
+        }
+        return integral;
+    }
 
-        //Calculate using the usefulUValues
-        //Stage 0
-        double UtotalA = 0.0;
-        for (int i = 0; i < usefulUValues[0].size(); i++ ){
-            if (i == 0 || i == usefulUValues[0].size() - 1){
-                UtotalA = UtotalA + (usefulUValues[0].get(i) * 0.5);
+    /**
+     * For a path through more than two models: the log Bayes factor of each pair of neighbouring models (model pair+1 against model pair),
+     * from the values of U of each pair (pairUValues[i][pair]) at the given values of beta along the path.
+     * Each pair is integrated over its own section of the path, where beta goes from pair/(K-1) to (pair+1)/(K-1).
+     */
+    public static double[] integrateSections(double[] betaValues, double[][] pairUValues, int nrOfModels){
+        int nrOfSections = nrOfModels - 1;
+        double[] pairEstimates = new double[nrOfSections];
+        for (int section = 0; section < nrOfSections; section++){
+            ArrayList<Double> sectionBetaValues = new ArrayList<>();
+            ArrayList<Double> sectionUValues = new ArrayList<>();
+            for (int i = 0; i < betaValues.length; i++){
+                double sectionBeta = (betaValues[i] * nrOfSections) - section;
+                if (sectionBeta > -1e-9 && sectionBeta < 1.0 + 1e-9){
+                    sectionBetaValues.add(sectionBeta);
+                    sectionUValues.add(pairUValues[i][section]);
+                }
             }
-            else{
-                UtotalA = UtotalA + usefulUValues[0].get(i);
+            double[] betaArray = new double[sectionBetaValues.size()];
+            double[] UArray = new double[sectionUValues.size()];
+            for (int i = 0; i < betaArray.length; i++){
+                betaArray[i] = sectionBetaValues.get(i);
+                UArray[i] = sectionUValues.get(i);
             }
+            pairEstimates[section] = integrateOverBeta(betaArray, UArray);
         }
-        double resultA = UtotalA / usefulUValues[0].size();
+        return pairEstimates;
+    }
 
-        //Stage 1
-        double UtotalB = 0.0;
-        for (int i = 0; i < usefulUValues[1].size(); i++ ){
-            if (i == 0 || i == usefulUValues[1].size() - 1){
-                UtotalB = UtotalB + (usefulUValues[1].get(i) * 0.5);
-            }
-            else{
-                UtotalB = UtotalB + usefulUValues[1].get(i);
+    /**
+     * Prints the log Bayes factor of every pair of models, from the log Bayes factors of the neighbouring pairs along the path
+     */
+    public static void printPairwiseLogBayesFactors(double[] pairEstimates, PrintStream out){
+        for (int first = 0; first < pairEstimates.length; first++){
+            double logBayesFactor = 0.0;
+            for (int second = first + 1; second <= pairEstimates.length; second++){
+                logBayesFactor = logBayesFactor + pairEstimates[second - 1];
+                out.println(" - Model " + second + " against model " + first + ": " + logBayesFactor);
             }
         }
-        double resultB = UtotalB / usefulUValues[1].size();
+    }
+
+    private static void bothWaysAnalysis(ModelComparisonLogAnalysis analysis){
+        for (int i = 0; i < analysis.getNrOfDirectionChanges(); i++){
+            System.out.println("Changed direction!");
+        }
+
+        //Calculate using the values of U of each direction
+        double resultA = integratePath(analysis.getBothWaysSums(0));
+        double resultB = integratePath(analysis.getBothWaysSums(1));
 
         System.out.println("Log file analysed. The log Bayes factor calculated is: ");
         System.out.println(" - First Direction:");
@@ -391,4 +400,3 @@ public class ModelComparisonCalculator {
         System.out.println(resultB);
     }
 }
-
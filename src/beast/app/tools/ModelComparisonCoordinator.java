@@ -0,0 +1,246 @@
+package beast.app.tools;
+
+import beast.core.util.RunningPathIntegral;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Spreads one thermodynamic integration over several processes (or machines): the path of beta from 0 to 1 is split into segments,
+ * and a 'oneway' ModelComparisonMCMC chain is run over each segment (using betaEnd), each for the chainLength of the original chain.
+ * The integrals of U over the segments are then added up into one log Bayes factor.
+ *
+ * Usage: ModelComparisonCoordinator [-segments N] [-workers P] [-dir DIR] [-seed S] [-command TEMPLATE] chain.xml
+ *
+ * The XML of each segment, and the log files of its chain, are written to DIR (default: the directory the tool is run from),
+ * with every log file name prefixed by "segmentK_". At most P workers run at the same time (default: the number of processors).
+ * Each worker is started with TEMPLATE, in which {xml}, {seed}, {segment}, {dir} and {classpath} are replaced (default: a local
+ * BEAST process, "java -cp {classpath} beast.app.beastapp.BeastMain -overwrite -seed {seed} {xml}", run in DIR).
+ * A template which runs the chain on another machine (e.g. through ssh) has to leave the log files in DIR, e.g. on a shared file system.
+ * With more than two models, the result is the log Bayes factor of the last model along the path against the first.
+ */
+public class ModelComparisonCoordinator {
+
+    private static final String DEFAULT_COMMAND = "java -cp {classpath} beast.app.beastapp.BeastMain -overwrite -seed {seed} {xml}";
+
+    public static void main(final String[] args) throws Exception {
+        int nrOfSegments = 4;
+        int nrOfWorkers = Runtime.getRuntime().availableProcessors();
+        File dir = new File(".");
+        long seed = 127;
+        String command = DEFAULT_COMMAND;
+        File chainFile = null;
+
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("-segments") && i + 1 < args.length){
+                nrOfSegments = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-workers") && i + 1 < args.length){
+                nrOfWorkers = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-dir") && i + 1 < args.length){
+                dir = new File(args[++i]);
+            }
+            else if (args[i].equals("-seed") && i + 1 < args.length){
+                seed = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-command") && i + 1 < args.length){
+                command = args[++i];
+            }
+            else if (chainFile == null && ! args[i].startsWith("-")){
+                chainFile = new File(args[i]);
+            }
+            else {
+                chainFile = null;
+                break;
+            }
+        }
+        if (chainFile == null || nrOfSegments < 1 || nrOfWorkers < 1){
+            System.out.println("Usage: ModelComparisonCoordinator [-segments N] [-workers P] [-dir DIR] [-seed S] [-command TEMPLATE] chain.xml");
+            return;
+        }
+        if ( ! chainFile.canRead()){
+            System.out.println("Unable to read file: " + chainFile);
+            return;
+        }
+        if ( ! dir.isDirectory() && ! dir.mkdirs()){
+            System.out.println("Unable to create the directory: " + dir);
+            return;
+        }
+
+        //Write the XML of every segment, then run them all
+        File[] UValueLogs = new File[nrOfSegments];
+        List<Future<Integer>> workers = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(nrOfWorkers);
+        try {
+            for (int segment = 0; segment < nrOfSegments; segment++){
+                double segmentStart = (double) segment / nrOfSegments;
+                double segmentEnd = (double) (segment + 1) / nrOfSegments;
+                File segmentFile = new File(dir, "segment" + segment + "_" + chainFile.getName());
+                UValueLogs[segment] = new File(dir, writeSegmentXML(chainFile, segmentFile, segment, segmentStart, segmentEnd));
+                List<String> workerCommand = createWorkerCommand(command, segmentFile, seed + segment, segment, dir);
+                File workerOutput = new File(dir, "segment" + segment + ".out");
+                File workingDir = dir;
+                int segmentNr = segment;
+                workers.add(pool.submit(() -> {
+                    System.out.println("Starting segment " + segmentNr + ": " + String.join(" ", workerCommand));
+                    Process process = new ProcessBuilder(workerCommand).directory(workingDir).redirectErrorStream(true)
+                            .redirectOutput(workerOutput).start();
+                    return process.waitFor();
+                }));
+            }
+
+            boolean failed = false;
+            for (int segment = 0; segment < nrOfSegments; segment++){
+                int exitValue;
+                try {
+                    exitValue = workers.get(segment).get();
+                }
+                catch (ExecutionException e){
+                    System.out.println("Could not run segment " + segment + ": " + e.getCause());
+                    failed = true;
+                    continue;
+                }
+                if (exitValue != 0){
+                    System.out.println("The chain of segment " + segment + " failed (exit value " + exitValue + "), see " + new File(dir, "segment" + segment + ".out"));
+                    failed = true;
+                }
+            }
+            if (failed){
+                return;
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        mergeSegments(UValueLogs);
+    }
+
+    /**
+     * Writes the chain of one segment: a 'oneway' chain from segmentStart to segmentEnd, with its log files prefixed by the segment
+     * @return the name of the log file of the segment which has beta and U in it
+     */
+    static String writeSegmentXML(File chainFile, File segmentFile, int segment, double segmentStart, double segmentEnd) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(chainFile);
+
+        Element run = null;
+        NodeList elements = doc.getElementsByTagName("*");
+        for (int i = 0; i < elements.getLength() && run == null; i++){
+            if (((Element) elements.item(i)).getAttribute("spec").endsWith("ModelComparisonMCMC")){
+                run = (Element) elements.item(i);
+            }
+        }
+        if (run == null){
+            throw new IllegalArgumentException("There is no ModelComparisonMCMC in " + chainFile);
+        }
+        run.setAttribute("betaControlMode", "oneway");
+        run.setAttribute("betaEnd", Double.toString(segmentEnd));
+        setBetaStartingValue(doc, run, segmentStart);
+
+        String UValueLog = null;
+        NodeList loggers = run.getElementsByTagName("logger");
+        for (int i = 0; i < loggers.getLength(); i++){
+            Element logger = (Element) loggers.item(i);
+            if (logger.getAttribute("fileName").isEmpty()){
+                continue; // the screen
+            }
+            String fileName = "segment" + segment + "_" + new File(logger.getAttribute("fileName")).getName();
+            logger.setAttribute("fileName", fileName);
+            NodeList logs = logger.getElementsByTagName("log");
+            for (int j = 0; j < logs.getLength(); j++){
+                Element log = (Element) logs.item(j);
+                if (log.getAttribute("spec").endsWith("ModelComparisonLogger")){
+                    UValueLog = fileName;
+                    if ( ! log.getAttribute("binaryFileName").isEmpty()){
+                        //The binary log is read instead of the text one
+                        UValueLog = "segment" + segment + "_" + new File(log.getAttribute("binaryFileName")).getName();
+                        log.setAttribute("binaryFileName", UValueLog);
+                    }
+                }
+            }
+        }
+        if (UValueLog == null){
+            throw new IllegalArgumentException("There is no logger with a ModelComparisonLogger writing to a file in " + chainFile);
+        }
+
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(segmentFile));
+        return UValueLog;
+    }
+
+    private static void setBetaStartingValue(Document doc, Element run, double betaValue){
+        Element betaParameter = null;
+        NodeList children = run.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++){
+            if (children.item(i) instanceof Element && ((Element) children.item(i)).getTagName().equals("betaParameter")){
+                betaParameter = (Element) children.item(i);
+            }
+        }
+        if (betaParameter == null && run.getAttribute("betaParameter").startsWith("@")){
+            String id = run.getAttribute("betaParameter").substring(1);
+            NodeList elements = doc.getElementsByTagName("*");
+            for (int i = 0; i < elements.getLength(); i++){
+                if (((Element) elements.item(i)).getAttribute("id").equals(id)){
+                    betaParameter = (Element) elements.item(i);
+                }
+            }
+        }
+        if (betaParameter == null){
+            throw new IllegalArgumentException("Could not find the betaParameter of the ModelComparisonMCMC");
+        }
+        if (betaParameter.hasAttribute("value") || betaParameter.getTextContent().trim().isEmpty()){
+            betaParameter.setAttribute("value", Double.toString(betaValue));
+        }
+        else {
+            betaParameter.setTextContent(Double.toString(betaValue));
+        }
+    }
+
+    static List<String> createWorkerCommand(String template, File segmentFile, long seed, int segment, File dir){
+        List<String> workerCommand = new ArrayList<>();
+        for (String token : template.trim().split("\\s+")){
+            workerCommand.add(token.replace("{xml}", segmentFile.getName())
+                    .replace("{seed}", Long.toString(seed))
+                    .replace("{segment}", Integer.toString(segment))
+                    .replace("{dir}", dir.getAbsolutePath())
+                    .replace("{classpath}", System.getProperty("java.class.path")));
+        }
+        return workerCommand;
+    }
+
+    /**
+     * Adds up the integrals of U over the segments (each with the trapezoid rule, averaging the samples at each value of beta first)
+     */
+    static double mergeSegments(File[] UValueLogs) throws Exception {
+        double logBayesFactor = 0.0;
+        for (int segment = 0; segment < UValueLogs.length; segment++){
+            RunningPathIntegral pathIntegral = new RunningPathIntegral();
+            new ModelComparisonLogReader(UValueLogs[segment]).read((betaValue, UValue, pairUValues) -> pathIntegral.add(betaValue, UValue));
+            double segmentWidth = 1.0 / UValueLogs.length;
+            if (pathIntegral.getNrOfCompletedPasses() > 0 || pathIntegral.getBetaCovered() < segmentWidth * 0.99){
+                System.out.println("WARNING: the log of segment " + segment + " covers " + pathIntegral.getBetaCovered()
+                        + " of beta in one pass, rather than " + segmentWidth);
+            }
+            System.out.println("Segment " + segment + " (beta " + (segment * segmentWidth) + " to " + ((segment + 1) * segmentWidth) + "): " + pathIntegral.getIntegral());
+            logBayesFactor = logBayesFactor + pathIntegral.getIntegral();
+        }
+        System.out.println("Segments merged. The log Bayes factor calculated is: ");
+        System.out.println(logBayesFactor);
+        return logBayesFactor;
+    }
+}
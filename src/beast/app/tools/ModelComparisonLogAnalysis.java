@@ -0,0 +1,429 @@
+package beast.app.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Everything ModelComparisonCalculator needs from a log, worked out in one pass over its rows (see ModelComparisonLogReader)
+ * without storing them: the sums for a oneway and for a bothways analysis, and the means of U over each run of rows with the
+ * same value of beta for a stepwise analysis (or for the pairs of models along a path through more than two models).
+ * Which of these is used is only decided once all rows have been seen. The sums are added up in the same order as the
+ * calculator did over the whole lists of values, so the results are exactly the same.
+ * Only for standard errors (see keepValues) are the values of beta and U of the rows kept, as arrays of doubles.
+ */
+public class ModelComparisonLogAnalysis implements ModelComparisonLogReader.RowHandler {
+
+    private final int nrOfPairs;
+    private long nrOfRows;
+    private double startingBetaValue;
+
+    //The row before the current one, which is used once the value of beta after it is known
+    private boolean hasPendingRow;
+    private double pendingBetaValue;
+    private double pendingUValue;
+
+    //Oneway analysis
+    private final PathSums oneWaySums = new PathSums();
+    private boolean oneWayBetaIsChanging = true; //Assume true at first, then set to false if find it is not the case
+
+    //Bothways analysis
+    private final PathSums[] bothWaysSums = {new PathSums(), new PathSums()};
+    private boolean bothWaysBetaIsChanging = true;
+    private int stage = 0;
+    private int direction = 0; // 0 = not yet set, 1 = increasing, -1 = decreasing
+    private int nrOfDirectionChanges;
+
+    //Stepwise analysis (or that of more than two models)
+    private final RunSums runSums;
+
+    //The values of every row, if kept for the standard errors
+    private double[] betaValues;
+    private double[] UValues;
+
+    public ModelComparisonLogAnalysis(int nrOfPairs){
+        this.nrOfPairs = nrOfPairs;
+        runSums = new RunSums(Math.max(1, nrOfPairs));
+    }
+
+    /**
+     * Keeps the values of beta and U of every row (16 bytes a row), and which rows each pass of a oneway or bothways analysis is made of,
+     * for getStandardErrors. To be called before the first row.
+     */
+    public void keepValues(){
+        betaValues = new double[1024];
+        UValues = new double[1024];
+        oneWaySums.keepRows();
+        bothWaysSums[0].keepRows();
+        bothWaysSums[1].keepRows();
+    }
+
+    @Override
+    public void handleRow(double betaValue, double UValue, double[] pairUValues){
+        if (nrOfRows == 0){
+            startingBetaValue = betaValue;
+        }
+        if (betaValues != null){
+            keepRow(betaValue, UValue);
+        }
+        if (hasPendingRow){
+            useRow(nrOfRows - 1, pendingBetaValue, pendingUValue, true, betaValue);
+        }
+        hasPendingRow = true;
+        pendingBetaValue = betaValue;
+        pendingUValue = UValue;
+        nrOfRows++;
+        if (nrOfPairs > 0){
+            runSums.add(betaValue, pairUValues);
+        }
+        else {
+            runSums.add(betaValue, UValue);
+        }
+    }
+
+    /**
+     * To be called after the last row
+     */
+    public void finish(){
+        if (nrOfRows == 0){
+            throw new IllegalStateException("There are no values of beta and U in the log");
+        }
+        if (hasPendingRow){
+            useRow(nrOfRows - 1, pendingBetaValue, pendingUValue, false, Double.NaN);
+            hasPendingRow = false;
+        }
+        runSums.finish();
+    }
+
+    private void keepRow(double betaValue, double UValue){
+        if (nrOfRows == betaValues.length){
+            if (nrOfRows >= Integer.MAX_VALUE - 8){
+                throw new IllegalStateException("The log has too many rows to keep their values for the standard errors");
+            }
+            int length = (int) Math.min(Integer.MAX_VALUE - 8, 2L * betaValues.length);
+            betaValues = Arrays.copyOf(betaValues, length);
+            UValues = Arrays.copyOf(UValues, length);
+        }
+        betaValues[(int) nrOfRows] = betaValue;
+        UValues[(int) nrOfRows] = UValue;
+    }
+
+    private void useRow(long row, double betaValue, double UValue, boolean hasNext, double nextBetaValue){
+        //Oneway: the rows from where beta starts changing
+        if (row == 0){
+            if (hasNext && isSameBeta(betaValue, nextBetaValue)){
+                oneWayBetaIsChanging = false;
+            }
+            else {
+                //Use the current line as the first U value
+                oneWaySums.add(row, betaValue, UValue);
+            }
+        }
+        else if ( ! oneWayBetaIsChanging){ //Need to notice when beta starts changing
+            if (hasNext && ! isSameBeta(betaValue, nextBetaValue)){
+                oneWayBetaIsChanging = true;
+                oneWaySums.add(row, betaValue, UValue);
+            }
+        }
+        else {
+            oneWaySums.add(row, betaValue, UValue);
+        }
+
+        //Bothways: the same, but switching between the two stages whenever the direction beta changes in turns around
+        if (row == 0){
+            if (hasNext && isSameBeta(betaValue, nextBetaValue)){
+                bothWaysBetaIsChanging = false;
+            }
+            else {
+                bothWaysSums[stage].add(row, betaValue, UValue);
+                if (hasNext){
+                    direction = nextBetaValue > betaValue ? 1 : -1;
+                }
+            }
+        }
+        else if ( ! bothWaysBetaIsChanging){
+            if (hasNext && ! isSameBeta(betaValue, nextBetaValue)){
+                bothWaysBetaIsChanging = true;
+                bothWaysSums[stage].add(row, betaValue, UValue);
+                direction = nextBetaValue > betaValue ? 1 : -1;
+            }
+        }
+        else {
+            bothWaysSums[stage].add(row, betaValue, UValue);
+            if (hasNext){
+                int temp_direction = nextBetaValue > betaValue ? 1 : -1;
+                if (direction == 0){
+                    direction = temp_direction;
+                }
+                else if (temp_direction != direction){
+                    //Change the stage variable and the direction variable
+                    direction = temp_direction;
+                    stage = 1 - stage; //If was 0, now becomes 1; if was 1, now becomes 0.
+                    nrOfDirectionChanges++;
+                }
+            }
+        }
+    }
+
+    private static boolean isSameBeta(double betaValue, double otherBetaValue){
+        return Double.doubleToLongBits(betaValue) == Double.doubleToLongBits(otherBetaValue); // as Double.equals
+    }
+
+    public long getNrOfRows(){
+        return nrOfRows;
+    }
+
+    public int getNrOfPairs(){
+        return nrOfPairs;
+    }
+
+    public double getStartingBetaValue(){
+        return startingBetaValue;
+    }
+
+    public double getEndingBetaValue(){
+        return pendingBetaValue;
+    }
+
+    public PathSums getOneWaySums(){
+        return oneWaySums;
+    }
+
+    public PathSums getBothWaysSums(int stage){
+        return bothWaysSums[stage];
+    }
+
+    public int getNrOfDirectionChanges(){
+        return nrOfDirectionChanges;
+    }
+
+    public RunSums getRunSums(){
+        return runSums;
+    }
+
+    /**
+     * The standard errors of the estimate from the pass of the given sums (one of those of the oneway or bothways analysis), if keepValues was called
+     */
+    public ModelComparisonStandardErrors getStandardErrors(PathSums pathSums){
+        if (betaValues == null){
+            throw new IllegalStateException("The values of the rows were not kept");
+        }
+        return new ModelComparisonStandardErrors(betaValues, UValues, pathSums.rowRanges, pathSums.isEvenlySpaced());
+    }
+
+
+    /**
+     * The sums over the values of U along one pass of beta for ModelComparisonCalculator.integratePath: with the first and last
+     * values given half the weight (for evenly spaced values of beta), and with the trapezoid rule (for values which are not)
+     */
+    public static class PathSums {
+
+        private long count;
+        private double previousBetaValue;
+        private double previousUValue;
+        private double evenlySpacedTotal; // without the last value
+        private double trapezoidTotal;
+        private double smallestStep = Double.POSITIVE_INFINITY;
+        private double largestStep = 0.0;
+
+        //The rows added, as ranges (from, to) of consecutive rows, if they are kept
+        private List<long[]> rowRanges;
+
+        void keepRows(){
+            rowRanges = new ArrayList<>();
+        }
+
+        void add(long row, double betaValue, double UValue){
+            if (rowRanges != null){
+                long[] lastRange = rowRanges.isEmpty() ? null : rowRanges.get(rowRanges.size() - 1);
+                if (lastRange != null && lastRange[1] == row){
+                    lastRange[1] = row + 1;
+                }
+                else {
+                    rowRanges.add(new long[]{row, row + 1});
+                }
+            }
+            add(betaValue, UValue);
+        }
+
+        public void add(double betaValue, double UValue){
+            if (count > 0){
+                double step = Math.abs(betaValue - previousBetaValue);
+                smallestStep = Math.min(smallestStep, step);
+                largestStep = Math.max(largestStep, step);
+                evenlySpacedTotal = evenlySpacedTotal + (count == 1 ? previousUValue * 0.5 : previousUValue);
+                trapezoidTotal = trapezoidTotal + (0.5 * (previousUValue + UValue) * Math.abs(betaValue - previousBetaValue));
+            }
+            previousBetaValue = betaValue;
+            previousUValue = UValue;
+            count++;
+        }
+
+        public long getCount(){
+            return count;
+        }
+
+        public boolean isEvenlySpaced(){
+            //Allow for rounding in the values of beta written to the log
+            return largestStep <= smallestStep * 1.01;
+        }
+
+        /**
+         * The mean of the values of U, with the first and last values given half the weight
+         */
+        public double getEvenlySpacedEstimate(){
+            return (count > 0 ? evenlySpacedTotal + (previousUValue * 0.5) : evenlySpacedTotal) / count;
+        }
+
+        /**
+         * The trapezoid rule estimate of the integral of U over beta, as ModelComparisonCalculator.integrateOverBeta
+         */
+        public double getTrapezoidEstimate(){
+            return trapezoidTotal;
+        }
+
+        /**
+         * The evenly spaced estimate if beta is evenly spaced, otherwise the trapezoid rule estimate
+         */
+        public double getEstimate(){
+            return isEvenlySpaced() ? getEvenlySpacedEstimate() : getTrapezoidEstimate();
+        }
+    }
+
+
+    /**
+     * The means of U (or of U of each pair of neighbouring models) over each run of rows with the same value of beta, integrated
+     * over beta as ModelComparisonCalculator.integrateSections does, in one pass up to the run at which beta first turns around,
+     * and in a second pass from that run on.
+     */
+    public static class RunSums {
+
+        private final int nrOfSections;
+        private long nrOfRuns;
+        private long nrOfRunsOfOneRow;
+
+        //The run still being added to
+        private long rowsInRun;
+        private double runBetaValue;
+        private final double[] runUTotals;
+
+        //The closed run before it
+        private boolean hasClosedRun;
+        private double closedBetaValue;
+        private boolean turned;
+
+        //For each pass and section, the last value of beta (on the scale of the section) and mean U in it, and the trapezoid total
+        private final boolean[][] hasSectionValue;
+        private final double[][] sectionBetaValues;
+        private final double[][] sectionUValues;
+        private final double[][] sectionTotals;
+        private final long[] passRows = new long[2];
+
+        RunSums(int nrOfSections){
+            this.nrOfSections = nrOfSections;
+            runUTotals = new double[nrOfSections];
+            hasSectionValue = new boolean[2][nrOfSections];
+            sectionBetaValues = new double[2][nrOfSections];
+            sectionUValues = new double[2][nrOfSections];
+            sectionTotals = new double[2][nrOfSections];
+        }
+
+        void add(double betaValue, double UValue){
+            startRowAt(betaValue);
+            runUTotals[0] = runUTotals[0] + UValue;
+        }
+
+        void add(double betaValue, double[] pairUValues){
+            startRowAt(betaValue);
+            for (int pair = 0; pair < nrOfSections; pair++){
+                runUTotals[pair] = runUTotals[pair] + pairUValues[pair];
+            }
+        }
+
+        private void startRowAt(double betaValue){
+            if (rowsInRun > 0 && ! isSameBeta(betaValue, runBetaValue)){
+                closeRun(true, betaValue);
+            }
+            runBetaValue = betaValue;
+            rowsInRun++;
+        }
+
+        void finish(){
+            if (rowsInRun > 0){
+                closeRun(false, Double.NaN);
+            }
+        }
+
+        private void closeRun(boolean hasNext, double nextBetaValue){
+            double[] meanUValues = new double[nrOfSections];
+            for (int pair = 0; pair < nrOfSections; pair++){
+                meanUValues[pair] = runUTotals[pair] / rowsInRun;
+                runUTotals[pair] = 0.0;
+            }
+            //The run at which beta turns around belongs to both passes
+            boolean turnsHere = ! turned && hasClosedRun && hasNext
+                    && ((runBetaValue - closedBetaValue > 0) != (nextBetaValue - runBetaValue > 0));
+            int pass = turned ? 1 : 0;
+            addToPass(pass, runBetaValue, meanUValues);
+            passRows[pass] += rowsInRun;
+            if (turnsHere){
+                turned = true;
+                addToPass(1, runBetaValue, meanUValues);
+                passRows[1] += rowsInRun;
+            }
+            if (rowsInRun == 1){
+                nrOfRunsOfOneRow++;
+            }
+            nrOfRuns++;
+            hasClosedRun = true;
+            closedBetaValue = runBetaValue;
+            rowsInRun = 0;
+        }
+
+        private void addToPass(int pass, double betaValue, double[] meanUValues){
+            for (int section = 0; section < nrOfSections; section++){
+                double sectionBeta = (betaValue * nrOfSections) - section;
+                if (sectionBeta > -1e-9 && sectionBeta < 1.0 + 1e-9){
+                    if (hasSectionValue[pass][section]){
+                        sectionTotals[pass][section] = sectionTotals[pass][section]
+                                + (0.5 * (sectionUValues[pass][section] + meanUValues[section]) * Math.abs(sectionBeta - sectionBetaValues[pass][section]));
+                    }
+                    hasSectionValue[pass][section] = true;
+                    sectionBetaValues[pass][section] = sectionBeta;
+                    sectionUValues[pass][section] = meanUValues[section];
+                }
+            }
+        }
+
+        public long getNrOfRuns(){
+            return nrOfRuns;
+        }
+
+        /**
+         * Beta was held fixed for runs of several rows at a time (such as with a StepwiseBetaSchedule), rather than changing every row:
+         * the median length of the runs is at least two
+         */
+        public boolean isStepwise(){
+            return nrOfRuns >= 2 && nrOfRuns / 2 >= nrOfRunsOfOneRow;
+        }
+
+        public boolean hasTurned(){
+            return turned;
+        }
+
+        /**
+         * The number of rows in the runs of the first or second pass (the run at which beta turns around is in both)
+         */
+        public long getPassRows(int pass){
+            return passRows[pass];
+        }
+
+        /**
+         * The integral of the mean U of each section (pair of models) over its section of the path, for the first or second pass
+         */
+        public double[] getSectionIntegrals(int pass){
+            return sectionTotals[pass].clone();
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package beast.app.tools;
+
+import beast.core.util.ModelComparisonBinaryLog;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Reads the values of beta and U (and of U for each pair of neighbouring models, if there are more than two) from a log written by
+ * ModelComparisonLogger, one row at a time, without storing them. A text log is scanned byte by byte, and only the columns needed
+ * are parsed, straight from the bytes, so the memory used does not depend on the size of the file.
+ * A binary log (see ModelComparisonBinaryLog) is memory-mapped instead.
+ * With more than one thread (see setNrOfThreads), a large text log is split into chunks of whole lines which are parsed in parallel,
+ * while the rows are still handed to the handler one at a time, in order, from the thread calling read. So the results of whatever
+ * the handler adds up are exactly the same as when the log is read by one thread.
+ * A log compressed with gzip (recognised by its first bytes, whatever its name) is decompressed while it is read, by one thread.
+ * Rows in which the chain was still equilibrating (with a non-zero Equilibrating column) are left out, as are comment lines starting with '#'.
+ */
+public class ModelComparisonLogReader {
+
+    public interface RowHandler {
+        /**
+         * @param pairUValues the values of U of each pair of neighbouring models (empty with two models); the array is reused for the next row
+         */
+        void handleRow(double betaValue, double UValue, double[] pairUValues);
+    }
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long CHUNK_SIZE = 1L << 24; // of a text log, parsed by one thread at a time (by default)
+    private static final long MAPPED_WINDOW_SIZE = 1L << 30; // a binary log is mapped up to this much at a time
+
+    private final File inputFile;
+    private final boolean gzip;
+    private final boolean binary;
+    private int betaColumnIndex = -1, UColumnIndex = -1;
+    private int equilibratingColumnIndex = -1; // only in logs of beta schedules which discard some samples
+    private final ArrayList<Integer> pairColumnIndices = new ArrayList<>(); // UValue_0_1, UValue_1_2, ... for logs of more than two models
+    private int nrOfColumns;
+    private long dataStart; // where the rows start in the file
+    private int nrOfThreads = 1;
+    private long chunkSize = CHUNK_SIZE;
+
+    /**
+     * Reads the header of the log, to find the columns
+     */
+    public ModelComparisonLogReader(File inputFile) throws IOException {
+        this.inputFile = inputFile;
+        byte[] magic = readMagic(new FileInputStream(inputFile));
+        if ((magic[0] & 0xFF) == 0x28 && (magic[1] & 0xFF) == 0xB5 && (magic[2] & 0xFF) == 0x2F && (magic[3] & 0xFF) == 0xFD){
+            throw new IOException(inputFile + " is compressed with zstd, which can not be read here: please decompress it first (zstd -d), or compress it with gzip instead");
+        }
+        gzip = (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B;
+        if (gzip){
+            magic = readMagic(openInputStream());
+        }
+        binary = ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == ModelComparisonBinaryLog.MAGIC;
+        if (binary){
+            readBinaryHeader();
+        }
+        else {
+            readTextHeader();
+        }
+    }
+
+    public int getNrOfPairs(){
+        return pairColumnIndices.size();
+    }
+
+    /**
+     * The number of threads to parse a text log with (default 1)
+     */
+    public void setNrOfThreads(int nrOfThreads){
+        this.nrOfThreads = Math.max(1, nrOfThreads);
+    }
+
+    /**
+     * The size of the chunks a text log is split into to parse with more than one thread (default CHUNK_SIZE), which tests make tiny
+     */
+    void setChunkSize(long chunkSize){
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * The first four bytes of the stream (zeros after its end), which is closed
+     */
+    private static byte[] readMagic(InputStream stream) throws IOException {
+        try (InputStream in = stream){
+            byte[] magic = new byte[4];
+            readFully(in, magic, magic.length);
+            return magic;
+        }
+    }
+
+    /**
+     * The contents of the file, decompressed if it is compressed
+     */
+    private InputStream openInputStream() throws IOException {
+        InputStream in = new FileInputStream(inputFile);
+        return gzip ? new GZIPInputStream(in, 1 << 16) : new BufferedInputStream(in);
+    }
+
+    /**
+     * Reads up to length bytes, less only at the end of the stream
+     * @return the number of bytes read
+     */
+    private static int readFully(InputStream in, byte[] bytes, int length) throws IOException {
+        int read = 0;
+        while (read < length){
+            int count = in.read(bytes, read, length - read);
+            if (count < 0){
+                break;
+            }
+            read = read + count;
+        }
+        return read;
+    }
+
+    private void findColumn(String columnName, int column){
+        columnName = columnName.toLowerCase();
+        if (columnName.equals("betavalue") || columnName.equals("beta.value")){
+            betaColumnIndex = column;
+        }
+        else if (columnName.equals("uvalue") || columnName.equals("u.value")){
+            UColumnIndex = column;
+        }
+        else if (columnName.equals("equilibrating")){
+            equilibratingColumnIndex = column;
+        }
+        else if (columnName.equals("uvalue_" + pairColumnIndices.size() + "_" + (pairColumnIndices.size() + 1))){
+            pairColumnIndices.add(column);
+        }
+    }
+
+    private void readTextHeader() throws IOException {
+        try (InputStream in = openInputStream()){
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int nextByte = 0;
+            while (nextByte >= 0){
+                line.reset();
+                while ((nextByte = in.read()) >= 0 && nextByte != '\n'){
+                    line.write(nextByte);
+                }
+                dataStart = dataStart + line.size() + (nextByte >= 0 ? 1 : 0);
+                String header = line.toString(StandardCharsets.UTF_8.name()).trim();
+                if (header.isEmpty() || header.startsWith("#")){
+                    continue; // a comment line
+                }
+                String[] colNames = header.split("\\t");
+                for (int i = 0; i < colNames.length; i++){
+                    findColumn(colNames[i], i);
+                }
+                break;
+            }
+        }
+
+        //User error handling
+        if (betaColumnIndex == -1){
+            System.out.println("PROBLEM: Couldn't find the column for beta in the log file: " + inputFile);
+        }
+        if (UColumnIndex == -1){
+            System.out.println("PROBLEM: Couldn't find the column for U in the log file: " + inputFile);
+        }
+        if (betaColumnIndex == -1 || UColumnIndex == -1){
+            throw new IOException("No beta or U in " + inputFile);
+        }
+        nrOfColumns = 1 + Math.max(Math.max(betaColumnIndex, UColumnIndex), equilibratingColumnIndex);
+        for (int pairColumnIndex : pairColumnIndices){
+            nrOfColumns = Math.max(nrOfColumns, pairColumnIndex + 1);
+        }
+    }
+
+    private void readBinaryHeader() throws IOException {
+        try (DataInputStream in = new DataInputStream(openInputStream())){
+            if (Integer.reverseBytes(in.readInt()) != ModelComparisonBinaryLog.MAGIC || Integer.reverseBytes(in.readInt()) != ModelComparisonBinaryLog.VERSION){
+                throw new IOException(inputFile + " is not a binary log of this version of ModelComparisonLogger");
+            }
+            nrOfColumns = Integer.reverseBytes(in.readInt());
+            in.readInt(); // rows per full block
+            long headerSize = 16;
+            for (int column = 0; column < nrOfColumns; column++){
+                byte[] name = new byte[Integer.reverseBytes(in.readInt())];
+                in.readFully(name);
+                findColumn(new String(name, StandardCharsets.UTF_8), column);
+                headerSize = headerSize + 4 + name.length;
+            }
+            //The blocks follow the header, padded to a multiple of 8 bytes
+            dataStart = ((headerSize + 7) / 8) * 8;
+        }
+        if (betaColumnIndex == -1 || UColumnIndex == -1){
+            System.out.println("PROBLEM: Couldn't find the columns for beta and U in the binary log file: " + inputFile);
+            throw new IOException("No beta or U in " + inputFile);
+        }
+    }
+
+    /**
+     * Hands every row of the log to the handler, in order
+     */
+    public void read(RowHandler handler) throws IOException {
+        if (gzip){
+            try (InputStream in = openInputStream()){
+                if (in.skip(dataStart) != dataStart){
+                    throw new EOFException("The end of " + inputFile + " was reached within its header");
+                }
+                if (binary){
+                    readBinaryRows(in, handler);
+                }
+                else {
+                    readTextRows(null, in, dataStart, Long.MAX_VALUE, handler);
+                }
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)){
+            if (binary){
+                readBinaryRows(channel, handler);
+            }
+            else if (nrOfThreads > 1 && channel.size() - dataStart > 2 * chunkSize){
+                readTextRowsInParallel(channel, handler);
+            }
+            else {
+                readTextRows(channel, null, dataStart, Long.MAX_VALUE, handler);
+            }
+        }
+    }
+
+    /**
+     * Parses the chunks on a pool of nrOfThreads threads, keeping at most two chunks per thread in memory, and hands over their rows in order
+     */
+    private void readTextRowsInParallel(FileChannel channel, RowHandler handler) throws IOException {
+        long size = channel.size();
+        ForkJoinPool pool = new ForkJoinPool(nrOfThreads);
+        try {
+            ArrayDeque<ForkJoinTask<ChunkRows>> chunks = new ArrayDeque<>();
+            long nextChunkStart = dataStart;
+            double[] pairUValues = new double[pairColumnIndices.size()];
+            while (nextChunkStart < size || ! chunks.isEmpty()){
+                while (nextChunkStart < size && chunks.size() < 2 * nrOfThreads){
+                    long chunkStart = nextChunkStart;
+                    long chunkEnd = Math.min(size, chunkStart + chunkSize);
+                    chunks.add(pool.submit(() -> {
+                        ChunkRows rows = new ChunkRows(2 + pairColumnIndices.size());
+                        try {
+                            readTextRows(channel, null, chunkStart, chunkEnd, rows);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return rows;
+                    }));
+                    nextChunkStart = chunkEnd;
+                }
+                ChunkRows rows;
+                try {
+                    rows = chunks.poll().join();
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                rows.handOver(handler, pairUValues);
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * The rows of one chunk of a text log, one after the other (beta, U, then the pairs)
+     */
+    private static class ChunkRows implements RowHandler {
+
+        private final int nrOfValues;
+        private double[] values = new double[1 << 10]; // made larger as rows are added
+        private int length;
+
+        ChunkRows(int nrOfValues){
+            this.nrOfValues = nrOfValues;
+        }
+
+        @Override
+        public void handleRow(double betaValue, double UValue, double[] pairUValues){
+            if (length + nrOfValues > values.length){
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[length] = betaValue;
+            values[length + 1] = UValue;
+            System.arraycopy(pairUValues, 0, values, length + 2, pairUValues.length);
+            length = length + nrOfValues;
+        }
+
+        void handOver(RowHandler handler, double[] pairUValues){
+            for (int row = 0; row < length; row = row + nrOfValues){
+                System.arraycopy(values, row + 2, pairUValues, 0, pairUValues.length);
+                handler.handleRow(values[row], values[row + 1], pairUValues);
+            }
+        }
+    }
+
+    /**
+     * Parses the lines which start from start up to (not including) end, together with the part of the last of them after end
+     * @param in if not null, the bytes are read from this (from start on) rather than from the channel
+     */
+    private void readTextRows(FileChannel channel, InputStream in, long start, long end, RowHandler handler) throws IOException {
+        byte[] bytes = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1 << 10, end - start))]; // made larger if a line does not fit
+        int length = 0; // of the bytes read into the buffer
+        int lineStart = 0;
+        int scanned = 0; // up to where the buffer has been searched for the end of the line
+        //Unless the chunk starts at the first row, the line it starts in (or the newline before it) belongs to the chunk before
+        boolean skipLine = start > dataStart;
+        long bufferStart = skipLine ? start - 1 : start; // the position in the file of the start of the buffer
+        long filePosition = bufferStart;
+        boolean endOfFile = false;
+        boolean cutOff = false; // the compressed data ends before its proper end, so the last line is not complete
+        double[] values = new double[2 + pairColumnIndices.size()];
+        double[] pairUValues = new double[pairColumnIndices.size()];
+        while (true){
+            if ( ! skipLine && bufferStart + lineStart >= end){
+                return;
+            }
+            int lineEnd = scanned;
+            while (lineEnd < length && bytes[lineEnd] != '\n'){
+                lineEnd++;
+            }
+            if (lineEnd == length){
+                if (endOfFile){
+                    if ( ! skipLine && ! cutOff && lineStart < length && parseLine(bytes, lineStart, length, values)){
+                        handleRow(handler, values, pairUValues);
+                    }
+                    return;
+                }
+                //Move the start of the line to the front of the buffer (making it larger if the line does not fit), and read on
+                System.arraycopy(bytes, lineStart, bytes, 0, length - lineStart);
+                length = length - lineStart;
+                bufferStart = bufferStart + lineStart;
+                lineStart = 0;
+                scanned = length;
+                if (length == bytes.length){
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                int read;
+                try {
+                    read = in != null ? in.read(bytes, length, bytes.length - length) : channel.read(ByteBuffer.wrap(bytes, length, bytes.length - length), filePosition);
+                } catch (EOFException e) {
+                    System.out.println(inputFile + " ends before the end of its compressed data (it may not have been copied completely), so it is only read up to the last complete line.");
+                    cutOff = true;
+                    read = -1;
+                }
+                if (read < 0){
+                    endOfFile = true;
+                }
+                else {
+                    length = length + read;
+                    filePosition = filePosition + read;
+                }
+                continue;
+            }
+            if ( ! skipLine && parseLine(bytes, lineStart, lineEnd, values)){
+                handleRow(handler, values, pairUValues);
+            }
+            skipLine = false;
+            lineStart = lineEnd + 1;
+            scanned = lineStart;
+        }
+    }
+
+    private static void handleRow(RowHandler handler, double[] values, double[] pairUValues){
+        System.arraycopy(values, 2, pairUValues, 0, pairUValues.length);
+        handler.handleRow(values[0], values[1], pairUValues);
+    }
+
+    /**
+     * Parses the columns needed from the line from start to end (without the newline) into values: beta, U, then the pairs
+     * @return false if the line is not a row to use (a comment, an empty line, or a row in which the chain was equilibrating)
+     */
+    private boolean parseLine(byte[] bytes, int start, int end, double[] values){
+        if (end > start && bytes[end - 1] == '\r'){
+            end--;
+        }
+        if (end == start || bytes[start] == '#'){
+            return false;
+        }
+        int column = 0;
+        int fieldStart = start;
+        int nextPair = 0;
+        while (column < nrOfColumns && fieldStart <= end){
+            int fieldEnd = fieldStart;
+            while (fieldEnd < end && bytes[fieldEnd] != '\t'){
+                fieldEnd++;
+            }
+            if (column == equilibratingColumnIndex && (fieldEnd - fieldStart != 1 || bytes[fieldStart] != '0')){
+                //The chain was still adjusting to a new value of beta, so this value of U is not used
+                return false;
+            }
+            if (column == betaColumnIndex){
+                values[0] = parseDouble(bytes, fieldStart, fieldEnd);
+            }
+            else if (column == UColumnIndex){
+                values[1] = parseDouble(bytes, fieldStart, fieldEnd);
+            }
+            else if (nextPair < pairColumnIndices.size() && column == pairColumnIndices.get(nextPair)){
+                values[2 + nextPair] = parseDouble(bytes, fieldStart, fieldEnd);
+                nextPair++;
+            }
+            column++;
+            fieldStart = fieldEnd + 1;
+        }
+        if (column < nrOfColumns){
+            throw new NumberFormatException("Missing values in the line: " + new String(bytes, start, end - start, StandardCharsets.UTF_8));
+        }
+        return true;
+    }
+
+    private void readBinaryRows(FileChannel channel, RowHandler handler) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer window = mapWindow(channel, 0, size);
+        long windowStart = 0;
+        long position = dataStart;
+        double[] pairUValues = new double[pairColumnIndices.size()];
+        while (position + 8 <= size){
+            if (position + 8 > windowStart + window.capacity()){
+                windowStart = position;
+                window = mapWindow(channel, windowStart, size);
+            }
+            long rows = window.getLong((int) (position - windowStart));
+            long blockSize = 8 + (rows * nrOfColumns * 8);
+            if (rows <= 0 || position + blockSize > size){
+                System.out.println("The last block of " + inputFile + " is incomplete (the chain may have been stopped while writing it), so it is left out.");
+                break;
+            }
+            if (position + blockSize > windowStart + window.capacity()){
+                windowStart = position;
+                window = mapWindow(channel, windowStart, size);
+            }
+            handleBlockRows(window, (int) (position - windowStart) + 8, rows, handler, pairUValues);
+            position = position + blockSize;
+        }
+    }
+
+    /**
+     * Reads the blocks of a binary log from the stream, which is just after the header
+     */
+    private void readBinaryRows(InputStream in, RowHandler handler) throws IOException {
+        byte[] rowCount = new byte[8];
+        byte[] block = new byte[0];
+        double[] pairUValues = new double[pairColumnIndices.size()];
+        while (true){
+            try {
+                int read = readFully(in, rowCount, rowCount.length);
+                if (read == 0){
+                    return;
+                }
+                long rows = ByteBuffer.wrap(rowCount).order(ByteOrder.LITTLE_ENDIAN).getLong(0);
+                if (read == rowCount.length && rows > 0 && rows <= Integer.MAX_VALUE / (nrOfColumns * 8)){
+                    int blockSize = (int) rows * nrOfColumns * 8;
+                    if (block.length < blockSize){
+                        block = new byte[blockSize];
+                    }
+                    if (readFully(in, block, blockSize) == blockSize){
+                        handleBlockRows(ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN), 0, rows, handler, pairUValues);
+                        continue;
+                    }
+                }
+            } catch (EOFException e) {
+                //The compressed data ends within the block
+            }
+            System.out.println("The last block of " + inputFile + " is incomplete (the chain may have been stopped while writing it), so it is left out.");
+            return;
+        }
+    }
+
+    /**
+     * Hands over the rows of the block which starts (after its number of rows) at blockStart
+     */
+    private void handleBlockRows(ByteBuffer block, int blockStart, long rows, RowHandler handler, double[] pairUValues){
+        for (int row = 0; row < rows; row++){
+            if (equilibratingColumnIndex != -1 && block.getDouble(blockStart + (int) (((equilibratingColumnIndex * rows) + row) * 8)) != 0.0){
+                //The chain was still adjusting to a new value of beta, so this value of U is not used
+                continue;
+            }
+            for (int pair = 0; pair < pairUValues.length; pair++){
+                pairUValues[pair] = block.getDouble(blockStart + (int) (((pairColumnIndices.get(pair) * rows) + row) * 8));
+            }
+            handler.handleRow(block.getDouble(blockStart + (int) (((betaColumnIndex * rows) + row) * 8)),
+                    block.getDouble(blockStart + (int) (((UColumnIndex * rows) + row) * 8)), pairUValues);
+        }
+    }
+
+    private static MappedByteBuffer mapWindow(FileChannel channel, long windowStart, long size) throws IOException {
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, MAPPED_WINDOW_SIZE));
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        return window;
+    }
+
+
+    //Parsing of decimal numbers straight from the bytes, giving exactly the same double as Double.parseDouble.
+    //Numbers of up to 19 significant digits are converted with the Eisel-Lemire algorithm (Lemire (2021) 'Number Parsing at a
+    //Gigabyte per Second'), using the 128 leading bits of each power of ten. In the rare cases that these are not enough to decide
+    //the rounding, and for anything else (NaN, Infinity, more digits, ...), Double.parseDouble is used.
+
+    private static final int SMALLEST_POWER = -325;
+    private static final int LARGEST_POWER = 308;
+    private static final long[] POWER_HIGH_BITS = new long[LARGEST_POWER - SMALLEST_POWER + 1];
+    private static final long[] POWER_LOW_BITS = new long[LARGEST_POWER - SMALLEST_POWER + 1];
+
+    static {
+        //The leading 128 bits of each power of ten (rounded down), which are those of the power of five
+        for (int power = SMALLEST_POWER; power <= LARGEST_POWER; power++){
+            BigInteger bits;
+            if (power >= 0){
+                bits = BigInteger.valueOf(5).pow(power);
+                bits = bits.bitLength() > 128 ? bits.shiftRight(bits.bitLength() - 128) : bits.shiftLeft(128 - bits.bitLength());
+            }
+            else {
+                BigInteger divisor = BigInteger.valueOf(5).pow(-power);
+                bits = BigInteger.ONE.shiftLeft(divisor.bitLength() + 127).divide(divisor);
+            }
+            POWER_HIGH_BITS[power - SMALLEST_POWER] = bits.shiftRight(64).longValue();
+            POWER_LOW_BITS[power - SMALLEST_POWER] = bits.longValue();
+        }
+    }
+
+    static double parseDouble(byte[] bytes, int start, int end){
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')){
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long digits = 0;
+        int nrOfDigits = 0; // significant digits in digits
+        int exponent = 0;
+        boolean anyDigits = false;
+        for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++){
+            anyDigits = true;
+            if (digits != 0 || bytes[i] != '0'){
+                digits = (digits * 10) + (bytes[i] - '0');
+                nrOfDigits++;
+            }
+        }
+        if (i < end && bytes[i] == '.'){
+            for (i++; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++){
+                anyDigits = true;
+                if (digits != 0 || bytes[i] != '0'){
+                    digits = (digits * 10) + (bytes[i] - '0');
+                    nrOfDigits++;
+                }
+                exponent--;
+            }
+        }
+        if (anyDigits && i < end && (bytes[i] == 'e' || bytes[i] == 'E')){
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')){
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int exponentDigits = 0;
+            int explicitExponent = 0;
+            for (; i < end && bytes[i] >= '0' && bytes[i] <= '9' && explicitExponent < 100000; i++){
+                explicitExponent = (explicitExponent * 10) + (bytes[i] - '0');
+                exponentDigits++;
+            }
+            if (exponentDigits == 0){
+                anyDigits = false;
+            }
+            exponent = exponent + (negativeExponent ? -explicitExponent : explicitExponent);
+        }
+        if (anyDigits && i == end && nrOfDigits <= 19){
+            if (digits == 0){
+                return negative ? -0.0 : 0.0;
+            }
+            if (exponent >= SMALLEST_POWER && exponent <= LARGEST_POWER){
+                long bits = convert(digits, exponent);
+                if (bits >= 0){
+                    return Double.longBitsToDouble(negative ? bits | Long.MIN_VALUE : bits);
+                }
+            }
+        }
+        return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The bits of the double nearest to digits * 10^power (digits > 0), or -1 if that cannot be decided here
+     */
+    private static long convert(long digits, int power){
+        long highPowerBits = POWER_HIGH_BITS[power - SMALLEST_POWER];
+        int leadingZeros = Long.numberOfLeadingZeros(digits);
+        digits = digits << leadingZeros;
+        long upper = unsignedMultiplyHigh(digits, highPowerBits);
+        long lower = digits * highPowerBits;
+        if ((upper & 0x1FF) == 0x1FF && Long.compareUnsigned(lower + digits, lower) < 0){
+            //The low bits of the power of ten may change the leading bits of the product, so they are needed as well
+            long lowPowerBits = POWER_LOW_BITS[power - SMALLEST_POWER];
+            long productLow = digits * lowPowerBits;
+            long productMiddle = lower + unsignedMultiplyHigh(digits, lowPowerBits);
+            if (Long.compareUnsigned(productMiddle, lower) < 0){
+                upper++;
+            }
+            if (productMiddle + 1 == 0 && (upper & 0x1FF) == 0x1FF && Long.compareUnsigned(productLow + digits, productLow) < 0){
+                return -1;
+            }
+            lower = productMiddle;
+        }
+        long upperBit = upper >>> 63;
+        long mantissa = upper >>> (upperBit + 9);
+        leadingZeros = leadingZeros + (int) (1 ^ upperBit);
+        if (lower == 0 && (upper & 0x1FF) == 0 && (mantissa & 3) == 1){
+            return -1; // may be exactly between two doubles
+        }
+        mantissa = (mantissa + 1) >>> 1;
+        if (mantissa >= (1L << 53)){
+            mantissa = 1L << 52;
+            leadingZeros--;
+        }
+        mantissa = mantissa & ~(1L << 52);
+        long binaryExponent = (((152170L + 65536L) * power) >> 16) + 1024 + 63 - leadingZeros;
+        if (binaryExponent < 1 || binaryExponent > 2046){
+            return -1; // subnormal or infinite
+        }
+        return mantissa | (binaryExponent << 52);
+    }
+
+    private static long unsignedMultiplyHigh(long x, long y){
+        long xHigh = x >>> 32, xLow = x & 0xFFFFFFFFL;
+        long yHigh = y >>> 32, yLow = y & 0xFFFFFFFFL;
+        long lowLow = xLow * yLow;
+        long highLow = xHigh * yLow;
+        long lowHigh = xLow * yHigh;
+        long middle = (lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + (lowHigh & 0xFFFFFFFFL);
+        return (xHigh * yHigh) + (highLow >>> 32) + (lowHigh >>> 32) + (middle >>> 32);
+    }
+}
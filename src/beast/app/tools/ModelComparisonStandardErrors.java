@@ -0,0 +1,305 @@
+package beast.app.tools;
+
+import beast.core.util.UValueStatistics;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Standard errors of the log Bayes factor estimated from one pass of beta along the path (see ModelComparisonCalculator.integratePath).
+ *
+ * The estimate is a weighted sum of the values of U of the pass, so it is worked out from the running totals of the weighted values
+ * (one array of doubles), from which the total of any block of consecutive rows takes two lookups.
+ * The values of U of a chain are autocorrelated, and their mean changes along the path with beta, so:
+ * - the rows are split into batches of the same length, and the variance of the total of a batch is estimated from the differences
+ *   of each batch from the mean of its neighbours on both sides (which a steady change of the mean along the path does not affect).
+ *   The batch length is doubled until the standard error stops growing, which is when the batches are longer than the autocorrelation
+ *   of U (the batch means standard error).
+ * - the block bootstrap replaces each block of that length (or longer, see MAX_BOOTSTRAP_BLOCKS) by a block starting at most NEIGHBOURHOOD_BLOCKS block lengths away from it
+ *   (so that it comes from nearly the same values of beta), moved from the level of the rows around it (not including the block itself,
+ *   which would make the replicates vary too little) to the level of the rows around the block it replaces, and takes the
+ *   standard deviation of the estimates of the replicates. Each replicate takes a few lookups a block. The replicates are
+ *   worked out in parallel, each part of them with its own stream of random numbers split off from one seed, so the result does not
+ *   depend on the number of threads.
+ */
+public class ModelComparisonStandardErrors {
+
+    public static final long BOOTSTRAP_SEED = 127;
+
+    //The most blocks a pass is split into for the bootstrap (the blocks are made longer if need be, which keeps each replicate quick)
+    public static final int MAX_BOOTSTRAP_BLOCKS = 1024;
+
+    //How many block lengths away from a block the block replacing it in the bootstrap can start
+    public static final int NEIGHBOURHOOD_BLOCKS = 4;
+
+    //The replicates worked out by each task
+    private static final int REPLICATES_PER_TASK = 16;
+
+    private final int nrOfValues;
+    private final double[] runningTotals; // runningTotals[i] is the total of the weighted values of U of the rows before row i of the pass
+
+    private int blockLength;
+    private boolean blockLengthFound;
+    private double batchMeansStandardError;
+    private double rowVariance;
+
+    /**
+     * @param betaValues the values of beta of all rows of the log
+     * @param UValues the values of U of all rows of the log
+     * @param rowRanges the rows of the pass (from, to) among them
+     * @param evenlySpaced if true, each value of U has the same weight (the first and last half of it), otherwise the trapezoid rule is used
+     */
+    public ModelComparisonStandardErrors(double[] betaValues, double[] UValues, List<long[]> rowRanges, boolean evenlySpaced){
+        long count = 0;
+        for (long[] range : rowRanges){
+            count = count + (range[1] - range[0]);
+        }
+        nrOfValues = (int) count;
+        runningTotals = new double[nrOfValues + 1];
+        //Rows of the pass, in order, with the rows before and after each one
+        int value = 0;
+        int previousRow = -1;
+        for (int range = 0; range < rowRanges.size(); range++){
+            for (int row = (int) rowRanges.get(range)[0]; row < rowRanges.get(range)[1]; row++){
+                int nextRow = row + 1 < rowRanges.get(range)[1] ? row + 1 : (range + 1 < rowRanges.size() ? (int) rowRanges.get(range + 1)[0] : -1);
+                double weight;
+                if (evenlySpaced){
+                    weight = (previousRow == -1 || nextRow == -1 ? 0.5 : 1.0) / nrOfValues;
+                }
+                else {
+                    weight = 0.5 * ((previousRow == -1 ? 0.0 : Math.abs(betaValues[row] - betaValues[previousRow]))
+                            + (nextRow == -1 ? 0.0 : Math.abs(betaValues[nextRow] - betaValues[row])));
+                }
+                runningTotals[value + 1] = runningTotals[value] + (weight * UValues[row]);
+                value++;
+                previousRow = row;
+            }
+        }
+        findBlockLength();
+    }
+
+    private double getBlockTotal(int start, int length){
+        return runningTotals[start + length] - runningTotals[start];
+    }
+
+    /**
+     * Doubles the batch length until the standard error no longer grows by more than its own uncertainty
+     */
+    private void findBlockLength(){
+        blockLength = 1;
+        batchMeansStandardError = getBatchMeansStandardError(1);
+        while (nrOfValues / (2 * blockLength) >= UValueStatistics.MIN_BATCHES){
+            double longerStandardError = getBatchMeansStandardError(2 * blockLength);
+            int nrOfBatches = nrOfValues / blockLength;
+            if (longerStandardError <= batchMeansStandardError * (1.0 + (1.0 / Math.sqrt(2.0 * (nrOfBatches - 2))))){
+                blockLengthFound = true;
+                break;
+            }
+            blockLength = 2 * blockLength;
+            batchMeansStandardError = longerStandardError;
+        }
+        rowVariance = getRowVariance(Math.max(4, blockLength));
+    }
+
+    /**
+     * The variance of the weighted values of U of single rows around the straight line through each batch (of the given length) they are in
+     */
+    private double getRowVariance(int batchLength){
+        int nrOfBatches = nrOfValues / batchLength;
+        double center = 0.5 * (batchLength - 1);
+        double sumOfSquaredPositions = 0.0;
+        for (int position = 0; position < batchLength; position++){
+            sumOfSquaredPositions = sumOfSquaredPositions + ((position - center) * (position - center));
+        }
+        double sumOfSquares = 0.0;
+        for (int batch = 0; batch < nrOfBatches; batch++){
+            double mean = getBlockTotal(batch * batchLength, batchLength) / batchLength;
+            double batchSumOfSquares = 0.0;
+            double sumOfProducts = 0.0;
+            for (int position = 0; position < batchLength; position++){
+                double deviation = getBlockTotal((batch * batchLength) + position, 1) - mean;
+                batchSumOfSquares = batchSumOfSquares + (deviation * deviation);
+                sumOfProducts = sumOfProducts + ((position - center) * deviation);
+            }
+            sumOfSquares = sumOfSquares + batchSumOfSquares - ((sumOfProducts * sumOfProducts) / sumOfSquaredPositions);
+        }
+        return sumOfSquares / ((double) nrOfBatches * (batchLength - 2));
+    }
+
+    /**
+     * The standard error of the estimate, from the difference of each batch of the given length from the mean of its two neighbours (NaN if there are fewer than three batches)
+     */
+    private double getBatchMeansStandardError(int batchLength){
+        int nrOfBatches = nrOfValues / batchLength;
+        if (nrOfBatches < 3){
+            return Double.NaN;
+        }
+        double sumOfSquares = 0.0;
+        double previousTotal = getBlockTotal(0, batchLength);
+        double total = getBlockTotal(batchLength, batchLength);
+        for (int batch = 2; batch < nrOfBatches; batch++){
+            double nextTotal = getBlockTotal(batch * batchLength, batchLength);
+            double difference = previousTotal - (2.0 * total) + nextTotal;
+            sumOfSquares = sumOfSquares + (difference * difference);
+            previousTotal = total;
+            total = nextTotal;
+        }
+        //The variance of the total of a batch, for all values of the pass (including those after the last complete batch)
+        double batchVariance = sumOfSquares / (6.0 * (nrOfBatches - 2));
+        return Math.sqrt(batchVariance * nrOfValues / batchLength);
+    }
+
+    public int getNrOfValues(){
+        return nrOfValues;
+    }
+
+    /**
+     * The length of the batches, in rows
+     */
+    public int getBlockLength(){
+        return blockLength;
+    }
+
+    /**
+     * The length of the blocks of the bootstrap, in rows: the batch length, or longer if there would be more than MAX_BOOTSTRAP_BLOCKS blocks
+     */
+    public int getBootstrapBlockLength(){
+        return Math.max(blockLength, (nrOfValues + MAX_BOOTSTRAP_BLOCKS - 1) / MAX_BOOTSTRAP_BLOCKS);
+    }
+
+    /**
+     * If false, the standard error was still growing with the batch length when there were too few batches to make them longer,
+     * so the standard errors are too small (the pass is too short for the autocorrelation of U)
+     */
+    public boolean isBlockLengthFound(){
+        return blockLengthFound;
+    }
+
+    /**
+     * About how many rows the values of U of the chain are worth one independent sample
+     */
+    public double getAutocorrelationTime(){
+        return (batchMeansStandardError * batchMeansStandardError) / (nrOfValues * rowVariance);
+    }
+
+    public double getBatchMeansStandardError(){
+        return batchMeansStandardError;
+    }
+
+    /**
+     * The standard deviation of the estimates of the replicates of the block bootstrap
+     */
+    public double getBootstrapStandardError(int nrOfReplicates, ForkJoinPool pool){
+        if (nrOfReplicates < 2 || nrOfValues < 2){
+            return Double.NaN;
+        }
+        double[] replicates = new double[nrOfReplicates];
+        pool.invoke(new BootstrapTask(this, replicates, 0, nrOfReplicates, new SplittableRandom(BOOTSTRAP_SEED)));
+        double mean = 0.0;
+        for (double replicate : replicates){
+            mean = mean + replicate;
+        }
+        mean = mean / nrOfReplicates;
+        double sumOfSquares = 0.0;
+        for (double replicate : replicates){
+            sumOfSquares = sumOfSquares + ((replicate - mean) * (replicate - mean));
+        }
+        return Math.sqrt(sumOfSquares / (nrOfReplicates - 1));
+    }
+
+    /**
+     * How many rows before the block are used for its local level: up to the given distance, the same number as after it
+     * (so that a steady change of the mean along the path cancels out), unless it is at the end of the pass
+     */
+    private int getRowsBefore(int start, int length, int distance){
+        int after = Math.min(distance, nrOfValues - (start + length));
+        return Math.min(distance, after == 0 ? start : Math.min(start, after));
+    }
+
+    /**
+     * How many rows after the block are used for its local level, see getRowsBefore
+     */
+    private int getRowsAfter(int start, int length, int distance){
+        int before = Math.min(distance, start);
+        return Math.min(distance, before == 0 ? nrOfValues - (start + length) : Math.min(nrOfValues - (start + length), before));
+    }
+
+    /**
+     * The total of the block as expected from the mean of the rows within the given distance on both sides of it (not including the block)
+     */
+    private double getLocalTotal(int start, int length, int distance){
+        int before = getRowsBefore(start, length, distance);
+        int after = getRowsAfter(start, length, distance);
+        if (before + after == 0){
+            return getBlockTotal(start, length);
+        }
+        return (getBlockTotal(start - before, before) + getBlockTotal(start + length, after)) * length / (before + after);
+    }
+
+    /**
+     * The difference of the total of the block from its local total, scaled down by the share of its variance that comes from the
+     * local total (which is from before + after rows), so that it varies as much as the total of the block around the local mean
+     */
+    private double getLocalDeviation(int start, int length, int distance){
+        int rowsAround = getRowsBefore(start, length, distance) + getRowsAfter(start, length, distance);
+        return (getBlockTotal(start, length) - getLocalTotal(start, length, distance)) * Math.sqrt((double) rowsAround / (rowsAround + length));
+    }
+
+    /**
+     * The estimate from the rows of the pass with each block replaced by one nearby
+     */
+    private double getReplicate(SplittableRandom random){
+        int bootstrapBlockLength = getBootstrapBlockLength();
+        int neighbourhood = NEIGHBOURHOOD_BLOCKS * bootstrapBlockLength;
+        double estimate = 0.0;
+        for (int start = 0; start < nrOfValues; start = start + bootstrapBlockLength){
+            int length = Math.min(bootstrapBlockLength, nrOfValues - start);
+            int earliest = Math.max(0, start - neighbourhood);
+            int latest = Math.min(nrOfValues - length, start + neighbourhood);
+            int source = earliest + random.nextInt(latest - earliest + 1);
+            //Moved to the level of the rows around the block it replaces, as the mean of U changes along the path
+            estimate = estimate + getLocalTotal(start, length, neighbourhood) + getLocalDeviation(source, length, neighbourhood);
+        }
+        return estimate;
+    }
+
+    /**
+     * Works out the replicates from from up to (not including) to, splitting them between tasks (and their random numbers) the same way
+     * whichever threads run them
+     */
+    private static class BootstrapTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ModelComparisonStandardErrors standardErrors;
+        private final double[] replicates;
+        private final int from;
+        private final int to;
+        private final SplittableRandom random;
+
+        BootstrapTask(ModelComparisonStandardErrors standardErrors, double[] replicates, int from, int to, SplittableRandom random){
+            this.standardErrors = standardErrors;
+            this.replicates = replicates;
+            this.from = from;
+            this.to = to;
+            this.random = random;
+        }
+
+        @Override
+        protected void compute(){
+            if (to - from <= REPLICATES_PER_TASK){
+                for (int replicate = from; replicate < to; replicate++){
+                    replicates[replicate] = standardErrors.getReplicate(random);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            BootstrapTask first = new BootstrapTask(standardErrors, replicates, from, middle, random.split());
+            BootstrapTask second = new BootstrapTask(standardErrors, replicates, middle, to, random);
+            invokeAll(first, second);
+        }
+    }
+}
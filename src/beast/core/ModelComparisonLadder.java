@@ -0,0 +1,332 @@
+package beast.core;
+
+import beast.app.tools.ModelComparisonCalculator;
+import beast.core.util.Log;
+import beast.core.util.ModelComparisonLogger;
+import beast.core.util.UValueStatistics;
+import beast.util.XMLParser;
+import beast.util.XMLParserException;
+import beast.util.XMLProducer;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Runs the 'ladder' mode of ModelComparisonMCMC: independent chains (rungs) at fixed, evenly spaced values of beta from 0 to 1,
+ * several at a time on a pool of threads. The mean value of U at each rung is then integrated over beta to estimate the log Bayes factor.
+ * Each rung is a copy of the template chain, made by writing it out as XML and parsing it again, and logs to its own files.
+ * With warmStart, each rung starts from the state of the rung below it, which hands it over part of the way through its chain,
+ * so the rungs run as a pipeline from beta = 0 upwards rather than each equilibrating from the initial state.
+ * With a precisionTarget, each rung stops as soon as the standard error of its mean of U is small enough for the estimate to reach it.
+ * The operators of all the rungs draw from BEAST's static Randomizer, so when several rungs run at once the numbers each gets depend on
+ * how the threads are scheduled, and the run cannot be repeated exactly from its seed. With one thread the rungs run one after the other and it can.
+ */
+public class ModelComparisonLadder {
+
+    protected final ModelComparisonMCMC templateChain;
+    protected final int nrOfRungs;
+    protected final int nrOfThreads;
+
+    protected double[] rungBetaValues;
+    protected ModelComparisonMCMC[] rungChains;
+    private final AtomicReference<Throwable> firstFailure = new AtomicReference<>(); // the rungs which stop after it only stop because of it
+
+    public ModelComparisonLadder(ModelComparisonMCMC templateChain, int nrOfRungs, int nrOfThreads){
+        this.templateChain = templateChain;
+        this.nrOfRungs = nrOfRungs;
+        this.nrOfThreads = nrOfThreads;
+    }
+
+    public void run() throws IOException, SAXException, ParserConfigurationException {
+        rungBetaValues = new double[nrOfRungs];
+        for (int rung = 0; rung < nrOfRungs; rung++){
+            rungBetaValues[rung] = (double) rung / (nrOfRungs - 1);
+        }
+
+        String chainXML = new XMLProducer().toXML(templateChain);
+        rungChains = new ModelComparisonMCMC[nrOfRungs];
+        for (int rung = 0; rung < nrOfRungs; rung++){
+            rungChains[rung] = createRungChain(chainXML, rung, rungBetaValues[rung]);
+        }
+        if (templateChain.isWarmStart()){
+            for (int rung = 0; rung < nrOfRungs; rung++){
+                rungChains[rung].initWarmStart(rung > 0 ? rungChains[rung - 1] : null);
+            }
+        }
+        if (templateChain.getPrecisionTarget() > 0.0){
+            int nrOfModels = templateChain.getModelComparisonDistribution().getNrOfModels();
+            double[][] standardErrorTargets = calculateStandardErrorTargets(rungBetaValues, nrOfModels, templateChain.getPrecisionTarget());
+            for (int rung = 0; rung < nrOfRungs; rung++){
+                rungChains[rung].setStandardErrorTargets(standardErrorTargets[rung]);
+            }
+        }
+
+        prepareRungs();
+
+        int threadCount = getNrOfThreadsToUse();
+        System.out.println("Running " + nrOfRungs + " ladder rungs, " + threadCount + " at a time.");
+        if (threadCount > 1){
+            Log.warning.println("The rungs share one random number generator, so a run with more than one rung at a time cannot be repeated exactly from its seed.");
+        }
+        ExecutorService rungExecutor = Executors.newFixedThreadPool(threadCount);
+        CompletionService<Object> rungCompletion = new ExecutorCompletionService<>(rungExecutor);
+        List<Future<Object>> runningRungs = new ArrayList<>();
+        //A rung is started either by its task, or never, in which case the ladder stops the threads of its models instead of the rung's chain
+        AtomicBoolean[] rungStarted = new AtomicBoolean[nrOfRungs];
+        boolean finished = false;
+        try {
+            for (int rung = 0; rung < nrOfRungs; rung++){
+                final int rungNr = rung;
+                rungStarted[rung] = new AtomicBoolean();
+                runningRungs.add(rungCompletion.submit(() -> {
+                    if ( ! rungStarted[rungNr].compareAndSet(false, true)){
+                        return null;
+                    }
+                    try {
+                        rungChains[rungNr].run();
+                    } catch (Exception | Error e) {
+                        firstFailure.compareAndSet(null, e);
+                        rungFailed();
+                        rungChains[rungNr].cancelHandover(e);
+                        throw e;
+                    }
+                    Log.warning.println("Finished ladder rung " + rungNr);
+                    return null;
+                }));
+            }
+            //In the order they finish, so that the first rung to fail stops the others straight away
+            for (int rung = 0; rung < nrOfRungs; rung++){
+                waitForRung(rungCompletion);
+            }
+            finished = true;
+        }
+        finally {
+            if ( ! finished){
+                for (Future<Object> runningRung : runningRungs){
+                    runningRung.cancel(true);
+                }
+            }
+            rungExecutor.shutdownNow();
+            for (int rung = 0; rung < nrOfRungs; rung++){
+                if (rungStarted[rung] == null || rungStarted[rung].compareAndSet(false, true)){
+                    rungChains[rung].getModelComparisonDistribution().shutdown();
+                }
+            }
+        }
+
+        reportEstimate();
+    }
+
+    /**
+     * Called once all the rung chains have been created, before any of them start
+     */
+    protected void prepareRungs(){
+    }
+
+    protected int getNrOfThreadsToUse(){
+        return nrOfThreads;
+    }
+
+    /**
+     * Called on the thread of a rung which stopped with an exception
+     */
+    protected void rungFailed(){
+    }
+
+    /**
+     * The U values collected at the given value of beta
+     */
+    protected UValueStatistics getRungStatistics(int rung){
+        return rungChains[rung].getUValueStatistics();
+    }
+
+    /**
+     * Parses a new copy of the template chain, fixes its value of beta and points its loggers and state file at files of its own
+     */
+    ModelComparisonMCMC createRungChain(String chainXML, int rung, double betaValue) throws IOException {
+        ModelComparisonMCMC rungChain;
+        try {
+            rungChain = (ModelComparisonMCMC) new XMLParser().parseFragment(chainXML, true);
+        } catch (XMLParserException e) {
+            throw new IOException("Could not make a copy of the chain for ladder rung " + rung + ": " + e.getMessage(), e);
+        }
+        rungChain.initAsLadderRung(betaValue);
+
+        //Screen loggers are dropped: with several rungs at once the output would be interleaved
+        List<Logger> rungLoggers = rungChain.loggersInput.get();
+        for (int i = rungLoggers.size() - 1; i >= 0; i--){
+            Logger logger = rungLoggers.get(i);
+            String fileName = logger.fileNameInput.get();
+            if (fileName == null || fileName.length() == 0){
+                rungLoggers.remove(i);
+            }
+            else {
+                logger.fileNameInput.setValue(rungFileName(fileName, rung), logger);
+                logger.initAndValidate();
+                for (BEASTObject loggable : logger.loggersInput.get()){
+                    if (loggable instanceof ModelComparisonLogger && ((ModelComparisonLogger) loggable).binaryFileNameInput.get() != null){
+                        ModelComparisonLogger UValueLogger = (ModelComparisonLogger) loggable;
+                        UValueLogger.binaryFileNameInput.setValue(rungFileName(UValueLogger.binaryFileNameInput.get(), rung), UValueLogger);
+                    }
+                }
+            }
+        }
+
+        if (templateChain.stateFileName != null){
+            rungChain.setStateFile(rungFileName(templateChain.stateFileName, rung), false);
+        }
+        return rungChain;
+    }
+
+    /**
+     * model.log becomes model.rung3.log
+     */
+    static String rungFileName(String fileName, int rung){
+        int extensionStart = fileName.lastIndexOf('.');
+        if (extensionStart <= fileName.lastIndexOf('/') || extensionStart <= fileName.lastIndexOf('\\')){
+            return fileName + ".rung" + rung;
+        }
+        return fileName.substring(0, extensionStart) + ".rung" + rung + fileName.substring(extensionStart);
+    }
+
+    private void waitForRung(CompletionService<Object> rungCompletion) throws IOException, SAXException, ParserConfigurationException {
+        try {
+            rungCompletion.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the ladder rungs to finish", e);
+        } catch (ExecutionException e) {
+            Throwable cause = firstFailure.get() != null ? firstFailure.get() : e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof SAXException) throw (SAXException) cause;
+            if (cause instanceof ParserConfigurationException) throw (ParserConfigurationException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    protected void reportEstimate(){
+        UValueStatistics[] statistics = new UValueStatistics[nrOfRungs];
+        for (int rung = 0; rung < nrOfRungs; rung++){
+            statistics[rung] = getRungStatistics(rung);
+        }
+        reportFixedBetaEstimate("Rung", "Ladder", rungBetaValues, statistics, templateChain.getModelComparisonDistribution().getNrOfModels());
+        if (templateChain.getPrecisionTarget() > 0.0){
+            long savedSamples = 0;
+            for (ModelComparisonMCMC rungChain : rungChains){
+                savedSamples = savedSamples + rungChain.getSavedSamples();
+            }
+            Log.warning.println("The rungs reached the precision target " + templateChain.getPrecisionTarget() + " with "
+                    + savedSamples + " fewer samples than " + nrOfRungs + " times the chainLength");
+        }
+    }
+
+    /**
+     * The weight of the mean of U at each of the values of beta in the trapezoid rule estimate of the log Bayes factor of each pair
+     * of neighbouring models ([row][pair]), where each pair is integrated over its own section of the path as in integrateSections
+     */
+    static double[][] calculateTrapezoidWeights(double[] betaValues, int nrOfModels){
+        int nrOfSections = nrOfModels - 1;
+        double[][] weights = new double[betaValues.length][nrOfSections];
+        for (int section = 0; section < nrOfSections; section++){
+            int previousRow = -1;
+            for (int row = 0; row < betaValues.length; row++){
+                double sectionBeta = (betaValues[row] * nrOfSections) - section;
+                if (sectionBeta > -1e-9 && sectionBeta < 1.0 + 1e-9){
+                    if (previousRow >= 0){
+                        double width = Math.abs(sectionBeta - ((betaValues[previousRow] * nrOfSections) - section));
+                        weights[previousRow][section] = weights[previousRow][section] + (0.5 * width);
+                        weights[row][section] = weights[row][section] + (0.5 * width);
+                    }
+                    previousRow = row;
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * The standard error of the mean of U each value of beta needs for the estimate of the log Bayes factor of each pair of neighbouring
+     * models to have at most the target standard error ([row][pair]), sharing the target equally between the values of beta.
+     * Values of beta which have no weight for a pair get an infinite target.
+     */
+    static double[][] calculateStandardErrorTargets(double[] betaValues, int nrOfModels, double target){
+        double[][] weights = calculateTrapezoidWeights(betaValues, nrOfModels);
+        double[][] targets = new double[betaValues.length][nrOfModels - 1];
+        for (int pair = 0; pair < nrOfModels - 1; pair++){
+            double sumOfSquaredWeights = 0.0;
+            for (double[] rowWeights : weights){
+                sumOfSquaredWeights = sumOfSquaredWeights + (rowWeights[pair] * rowWeights[pair]);
+            }
+            for (int row = 0; row < betaValues.length; row++){
+                targets[row][pair] = weights[row][pair] > 0.0 ? target / Math.sqrt(sumOfSquaredWeights) : Double.POSITIVE_INFINITY;
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Prints the mean values of U collected at each of several fixed values of beta, and the estimate calculated from them.
+     * (Log.warning rather than System.out, because BEAST closes System.out when it shows the operator rates at the end of each chain)
+     */
+    static void reportFixedBetaEstimate(String rowName, String whatWasAnalysed, double[] betaValues, UValueStatistics[] statistics, int nrOfModels){
+        int nrOfPairs = nrOfModels - 1;
+        double[][] meanUValues = new double[betaValues.length][nrOfPairs];
+
+        Log.warning.println();
+        StringBuilder header = new StringBuilder(rowName + "\tBetaValue\t");
+        for (int pair = 0; pair < nrOfPairs; pair++){
+            header.append(nrOfPairs == 1 ? "MeanUValue" : "MeanUValue_" + pair + "_" + (pair + 1)).append("\t");
+            header.append(nrOfPairs == 1 ? "StandardError" : "StandardError_" + pair + "_" + (pair + 1)).append("\t");
+        }
+        Log.warning.println(header + "Samples");
+        for (int row = 0; row < betaValues.length; row++){
+            StringBuilder line = new StringBuilder(row + "\t" + betaValues[row] + "\t");
+            for (int pair = 0; pair < nrOfPairs; pair++){
+                meanUValues[row][pair] = statistics[row].getMean(pair);
+                line.append(meanUValues[row][pair]).append("\t");
+                line.append(statistics[row].getStandardError(pair)).append("\t");
+            }
+            Log.warning.println(line.toString() + statistics[row].getCount());
+        }
+
+        Log.warning.println();
+        Log.warning.println(whatWasAnalysed + " analysed. The log Bayes factor calculated is: ");
+        if (nrOfPairs == 1){
+            double[] UValues = new double[betaValues.length];
+            for (int row = 0; row < betaValues.length; row++){
+                UValues[row] = meanUValues[row][0];
+            }
+            Log.warning.println(ModelComparisonCalculator.integrateOverBeta(betaValues, UValues));
+        }
+        else {
+            ModelComparisonCalculator.printPairwiseLogBayesFactors(ModelComparisonCalculator.integrateSections(betaValues, meanUValues, nrOfModels), Log.warning);
+        }
+
+        //The means at the different values of beta come from separate samples, so their variances add up with the squares of their weights
+        double[][] weights = calculateTrapezoidWeights(betaValues, nrOfModels);
+        for (int pair = 0; pair < nrOfPairs; pair++){
+            double variance = 0.0;
+            for (int row = 0; row < betaValues.length; row++){
+                if (weights[row][pair] > 0.0){
+                    double standardError = statistics[row].getStandardError(pair);
+                    variance = variance + (weights[row][pair] * weights[row][pair] * standardError * standardError);
+                }
+            }
+            Log.warning.println("Standard error (batch means)" + (nrOfPairs == 1 ? "" : " of model " + (pair + 1) + " against model " + pair) + ": " + Math.sqrt(variance));
+        }
+    }
+}
@@ -24,11 +24,33 @@
 */
 package beast.core;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.DoubleSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -39,8 +61,17 @@ import org.antlr.v4.runtime.Parser;
 import org.xml.sax.SAXException;
 
 import beast.core.util.CompoundDistribution;
+import beast.core.util.BetaPath;
+import beast.core.util.BetaPathSegment;
+import beast.core.util.BetaSchedule;
 import beast.core.util.Evaluator;
+import beast.core.util.InnerLogPValues;
+import beast.core.util.LinearBetaSchedule;
 import beast.core.util.Log;
+import beast.core.util.ModelComparisonLogger;
+import beast.core.util.ModelComparisonMonitor;
+import beast.core.util.ModelComparisonProfile;
+import beast.core.util.UValueStatistics;
 import beast.util.Randomizer;
 
 @Description("MCMC chain. This is the main element that controls which posterior " +
@@ -60,19 +91,78 @@ import beast.util.Randomizer;
  */
 public class ModelComparisonMCMC extends MCMC {
 
-    final public Input<String> betaControlModeInput = new Input<>("betaControlMode", "specify the way that beta should be controlled across the MCMC chain. valid options: 'static' (don't change beta); 'oneway' (beta will change from  0 to 1 OR 1 to 0); 'bothways' (beta will change in one direction and then return to the start)", Input.Validate.REQUIRED);
+    final public Input<String> betaControlModeInput = new Input<>("betaControlMode", "specify the way that beta should be controlled across the MCMC chain. valid options: 'static' (don't change beta); 'oneway' (beta will change from  0 to 1 OR 1 to 0); 'bothways' (beta will change in one direction and then return to the start); 'ladder' (independent chains are run at fixed values of beta from 0 to 1, several at a time); 'replicaexchange' (like 'ladder', but all the chains run at once and neighbouring chains periodically propose to swap their values of beta)", Input.Validate.REQUIRED);
 
     final public Input<RealParameter> betaParameterInput = new Input<>("betaParameter", "the parameter which will be used in calculating the posterior, switching between models", Input.Validate.REQUIRED);
 
+    final public Input<Double> betaEndInput = new Input<>("betaEnd", "the value of beta at the other end of the path from the starting value of betaParameter, when betaControlMode is 'oneway' or 'bothways'. Used to run the path in segments, e.g. by ModelComparisonCoordinator (default 1 minus the starting value, i.e. the whole path)");
+
+    final public Input<String> betaScheduleInput = new Input<>("betaSchedule", "how beta moves along the path when betaControlMode is 'oneway' or 'bothways'. valid options: 'linear' (beta changes by the same amount every sample); 'adaptive' (beta moves more slowly where U is changing fast or is noisy, and faster where it is flat) (default linear)", "linear");
+
+    final public Input<BetaSchedule> scheduleInput = new Input<>("schedule", "BetaSchedule which gives the value of beta for every sample when betaControlMode is 'oneway' or 'bothways', e.g. LinearBetaSchedule, WarpedBetaSchedule or StepwiseBetaSchedule (takes the place of betaSchedule)");
+
+    final public Input<Integer> betaScheduleWindowInput = new Input<>("betaScheduleWindow", "number of samples the local mean and variance of U are averaged over by the adaptive betaSchedule (default 0, a tenth of the samples it takes beta to go from one end to the other)", 0);
+
+    final public Input<Integer> betaReweightCheckEveryInput = new Input<>("betaReweightCheckEvery", "when beta changes, the posterior is re-weighted using the cached inner posterior values instead of recalculating them. If greater than zero, the re-weighted value is checked against a full recalculation every this many samples (default 0, never check)", 0);
+
+    final public Input<Integer> nrOfRungsInput = new Input<>("nrOfRungs", "number of evenly spaced values of beta from 0 to 1 to run a chain at, when betaControlMode is 'ladder' (default 11)", 11);
+
+    final public Input<Integer> nrOfThreadsInput = new Input<>("nrOfThreads", "maximum number of ladder rungs to run at the same time, when betaControlMode is 'ladder'. The rungs all draw their random numbers from BEAST's one Randomizer, so a ladder with more than one thread (like a replica exchange run) cannot be repeated exactly from its seed (default 1)", 1);
+
+    final public Input<Integer> swapEveryInput = new Input<>("swapEvery", "number of samples between proposals to swap the values of beta of neighbouring replicas, when betaControlMode is 'replicaexchange' (default 100)", 100);
+
+    final public Input<Boolean> deferZeroWeightModelInput = new Input<>("deferZeroWeightModel", "if true, while beta is 0 or 1 the inner posterior which has zero weight is not calculated after every proposal, only at samples which are logged (and when beta moves away from the end of the path), which are then also the only samples at which the values of U of a ladder rung or step are collected. Speeds up 'static' chains at the ends of the path and burn-in (default false)", false);
+
+    final public Input<Boolean> warmStartInput = new Input<>("warmStart", "if true, when betaControlMode is 'ladder' each rung after the first starts from the state of the rung below it, handed over once that rung gets to warmStartHandoverSample, rather than from the initial state. The rungs are pipelined: a rung starts as soon as the one below it has handed over its state (default false)", false);
+
+    final public Input<Integer> warmStartHandoverSampleInput = new Input<>("warmStartHandoverSample", "the sample at which each ladder rung hands its state over to the rung above it, when warmStart is set (default 0, a tenth of the chainLength)", 0);
+
+    final public Input<Integer> warmStartBurnInInput = new Input<>("warmStartBurnIn", "number of pre-burnin samples of each ladder rung which starts from the state of the rung below it, instead of preBurnin, when warmStart is set (default 0)", 0);
+
+    final public Input<Double> precisionTargetInput = new Input<>("precisionTarget", "if greater than zero, the standard error the estimate of the log Bayes factor should reach, when betaControlMode is 'ladder' or the schedule holds beta fixed at several values (StepwiseBetaSchedule). Each rung stops, or the chain moves on to the next step of beta, as soon as the batch means standard error of its mean of U is small enough (default 0, always run the whole chainLength)", 0.0);
+
+    final public Input<Integer> precisionCheckEveryInput = new Input<>("precisionCheckEvery", "number of samples between checks of the standard error against the precisionTarget (default 1000)", 1000);
+
+    final public Input<Integer> precisionMinSamplesInput = new Input<>("precisionMinSamples", "least number of samples of U at a rung or step of beta before it may stop because of the precisionTarget (default 1000)", 1000);
+
+    final public Input<Boolean> profileInput = new Input<>("profile", "if true, times every proposal and every calculation of an inner posterior, and counts the outcomes of the proposals, for each operator and window of beta. The table is printed at the end of the chain (default false)", false);
+
+    final public Input<Integer> profileBetaWindowsInput = new Input<>("profileBetaWindows", "number of equal windows of beta from 0 to 1 the profile is divided into (default 10)", 10);
+
+    final public Input<Integer> profileEveryInput = new Input<>("profileEvery", "if greater than zero, the profile so far is also printed every this many samples (default 0, only at the end)", 0);
+
+    final public Input<Boolean> monitorInput = new Input<>("monitor", "if true, the progress of the chain (sample, beta, U, samples per second, time remaining and a running estimate of the log Bayes factor) is available over JMX while it runs, as the MBean beast.core:type=ModelComparisonMCMC,name=(id) (default false)", false);
+
     /*** Custom things below for ModelComparison ***/
-    private Distribution[] innerPosteriors;
-    private double[] oldLogLikelihoods;
-    private double[] newLogLikelihoods;
+    private InnerLogPValues innerLogPValues; // of the current state and of the proposed state
     private String betaControlMode;
     private double betaStartingValue;
-    private int inversionSampleNr;
-    private double betaIncrement;
-
+    private BetaPath betaPath; // null for 'static' (and so for ladder rungs)
+    private ModelComparisonProfile profile; // null unless profile is set
+    private double[] standardErrorTargets; // for the values of U collected now, with a precisionTarget. null if there are none
+    private int savedSamples; // samples of chainLength skipped because the precisionTarget was reached
+    //For warm started ladder rungs: the state this chain hands over to the rung above it, and the rung below it to take the state from
+    private CompletableFuture<String> handoverState;
+    private int handoverSampleNr;
+    private ModelComparisonMCMC warmStartSource;
+    private ModelComparisonMonitor monitor; // null unless monitor is set
+    private int betaReweightCheckEvery;
+    private UValueStatistics uValueStatistics; // only collected for the rungs of a ladder
+    private double[] pairUValues;
+    private int deferredModelRefreshEvery; // samples at which any logger logs
+    private ModelComparisonLogger[] estimatingLoggers; // fed with every sample, see ModelComparisonLogger.estimate
+    private boolean[] textlessLoggers; // loggers with nothing to log but ModelComparisonLoggers which write no text, which only log to the binary files
+    private ModelComparisonReplicaExchange replicaExchange; // only set for the replicas of a replica exchange run
+    private int swapEvery;
+
+    //The checkpoint written next to the state file, from which a resumed chain carries on along the path of beta
+    private static final int CHECKPOINT_MAGIC = 0x4D434D43; // "MCMC"
+    private static final int CHECKPOINT_VERSION = 2;
+    private ExecutorService checkpointWriter; // writes the state file and checkpoint off the sampling thread
+    private Future<?> pendingCheckpointWrite;
+    private File operatorScheduleFile; // which the operator schedule is stored to before it goes into the state file
+    private Integer replacedSampleOffset; // the Logger.sampleOffset the resumed log files set, while the chain runs without it
+    private int innerLogPVerifiedSampleNr = Integer.MIN_VALUE; // the sample at which a full recalculation last confirmed the cached inner posteriors, if no proposal has been accepted since
 
 
    //Because it is private, need to have this unless decide to not use it:
@@ -85,7 +175,7 @@ public class ModelComparisonMCMC extends MCMC {
         //Should assume that we always are working in the ModelComparison context
 
         betaControlMode = betaControlModeInput.get().toLowerCase();
-        if (betaControlMode.equals("static") || betaControlMode.equals("oneway") || betaControlMode.equals("bothways")){
+        if (betaControlMode.equals("static") || betaControlMode.equals("oneway") || betaControlMode.equals("bothways") || betaControlMode.equals("ladder") || betaControlMode.equals("replicaexchange")){
             betaStartingValue = betaParameterInput.get().getValue(); // Just to set its starting value
             ((ModelComparisonDistribution) posteriorInput.get()).setBetaValue(betaStartingValue);
         }
@@ -93,16 +183,12 @@ public class ModelComparisonMCMC extends MCMC {
 
             System.out.println("Invalid option specified for betaControlMode (on the ModelComparisonMCMC object)");
             System.out.println("the value you specified was: \"" + betaControlMode + '"');
-            System.out.println("valid options are: 'static' (don't change beta); 'oneway' (beta will change from  0 to 1 OR 1 to 0); 'bothways' (beta will change in one direction and then return to the start)");
+            System.out.println("valid options are: 'static' (don't change beta); 'oneway' (beta will change from  0 to 1 OR 1 to 0); 'bothways' (beta will change in one direction and then return to the start); 'ladder' (chains are run at fixed values of beta from 0 to 1); 'replicaexchange' (ladder chains which swap values of beta)");
             throw new IllegalArgumentException("Invalid option specified for betaControlMode (on the ModelComparisonMCMC object)");
         }
 
-            innerPosteriors = new Distribution[2];
-            innerPosteriors[0] = ((ModelComparisonDistribution) posteriorInput.get()).pDistributions.get().get(0);
-            innerPosteriors[1] = ((ModelComparisonDistribution) posteriorInput.get()).pDistributions.get().get(1);
-            oldLogLikelihoods = new double[2];
-
-
+        ModelComparisonDistribution distribution = (ModelComparisonDistribution) posteriorInput.get();
+        pairUValues = new double[distribution.getNrOfModels() - 1];
 
         if (betaStartingValue != 0.0 || betaStartingValue != 1.0){
             System.out.println();
@@ -110,30 +196,115 @@ public class ModelComparisonMCMC extends MCMC {
             System.out.println();
         }
 
-        if( ! betaControlMode.equals("static")){
+        validateInputCombinations();
+
+        if(betaControlMode.equals("oneway") || betaControlMode.equals("bothways")){
             chainLength = chainLengthInput.get();
-            initBetaIncrement();
+            initBetaPath();
+        }
+        else if(betaControlMode.equals("ladder") || betaControlMode.equals("replicaexchange")){
+            if (nrOfRungsInput.get() < 2){
+                throw new IllegalArgumentException("nrOfRungs must be at least 2 when betaControlMode is '" + betaControlMode + "' (on the ModelComparisonMCMC object)");
+            }
+            if (swapEveryInput.get() < 1){
+                throw new IllegalArgumentException("swapEvery must be at least 1 (on the ModelComparisonMCMC object)");
+            }
+            if (nrOfThreadsInput.get() < 1){
+                throw new IllegalArgumentException("nrOfThreads must be at least 1 (on the ModelComparisonMCMC object)");
+            }
         }
 
-        oldLogLikelihoods[0] = innerPosteriors[0].calculateLogP();
-        oldLogLikelihoods[1] = innerPosteriors[1].calculateLogP();
-
-        ((ModelComparisonDistribution) posteriorInput.get()).cacheInnerLogPValues(oldLogLikelihoods);
-
-    } // init
+        if (precisionTargetInput.get() > 0.0){
+            if (precisionCheckEveryInput.get() < 1 || precisionMinSamplesInput.get() < 0){
+                throw new IllegalArgumentException("precisionCheckEvery must be at least 1 and precisionMinSamples must not be negative (on the ModelComparisonMCMC object)");
+            }
+            if ( ! betaControlMode.equals("ladder") && (betaPath == null || betaPath.getSegmentStatistics().isEmpty())){
+                throw new IllegalArgumentException("precisionTarget can only be used when betaControlMode is 'ladder', or with a schedule which holds beta fixed at several values such as StepwiseBetaSchedule (on the ModelComparisonMCMC object)");
+            }
+        }
 
-    @Override
-    public void run() throws IOException, SAXException, ParserConfigurationException {
+        if (warmStartInput.get()){
+            if ( ! betaControlMode.equals("ladder")){
+                throw new IllegalArgumentException("warmStart can only be used when betaControlMode is 'ladder' (on the ModelComparisonMCMC object)");
+            }
+            if (warmStartHandoverSampleInput.get() < 0 || warmStartHandoverSampleInput.get() > chainLengthInput.get() || warmStartBurnInInput.get() < 0){
+                throw new IllegalArgumentException("warmStartHandoverSample must be between 0 and the chainLength, and warmStartBurnIn must not be negative (on the ModelComparisonMCMC object)");
+            }
+        }
 
+        betaReweightCheckEvery = betaReweightCheckEveryInput.get();
+        if (betaReweightCheckEvery < 0){
+            throw new IllegalArgumentException("betaReweightCheckEvery must not be negative (on the ModelComparisonMCMC object)");
+        }
 
+        innerLogPValues = new InnerLogPValues(distribution, operatorsInput.get());
+        distribution.shareIdenticalComponents(startStateInput.get().stateNodeInput.get());
+        if (deferZeroWeightModelInput.get()){
+            innerLogPValues.deferZeroWeightModels(startStateInput.get());
+        }
 
+        if (profileInput.get()){
+            if (profileEveryInput.get() < 0){
+                throw new IllegalArgumentException("profileEvery must not be negative (on the ModelComparisonMCMC object)");
+            }
+            profile = new ModelComparisonProfile(operatorsInput.get(), innerLogPValues.getNrOfModels(), profileBetaWindowsInput.get());
+            distribution.setTimeModels(true);
+        }
 
+        innerLogPValues.calculate();
 
+    } // init
 
+    /**
+     * Rejects inputs which would be ignored with the other inputs given, rather than letting the chain run without them
+     */
+    private void validateInputCombinations(){
+        boolean hasBetaPath = betaControlMode.equals("oneway") || betaControlMode.equals("bothways");
+        String betaSchedule = betaScheduleInput.get().toLowerCase();
+        if ( ! hasBetaPath && (betaEndInput.get() != null || scheduleInput.get() != null || ! betaSchedule.equals("linear") || betaScheduleWindowInput.get() != 0)){
+            throw new IllegalArgumentException("betaEnd, betaSchedule, schedule and betaScheduleWindow can only be used when betaControlMode is 'oneway' or 'bothways' (on the ModelComparisonMCMC object)");
+        }
+        if (scheduleInput.get() != null && ! betaSchedule.equals("linear")){
+            throw new IllegalArgumentException("schedule takes the place of betaSchedule, so only one of them can be given (on the ModelComparisonMCMC object)");
+        }
+        if (betaScheduleWindowInput.get() < 0 || (betaScheduleWindowInput.get() > 0 && ! betaSchedule.equals("adaptive"))){
+            throw new IllegalArgumentException("betaScheduleWindow can only be used with the adaptive betaSchedule, and must not be negative (on the ModelComparisonMCMC object)");
+        }
+        if (nrOfThreadsInput.get() != 1 && ! betaControlMode.equals("ladder")){
+            throw new IllegalArgumentException("nrOfThreads can only be used when betaControlMode is 'ladder' (on the ModelComparisonMCMC object)");
+        }
+        if ( ! warmStartInput.get() && (warmStartHandoverSampleInput.get() != 0 || warmStartBurnInInput.get() != 0)){
+            throw new IllegalArgumentException("warmStartHandoverSample and warmStartBurnIn can only be used with warmStart (on the ModelComparisonMCMC object)");
+        }
+        if ( ! profileInput.get() && profileEveryInput.get() != 0){
+            throw new IllegalArgumentException("profileEvery can only be used with profile (on the ModelComparisonMCMC object)");
+        }
+    }
 
+    @Override
+    public void run() throws IOException, SAXException, ParserConfigurationException {
 
+        try {
+            if (betaControlMode.equals("ladder")){
+                //This chain is only the template for the rungs, which each run as a chain of their own
+                new ModelComparisonLadder(this, nrOfRungsInput.get(), nrOfThreadsInput.get()).run();
+                return;
+            }
+            if (betaControlMode.equals("replicaexchange")){
+                new ModelComparisonReplicaExchange(this, nrOfRungsInput.get()).run();
+                return;
+            }
 
-        super.run();
+            super.run();
+        }
+        finally {
+            //The threads the models are calculated on in parallel are only needed while the chain runs
+            getModelComparisonDistribution().shutdown();
+            if (replacedSampleOffset != null){
+                Logger.sampleOffset = replacedSampleOffset;
+                replacedSampleOffset = null;
+            }
+        }
 
 
         /*
@@ -170,104 +341,598 @@ public class ModelComparisonMCMC extends MCMC {
 
     } // run;
 
-    private void initBetaIncrement(){
-        double intervalSide0 = 1.0 - betaParameterInput.get().getValue();
-        double intervalSide1 = 1.0 - intervalSide0;
+    /**
+     * Turns this chain into one rung of a ladder: beta is held fixed at betaValue and the sampled values of U are collected
+     */
+    public void initAsLadderRung(double betaValue){
+        betaControlMode = "static";
+        betaPath = null;
+        ((ModelComparisonDistribution) posteriorInput.get()).setBetaValue(betaValue);
+        uValueStatistics = new UValueStatistics();
+    }
+
+    public UValueStatistics getUValueStatistics(){
+        return uValueStatistics;
+    }
+
+    public double getPrecisionTarget(){
+        return precisionTargetInput.get();
+    }
+
+    /**
+     * For a ladder rung: the chain stops once the standard error of each pair's mean of U is below its target (see precisionTarget)
+     */
+    void setStandardErrorTargets(double[] standardErrorTargets){
+        this.standardErrorTargets = standardErrorTargets;
+    }
+
+    public boolean isWarmStart(){
+        return warmStartInput.get();
+    }
+
+    /**
+     * For a warm started ladder rung: this chain hands its state over (to the rung above it) once it gets to the handover sample
+     * @param warmStartSource the rung whose handed over state this chain starts from, or null for the first rung
+     */
+    void initWarmStart(ModelComparisonMCMC warmStartSource){
+        this.warmStartSource = warmStartSource;
+        handoverState = new CompletableFuture<>();
+        handoverSampleNr = warmStartHandoverSampleInput.get() > 0 ? warmStartHandoverSampleInput.get() : chainLengthInput.get() / 10;
+    }
+
+    /**
+     * Called by the ladder if the rung stops with an exception, so that the rung above it does not wait for its state for ever
+     */
+    void cancelHandover(Throwable cause){
+        if (handoverState != null){
+            handoverState.completeExceptionally(cause);
+        }
+    }
 
-        double betaIntervalSize = Math.abs(intervalSide0 - intervalSide1);
+    private void handOverState(int sampleNr){
+        if (handoverState != null && ! handoverState.isDone()){
+            handoverState.complete(state.toXML(sampleNr));
+        }
+    }
 
-        double incrementSignFactor = 1.0;
-        if(intervalSide0 < intervalSide1){
-            //Use negative increments
-            incrementSignFactor = -1.0;
+    /**
+     * Waits for the rung below this one to hand over its state, and carries on from it
+     */
+    private void takeOverWarmStartState() throws IOException {
+        String stateXML;
+        try {
+            stateXML = warmStartSource.handoverState.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the state of the ladder rung below", e);
+        } catch (ExecutionException e) {
+            throw new IOException("The ladder rung below stopped before handing over its state", e.getCause());
         }
+        state.fromXML(stateXML);
+        oldLogLikelihood = state.robustlyCalcPosterior(posterior);
+        burnIn = warmStartBurnInInput.get(); // instead of preBurnin, which run() has set
+    }
 
-        if(betaControlMode.equals("oneway")){
-            betaIncrement = (betaIntervalSize / (chainLength) ) * incrementSignFactor; //TODO this is currently very hacky
+    /**
+     * How many samples fewer than chainLength the chain took because of the precisionTarget
+     */
+    public int getSavedSamples(){
+        return savedSamples;
+    }
 
+    private boolean isPrecisionTargetReached(int sampleNr){
+        return standardErrorTargets != null && uValueStatistics != null && sampleNr > 0 && sampleNr % precisionCheckEveryInput.get() == 0
+                && uValueStatistics.getCount() >= precisionMinSamplesInput.get() && uValueStatistics.isStandardErrorBelow(standardErrorTargets);
+    }
 
+    /**
+     * Skips the rest of the samples planned for the current step of beta (or for the whole chain of a ladder rung)
+     */
+    private void skipToEndOfStep(int sampleNr){
+        int skippedSamples;
+        if (betaPath != null){
+            skippedSamples = betaPath.getSegment().getLastSample() - (sampleNr + savedSamples);
+            Log.info.println("Reached the precision target at beta = " + ((ModelComparisonDistribution) posterior).getBetaValue()
+                    + " after " + uValueStatistics.getCount() + " samples, skipping the other " + skippedSamples);
         }
-        else if(betaControlMode.equals("bothways")){
-            double effectiveChainLength = (chainLength / 2.0);// - 1;
-            betaIncrement = (betaIntervalSize / effectiveChainLength) * incrementSignFactor; //TODO THIS IS WRONG
-            //Should this be chainLength - 1 not have that? I believe that it should be - 1 when doing bothways if at the far extreme we don't change the value of beta (ie beta is the same for two consecutive samples before then returning downwards)
-            inversionSampleNr = chainLength / 2; //integer division
+        else {
+            skippedSamples = chainLength - sampleNr;
         }
+        savedSamples = savedSamples + skippedSamples;
+        standardErrorTargets = null;
+    }
+
+    public void setUValueStatistics(UValueStatistics uValueStatistics){
+        this.uValueStatistics = uValueStatistics;
+    }
+
+    /**
+     * Makes this ladder rung one of the replicas of a replica exchange run, which waits for swaps to be proposed every swapEvery samples
+     */
+    void initAsReplica(ModelComparisonReplicaExchange replicaExchange){
+        this.replicaExchange = replicaExchange;
+        swapEvery = swapEveryInput.get();
+    }
+
+    public ModelComparisonDistribution getModelComparisonDistribution(){
+        return (ModelComparisonDistribution) posteriorInput.get();
+    }
 
-        System.out.println("BetaIncrement: " + betaIncrement);
+    /**
+     * The inner posterior values of the current state of the chain. Only valid between samples.
+     */
+    public double[] getCurrentInnerLogPValues(){
+        return innerLogPValues.getCurrent();
     }
 
+    /**
+     * Changes beta part way through the chain (between samples), re-weighting the posterior of the current state
+     */
+    public void moveToBetaValue(double betaValue){
+        ModelComparisonDistribution distribution = getModelComparisonDistribution();
+        distribution.setBetaValue(betaValue);
+        innerLogPValues.updateZeroWeightModels();
+        oldLogLikelihood = distribution.calculateLogPFromInnerLogPValues(innerLogPValues.getCurrent());
+    }
+
+    private void initBetaPath(){
+        //Beta goes from its starting value to the other side of the path (from 0 to 1 or from 1 to 0), or to betaEnd for a segment of the path
+        double betaEndValue = betaEndInput.get() != null ? betaEndInput.get() : 1.0 - betaStartingValue;
+        if (betaEndInput.get() != null && (betaEndValue < 0.0 || betaEndValue > 1.0 || betaEndValue == betaStartingValue)){
+            throw new IllegalArgumentException("betaEnd must be between 0 and 1, and different from the starting value of beta (on the ModelComparisonMCMC object)");
+        }
+        boolean bothways = betaControlMode.equals("bothways");
+
+        BetaSchedule schedule = scheduleInput.get();
+        if (schedule == null){
+            String betaSchedule = betaScheduleInput.get().toLowerCase();
+            if (betaSchedule.equals("adaptive")){
+                betaPath = new BetaPath(null, betaScheduleWindowInput.get(), betaStartingValue, betaEndValue, chainLength, bothways);
+                System.out.println("Using the adaptive beta schedule");
+                return;
+            }
+            else if (betaSchedule.equals("linear")){
+                schedule = new LinearBetaSchedule();
+            }
+            else {
+                System.out.println("valid options for betaSchedule are: 'linear'; 'adaptive'");
+                throw new IllegalArgumentException("Invalid option specified for betaSchedule (on the ModelComparisonMCMC object): " + betaSchedule);
+            }
+        }
+
+        betaPath = new BetaPath(schedule, 0, betaStartingValue, betaEndValue, chainLength, bothways);
+        ((ModelComparisonDistribution) posteriorInput.get()).setEquilibrationLogged(betaPath.hasEquilibration());
+        if (precisionTargetInput.get() > 0.0){
+            initStepStandardErrorTargets();
+        }
+
+        System.out.println("Using the beta schedule " + schedule.getClass().getSimpleName() + " (" + betaPath.getNrOfSegments() + " segments)");
+    }
 
     private boolean incrementBetaIfRequired(int sampleNr){
-        if(betaControlMode.equals("oneway")) {
-            _doActualIncrement();
-            return true;
+        //Beta is held at its starting value during burn-in
+        if (sampleNr <= 0 || betaPath == null){ //ie. if "static"
+            return false;
+        }
 
+        ModelComparisonDistribution distribution = (ModelComparisonDistribution) posterior;
+        BetaPathSegment segment = betaPath.getSegment();
+        double newValue = betaPath.nextBetaValue(sampleNr, distribution.getBetaValue(), currentUValue);
+        if (betaPath.getSegment() != segment){
+            enterBetaPathSegment();
         }
-        else if (betaControlMode .equals("bothways")){
-            //Do same as for one way, but also once beta gets to the other extreme (based on chainLength), need to invert betaIncrement for the next step
-            //at the initialisation time the betaIncrement should take into account the size of
+        if (Double.isNaN(newValue)){
+            return false;
+        }
+        distribution.setBetaValue(newValue);
+        return true;
+    }
 
-            if (sampleNr == inversionSampleNr + 1){
-                betaIncrement = ( - betaIncrement);
+    //U for the adaptive schedule. There is only one, so it is not allocated anew for every sample
+    private final DoubleSupplier currentUValue = () -> {
+        if (innerLogPValues.hasStaleModels()){
+            refreshDeferredModel(); // U needs the real values of both inner posteriors
+        }
+        return ((ModelComparisonDistribution) posterior).calculateU();
+    };
 
+    /**
+     * Collects U, and checks it against the precisionTarget, for the segment of the path of beta the chain has got to
+     */
+    private void enterBetaPathSegment(){
+        BetaPathSegment segment = betaPath.getSegment();
+        uValueStatistics = segment.getUValueStatistics();
+        standardErrorTargets = segment.getStandardErrorTargets();
+        ((ModelComparisonDistribution) posterior).setEquilibrating(segment.isEquilibrating());
+    }
 
+    /**
+     * For schedules which hold beta fixed at several values (such as StepwiseBetaSchedule), reports the mean of U at each of them and the estimate for each pass
+     */
+    private void reportBetaPathSteps(){
+        for (List<BetaPathSegment> passSteps : betaPath.getPassSteps()){
+            if (passSteps.size() < 2){
+                continue;
+            }
+            double[] betaValues = getStepBetaValues(passSteps);
+            UValueStatistics[] statistics = new UValueStatistics[passSteps.size()];
+            for (int step = 0; step < statistics.length; step++){
+                statistics[step] = passSteps.get(step).getUValueStatistics();
             }
-                _doActualIncrement();
+            ModelComparisonLadder.reportFixedBetaEstimate("Step", "Steps of beta", betaValues, statistics, innerLogPValues.getNrOfModels());
+        }
+    }
 
-            return true;
+    /**
+     * Shares the precisionTarget out between the steps of each pass, as for the rungs of a ladder
+     */
+    private void initStepStandardErrorTargets(){
+        int nrOfModels = ((ModelComparisonDistribution) posteriorInput.get()).getNrOfModels();
+        for (List<BetaPathSegment> passSteps : betaPath.getPassSteps()){
+            double[][] targets = ModelComparisonLadder.calculateStandardErrorTargets(getStepBetaValues(passSteps), nrOfModels, precisionTargetInput.get());
+            for (int step = 0; step < passSteps.size(); step++){
+                passSteps.get(step).setStandardErrorTargets(targets[step]);
+            }
         }
-        else { //ie. if "static"
-            return false;
+    }
+
+    private static double[] getStepBetaValues(List<BetaPathSegment> passSteps){
+        double[] betaValues = new double[passSteps.size()];
+        for (int step = 0; step < betaValues.length; step++){
+            betaValues[step] = passSteps.get(step).getBetaValue(passSteps.get(step).getFirstSample());
         }
+        return betaValues;
+    }
 
+    private void initDeferredModelRefreshEvery(){
+        //The deferred inner posterior needs to be up to date at every sample at which any of the loggers logs
+        deferredModelRefreshEvery = 0;
+        for (Logger logger : loggersInput.get()){
+            deferredModelRefreshEvery = greatestCommonDivisor(deferredModelRefreshEvery, logger.everyInput.get());
+        }
+        if (deferredModelRefreshEvery <= 0){
+            deferredModelRefreshEvery = 1;
+        }
+    }
 
-        /*
-        if (((ModelComparisonDistribution) posterior).betaControlAutomatically){
-            //Increment beta sliiiiightly
-            double betaIncrement = ((ModelComparisonDistribution) posterior).betaIncrement;
+    private static int greatestCommonDivisor(int a, int b){
+        while (b != 0){
+            int remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        return a;
+    }
 
-            ((ModelComparisonDistribution) posterior).betaValue = ((ModelComparisonDistribution) posterior).betaValue + betaIncrement;
-            return true;
+    private void refreshDeferredModel(){
+        state.store(-1);
+        for (int stateNodeNr : innerLogPValues.getStaleModelStateNodes()){
+            state.getEditableStateNode(stateNodeNr, null).setEverythingDirty(true);
         }
-        else{
-            return false;
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        innerLogPValues.refreshStaleModels();
+        state.setEverythingDirty(false);
+        state.acceptCalculationNodes();
+        oldLogLikelihood = ((ModelComparisonDistribution) posterior).calculateLogPFromInnerLogPValues(innerLogPValues.getCurrent());
+    }
+
+    private double recalculateOldLogLikelihoodWithNewBeta(int sampleNr){
+        //Changing beta does not change either of the inner posteriors, so the cached values only need to be re-weighted
+        //innerLogPValues always holds the inner posterior values of the current (accepted) state
+        double reweightedLogLikelihood = ((ModelComparisonDistribution) posterior).calculateLogPFromInnerLogPValues(innerLogPValues.getCurrent());
+
+        if (betaReweightCheckEvery > 0 && sampleNr % betaReweightCheckEvery == 0){
+            reweightedLogLikelihood = verifyReweightedLogLikelihood(sampleNr, reweightedLogLikelihood);
         }
-        */
+
+        return reweightedLogLikelihood;
+    }
+
+    private double verifyReweightedLogLikelihood(int sampleNr, double reweightedLogLikelihood){
+        //Full recalculation of all the inner posteriors. This also refreshes the inner values cached on the ModelComparisonDistribution
+        double fullLogLikelihood = state.robustlyCalcPosterior(posterior);
+        double[] recalculatedLogLikelihoods = ((ModelComparisonDistribution) posterior).getInnerPosteriorLogP();
+
+        boolean matches = ! isTooDifferent(fullLogLikelihood, reweightedLogLikelihood);
+        if ( ! matches){
+            Log.warning.println("At sample " + sampleNr + " the re-weighted posterior did not match a full recalculation: "
+                    + reweightedLogLikelihood + " != " + fullLogLikelihood
+                    + " (cached inner values " + Arrays.toString(innerLogPValues.getCurrent())
+                    + "; recalculated " + Arrays.toString(recalculatedLogLikelihoods) + ")");
+        }
+
+        //Carry on from the recalculated values either way
+        innerLogPValues.copyFromDistribution();
+        innerLogPValues.clearStaleModels();
+        if (matches){
+            innerLogPVerifiedSampleNr = sampleNr;
+        }
+        return fullLogLikelihood;
+    }
+
+    private String getCheckpointFileName(){
+        return stateFileName + ".mc";
+    }
+
+    /**
+     * Stores the state file (with the operator schedule) and the checkpoint for the given sample.
+     * Both are copied into memory here and written by a background thread, so the chain carries on while they are written.
+     * Each file is written under a temporary name and then renamed, so a chain stopped part way through leaves the previous ones whole.
+     */
+    private void storeStateAndCheckpoint(int sampleNr) throws IOException {
+        //The binary logs are written up to here, so that a chain resumed from this state carries on from them
+        for (ModelComparisonLogger UValueLogger : getUValueLoggers()){
+            UValueLogger.flush();
+        }
+        byte[] stateXML = state.toXML(sampleNr).getBytes(StandardCharsets.UTF_8);
+        byte[] operatorSchedule = storeOperatorSchedule();
+        byte[] checkpoint = createCheckpoint(sampleNr);
+        byte[] stateFile = Arrays.copyOf(stateXML, stateXML.length + operatorSchedule.length);
+        System.arraycopy(operatorSchedule, 0, stateFile, stateXML.length, operatorSchedule.length);
+
+        waitForCheckpointWriter(); // only one is written at a time
+        if (checkpointWriter == null){
+            checkpointWriter = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ModelComparisonMCMC-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        //The checkpoint goes first: one newer than the state file is noticed when resuming, the other way around it is not
+        pendingCheckpointWrite = checkpointWriter.submit(() -> {
+            writeAtomically(getCheckpointFileName(), checkpoint);
+            writeAtomically(stateFileName, stateFile);
+            return null;
+        });
+    }
+
+    /**
+     * Logs the sample to the binary logs of the ModelComparisonLoggers of the loggers which log it
+     */
+    private void logToBinaryFiles(int sampleNr){
+        for (Logger logger : loggersInput.get()){
+            logToBinaryFiles(logger, sampleNr);
+        }
+    }
+
+    private void logToBinaryFiles(Logger logger, int sampleNr){
+        if (sampleNr < 0 || sampleNr % logger.everyInput.get() != 0){
+            return;
+        }
+        for (BEASTObject loggable : logger.loggersInput.get()){
+            if (loggable instanceof ModelComparisonLogger){
+                ((ModelComparisonLogger) loggable).logToBinaryFile(sampleNr);
+            }
+        }
+    }
+
+    private void initModelComparisonLoggers(){
+        List<ModelComparisonLogger> estimating = new ArrayList<>();
+        List<Logger> loggers = loggersInput.get();
+        textlessLoggers = new boolean[loggers.size()];
+        for (int loggerNr = 0; loggerNr < loggers.size(); loggerNr++){
+            boolean textless = ! loggers.get(loggerNr).loggersInput.get().isEmpty();
+            for (BEASTObject loggable : loggers.get(loggerNr).loggersInput.get()){
+                if (loggable instanceof ModelComparisonLogger){
+                    ModelComparisonLogger UValueLogger = (ModelComparisonLogger) loggable;
+                    textless = textless && ! UValueLogger.isLoggingText();
+                    if (UValueLogger.isEstimating()){
+                        estimating.add(UValueLogger);
+                    }
+                }
+                else {
+                    textless = false;
+                }
+            }
+            textlessLoggers[loggerNr] = textless;
+        }
+        estimatingLoggers = estimating.toArray(new ModelComparisonLogger[0]);
+    }
+
+    private List<ModelComparisonLogger> getUValueLoggers(){
+        List<ModelComparisonLogger> UValueLoggers = new ArrayList<>();
+        for (Logger logger : loggersInput.get()){
+            for (BEASTObject loggable : logger.loggersInput.get()){
+                if (loggable instanceof ModelComparisonLogger){
+                    UValueLoggers.add((ModelComparisonLogger) loggable);
+                }
+            }
+        }
+        return UValueLoggers;
+    }
+
+    /**
+     * The operator schedule as OperatorSchedule.storeToFile() appends it to the state file. It can only write to a file,
+     * so it is pointed at a file of its own for this, which is then read back.
+     */
+    private byte[] storeOperatorSchedule() throws IOException {
+        if (operatorScheduleFile == null){
+            operatorScheduleFile = File.createTempFile("ModelComparisonMCMC", ".operators");
+            operatorScheduleFile.deleteOnExit();
+        }
+        Files.write(operatorScheduleFile.toPath(), new byte[0]); // storeToFile() appends
+        operatorSchedule.setStateFileName(operatorScheduleFile.getPath());
+        try {
+            operatorSchedule.storeToFile();
+        }
+        finally {
+            operatorSchedule.setStateFileName(stateFileName);
+        }
+        return Files.readAllBytes(operatorScheduleFile.toPath());
     }
 
-    private void _doActualIncrement(){
-        double tempBeta = ((ModelComparisonDistribution) posterior).getBetaValue();
-        double newValue = tempBeta + betaIncrement;
-        //Just to ensure that slight rounding/double precision doesn't mean we get outside the correct range
-        if (newValue > 1.0){newValue = 1.0;}
-        if (newValue < 0.0){newValue = 0.0;}
-        ((ModelComparisonDistribution) posterior).setBetaValue(newValue);
+    private static void writeAtomically(String fileName, byte[] contents) throws IOException {
+        Path file = Paths.get(fileName);
+        Path newFile = Paths.get(fileName + ".new");
+        Files.write(newFile, contents);
+        try {
+            Files.move(newFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(newFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Waits until the last state file and checkpoint have been written, and passes on any problem writing them
+     */
+    private void waitForCheckpointWriter() throws IOException {
+        if (pendingCheckpointWrite == null){
+            return;
+        }
+        try {
+            pendingCheckpointWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the state file " + stateFileName, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Problem writing the state file " + stateFileName, e.getCause());
+        } finally {
+            pendingCheckpointWrite = null;
+        }
+    }
+
+    /**
+     * Where the chain is along the path of beta (and the values of U collected along it so far), to be written next to the state file
+     * so that a resumed chain carries on from the same sample rather than running the whole path again
+     */
+    private byte[] createCheckpoint(int sampleNr) throws IOException {
+        ModelComparisonDistribution distribution = (ModelComparisonDistribution) posterior;
+        ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(checkpoint)){
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeUTF(betaControlMode);
+            out.writeInt(chainLength);
+            out.writeInt(innerLogPValues.getNrOfModels());
+            out.writeInt(sampleNr);
+            out.writeInt(savedSamples);
+            out.writeDouble(distribution.getBetaValue());
+            for (int which_dist = 0; which_dist < innerLogPValues.getNrOfModels(); which_dist++){
+                out.writeBoolean(innerLogPValues.isStale(which_dist));
+                out.writeDouble(innerLogPValues.getCurrent()[which_dist]);
+            }
+            boolean isAdaptive = betaPath != null && betaPath.isAdaptive();
+            out.writeBoolean(isAdaptive);
+            if (isAdaptive){
+                betaPath.getAdaptiveSchedule().writeTo(out);
+            }
+            List<UValueStatistics> segmentStatistics = getBetaPathSegmentStatistics();
+            out.writeInt(segmentStatistics.size());
+            for (UValueStatistics statistics : segmentStatistics){
+                statistics.writeTo(out);
+            }
+        }
+        return checkpoint.toByteArray();
+    }
+
+    /**
+     * Carries on from the checkpoint written with the state file the chain was resumed from, if there is one
+     * @return the sample to carry on from
+     */
+    private int restoreCheckpoint(int firstSampleNr) throws IOException {
+        File checkpointFile = new File(getCheckpointFileName());
+        if ( ! checkpointFile.exists()){
+            Log.warning.println("There is no checkpoint " + checkpointFile + " to resume beta from, so the path of beta starts again");
+            return firstSampleNr;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))){
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION){
+                throw new IOException(checkpointFile + " is not a checkpoint of this version of ModelComparisonMCMC");
+            }
+            if ( ! in.readUTF().equals(betaControlMode) || in.readInt() != chainLength || in.readInt() != innerLogPValues.getNrOfModels()){
+                throw new IllegalArgumentException("The checkpoint " + checkpointFile + " was written by a chain with a different betaControlMode, chainLength or number of models");
+            }
+            int sampleNr = in.readInt();
+            int checkpointSavedSamples = in.readInt();
+            double betaValue = in.readDouble();
+            int stateSampleNr = readStateFileSampleNr();
+            if (stateSampleNr != sampleNr){
+                Log.warning.println("The checkpoint " + checkpointFile + " is for sample " + sampleNr + " but the state file is for sample " + stateSampleNr
+                        + " (the chain was stopped while they were being written), so the path of beta starts again");
+                return firstSampleNr;
+            }
+
+            //The inner posteriors have just been recalculated for the restored state, so they are only checked against the checkpoint
+            boolean isInnerLogPDifferent = false;
+            for (int which_dist = 0; which_dist < innerLogPValues.getNrOfModels(); which_dist++){
+                boolean stale = in.readBoolean();
+                double checkpointLogP = in.readDouble();
+                isInnerLogPDifferent = isInnerLogPDifferent || ( ! stale && isTooDifferent(checkpointLogP, innerLogPValues.getCurrent()[which_dist]));
+            }
+            if (isInnerLogPDifferent){
+                Log.warning.println("The inner posteriors of the restored state " + Arrays.toString(innerLogPValues.getCurrent())
+                        + " differ from those in the checkpoint " + checkpointFile + ". Carrying on from the recalculated values.");
+            }
+
+            boolean isAdaptive = betaPath != null && betaPath.isAdaptive();
+            if (in.readBoolean() != isAdaptive){
+                throw new IllegalArgumentException("The checkpoint " + checkpointFile + " was written by a chain with a different betaSchedule");
+            }
+            if (isAdaptive){
+                betaPath.getAdaptiveSchedule().readFrom(in);
+            }
+            List<UValueStatistics> segmentStatistics = getBetaPathSegmentStatistics();
+            if (in.readInt() != segmentStatistics.size()){
+                throw new IllegalArgumentException("The checkpoint " + checkpointFile + " was written by a chain with a different beta schedule");
+            }
+            for (UValueStatistics statistics : segmentStatistics){
+                statistics.readFrom(in);
+            }
+
+            savedSamples = checkpointSavedSamples;
+            if (betaPath != null && ! betaPath.isAdaptive()){
+                betaPath.moveToSample(sampleNr + savedSamples);
+                enterBetaPathSegment();
+            }
+            moveToBetaValue(betaValue);
+            Log.warning.println("Resuming from sample " + sampleNr + " with beta = " + betaValue);
+            return sampleNr + 1;
+        }
     }
 
-    private double recalculateOldLogLikelihoodWithNewBeta(){
-        //double[] inner_LogLikelihoods = new double[2];
+    private int readStateFileSampleNr() throws IOException {
+        //The first line of the state file is <itsabeastystatewerein version='2.0' sample='...'>
+        try (BufferedReader in = new BufferedReader(new FileReader(stateFileName))){
+            String firstLine = in.readLine();
+            Matcher matcher = Pattern.compile("sample='(\\d+)'").matcher(firstLine != null ? firstLine : "");
+            return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+        }
+    }
 
+    private List<UValueStatistics> getBetaPathSegmentStatistics(){
+        return betaPath != null ? betaPath.getSegmentStatistics() : new ArrayList<>();
+    }
 
-        oldLogLikelihoods = new double[2]; //old here means before the operator does something
+    //Evaluates the posterior for an operator which asks for it, as MCMC does. There is only one, so it is not allocated anew for every proposal
+    private class ProposalEvaluator implements Evaluator {
+        private Distribution evaluatorDistribution;
+        private int currentState;
 
-        oldLogLikelihoods[0] = innerPosteriors[0].calculateLogP();
-        oldLogLikelihoods[1] = innerPosteriors[1].calculateLogP();
-        ((ModelComparisonDistribution) posterior).cacheInnerLogPValues(oldLogLikelihoods);
+        @Override
+        public double evaluate() {
+            double logP = 0.0;
 
-        return ((ModelComparisonDistribution) posterior).calculateLogPFromInnerLogPValues(oldLogLikelihoods);
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
 
+            try {
+                logP = evaluatorDistribution.calculateLogP();
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
 
-        //inner_LogLikelihoods[0] = innerPosteriors[0].calculateLogP();
-        //inner_LogLikelihoods[1] = innerPosteriors[1].calculateLogP();
-        //Not sure if the above is going to cause some kind of issue elsewhere?
-        //System.out.println("oldLogLikelihoods[0] = " + oldLogLikelihoods[0]);
-        //System.out.println("oldLogLikelihoods[1] = " + oldLogLikelihoods[1]);
-        //System.out.println("newLogLikelihoods[0] = " + newLogLikelihoods[0]);
-        //System.out.println("newLogLikelihoods[1] = " + newLogLikelihoods[1]);
+            state.restore();
+            state.store(currentState);
 
+            return logP;
+        }
     }
 
+    private final ProposalEvaluator proposalEvaluator = new ProposalEvaluator();
+
 
 
     /**
@@ -283,17 +948,67 @@ public class ModelComparisonMCMC extends MCMC {
         int corrections = 0;
         final boolean isStochastic = super.posterior.isStochastic();
 
+        if (warmStartSource != null){
+            takeOverWarmStartState();
+        }
+
         if (burnIn > 0) {
             Log.warning.println("Please wait while BEAST takes " + burnIn + " pre-burnin samples");
         }
-        for (int sampleNr = -burnIn; sampleNr <= chainLength; sampleNr++) {
+
+        initModelComparisonLoggers();
+
+        //run() has just done a full calculation of the posterior (possibly after the state was initialised), so start from those inner values
+        innerLogPValues.copyFromDistribution();
+        if (betaPath != null && ! betaPath.isAdaptive()){
+            betaPath.moveToSample(0);
+            enterBetaPathSegment();
+        }
+        initDeferredModelRefreshEvery();
+        innerLogPValues.updateZeroWeightModels();
+
+        int firstSampleNr = -burnIn;
+        int resumedLogsEndSampleNr = Integer.MIN_VALUE;
+        if (restoreFromFile){
+            firstSampleNr = restoreCheckpoint(firstSampleNr);
+            if (firstSampleNr > 0 && Logger.sampleOffset >= 0){
+                //The resumed log files already end with the samples logged before the chain stopped (which may be after the checkpoint),
+                //and the sample numbers carry on from the checkpoint rather than from the end of the log files.
+                //The offset is a single static value which every Logger adds, so it is only replaced while this chain runs (see run())
+                resumedLogsEndSampleNr = Logger.sampleOffset;
+                replacedSampleOffset = Logger.sampleOffset;
+                Logger.sampleOffset = 0;
+            }
+        }
+
+        if (monitorInput.get()){
+            monitor = new ModelComparisonMonitor(chainLength, betaControlMode);
+            if (monitor.register(getID() != null ? getID() : "mcmc")){
+                monitor.start(firstSampleNr);
+            }
+            else {
+                monitor = null;
+            }
+        }
+
+        //Reaching the precisionTarget early skips samples of the path of beta, so the chain is then savedSamples behind it
+        for (int sampleNr = firstSampleNr; sampleNr <= chainLength - savedSamples; sampleNr++) {
 
 
             final int currentState = sampleNr;
 
+            if (Thread.currentThread().isInterrupted()){
+                //A ladder rung (or replica) which is cancelled because another one stopped with an exception
+                throw new IOException("The chain was interrupted at sample " + sampleNr);
+            }
+
             if(sampleNr != 0) {
-                if (incrementBetaIfRequired(sampleNr)) { //Returns true if beta was incremented
-                    oldLogLikelihood = recalculateOldLogLikelihoodWithNewBeta(); // oldLogLikelihoods are updated also
+                if (incrementBetaIfRequired(sampleNr + savedSamples)) { //Returns true if beta was incremented
+                    innerLogPValues.updateZeroWeightModels();
+                    if (innerLogPValues.staleModelHasWeight()){
+                        refreshDeferredModel(); // it has weight again, so needs its real value
+                    }
+                    oldLogLikelihood = recalculateOldLogLikelihoodWithNewBeta(sampleNr); // only re-weights the cached inner posterior values
                 }
             }
 
@@ -311,29 +1026,20 @@ public class ModelComparisonMCMC extends MCMC {
             Evaluator evaluator = null;
 
             if (evaluatorDistribution != null) {
-                evaluator = new Evaluator() {
-                    @Override
-                    public double evaluate() {
-                        double logP = 0.0;
-
-                        state.storeCalculationNodes();
-                        state.checkCalculationNodesDirtiness();
-
-                        try {
-                            logP = evaluatorDistribution.calculateLogP();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            System.exit(1);
-                        }
-
-                        state.restore();
-                        state.store(currentState);
-
-                        return logP;
-                    }
-                };
+                proposalEvaluator.evaluatorDistribution = evaluatorDistribution;
+                proposalEvaluator.currentState = currentState;
+                evaluator = proposalEvaluator;
+            }
+            int profileCell = -1;
+            long proposalStart = 0;
+            if (profile != null){
+                profileCell = profile.getCell(operator, ((ModelComparisonDistribution) posterior).getBetaValue());
+                proposalStart = System.nanoTime();
             }
             final double logHastingsRatio = operator.proposal(evaluator);
+            if (profile != null){
+                profile.recordProposal(profileCell, System.nanoTime() - proposalStart);
+            }
 
             if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
 
@@ -343,9 +1049,10 @@ public class ModelComparisonMCMC extends MCMC {
                 }
 
                 // Rejig this for when posterior is a ModelComparisonDistribution
-                newLogLikelihoods = new double[2];
-                    newLogLikelihoods[0] = innerPosteriors[0].calculateLogP();
-                    newLogLikelihoods[1] = innerPosteriors[1].calculateLogP();
+                final double[] newLogLikelihoods = innerLogPValues.calculateProposal(operator);
+                if (profile != null){
+                    profile.recordModelCalculations(profileCell, ((ModelComparisonDistribution) posterior).getLastModelNanos());
+                }
                     //Not sure if the above is going to cause some kind of issue elsewhere?
                     //System.out.println("oldLogLikelihoods[0] = " + oldLogLikelihoods[0]);
                     //System.out.println("oldLogLikelihoods[1] = " + oldLogLikelihoods[1]);
@@ -393,41 +1100,32 @@ public class ModelComparisonMCMC extends MCMC {
 
                 if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
                     // accept
-                    if (posterior instanceof ModelComparisonDistribution){
-                        oldLogLikelihoods = newLogLikelihoods;
-                        //newLogLikelihood = posterior.calculateLogP(); // Can make this more efficient by not doing a combination calcualtion rather than re doing the whole calculation again //Need to update full posterior LogP also or otherwise confusion will follow
-                        newLogLikelihood = ((ModelComparisonDistribution) posterior).calculateLogPFromInnerLogPValues(newLogLikelihoods); //This should be more efficient
-                        oldLogLikelihood = newLogLikelihood;
-                        ((ModelComparisonDistribution) posterior).cacheInnerLogPValues(oldLogLikelihoods); //Update after the operator has now done its thing
-                    }
-                    else {
-                        oldLogLikelihood = newLogLikelihood;
-                    }
+                    //newLogLikelihood = posterior.calculateLogP(); // Can make this more efficient by not doing a combination calcualtion rather than re doing the whole calculation again //Need to update full posterior LogP also or otherwise confusion will follow
+                    newLogLikelihood = ((ModelComparisonDistribution) posterior).calculateLogPFromInnerLogPValues(newLogLikelihoods); //This should be more efficient
+                    oldLogLikelihood = newLogLikelihood;
+                    innerLogPValues.acceptProposal(); //Update after the operator has now done its thing
 
                     state.acceptCalculationNodes();
+                    innerLogPVerifiedSampleNr = Integer.MIN_VALUE; // the accepted state has not been recalculated in full
 
                     if (sampleNr >= 0) {
                         operator.accept();
                     }
+                    if (profile != null){
+                        profile.recordOutcome(profileCell, ModelComparisonProfile.ACCEPTED);
+                    }
                     if (printDebugInfo) System.err.print(" accept");
                 } else {
                     // reject
                     if (sampleNr >= 0) {
-                        if(posterior instanceof ModelComparisonDistribution){
-                            if (newLogLikelihoods[0] == Double.NEGATIVE_INFINITY || newLogLikelihoods[1] == Double.NEGATIVE_INFINITY){
-                                operator.reject(-1);
-                            }
-                            else{
-                                operator.reject(0);
-                            }
-                        }
-                        else {
-                            operator.reject(newLogLikelihood == Double.NEGATIVE_INFINITY ? -1 : 0);
-                        }
+                        operator.reject(innerLogPValues.proposalHasNegativeInfinity() ? -1 : 0);
                     }
 
                     state.restore();
                     state.restoreCalculationNodes();
+                    if (profile != null){
+                        profile.recordOutcome(profileCell, ModelComparisonProfile.REJECTED);
+                    }
                     if (printDebugInfo) System.err.print(" reject");
                 }
                 state.setEverythingDirty(false);
@@ -441,15 +1139,44 @@ public class ModelComparisonMCMC extends MCMC {
                     state.setEverythingDirty(false);
                     state.restoreCalculationNodes();
                 }
+                if (profile != null){
+                    profile.recordOutcome(profileCell, ModelComparisonProfile.FAILED);
+                }
                 if (printDebugInfo) System.err.print(" direct reject");
             }
-            log(sampleNr);
+            if (innerLogPValues.hasStaleModels() && sampleNr >= 0 && sampleNr % deferredModelRefreshEvery == 0) {
+                refreshDeferredModel(); // so that the loggers (and U) see their real values
+            }
+            //While an inner posterior is deferred, U is only collected at the samples at which it is refreshed, rather than at those at which
+            //it happens to be up to date (which depends on which proposals were accepted since, and so would bias the mean of U)
+            if (sampleNr >= 0 && ( ! innerLogPValues.hasZeroWeightModels() || sampleNr % deferredModelRefreshEvery == 0)) {
+                if (uValueStatistics != null){
+                    uValueStatistics.add(((ModelComparisonDistribution) posterior).calculatePairUValues(pairUValues));
+                }
+                for (ModelComparisonLogger estimatingLogger : estimatingLoggers){
+                    estimatingLogger.addToEstimate();
+                }
+            }
+            if (monitor != null){
+                ModelComparisonDistribution distribution = (ModelComparisonDistribution) posterior;
+                monitor.update(sampleNr, distribution.getBetaValue(), innerLogPValues.hasStaleModels() ? Double.NaN : distribution.calculateU());
+            }
+
+            if (sampleNr > resumedLogsEndSampleNr){
+                log(sampleNr);
+            }
+            else {
+                logToBinaryFiles(sampleNr); // those of the text logs are already there
+            }
 
             if (debugFlag && sampleNr % 3 == 0 || sampleNr % 10000 == 0) {
                 // check that the posterior is correctly calculated at every third
                 // sample, as long as we are in debug mode
                 final double originalLogP = isStochastic ? posterior.getNonStochasticLogP() : oldLogLikelihood;
                 final double logLikelihood = isStochastic ? state.robustlyCalcNonStochasticPosterior(posterior) : state.robustlyCalcPosterior(posterior);
+                if ( ! isTooDifferent(logLikelihood, originalLogP)) {
+                    innerLogPVerifiedSampleNr = sampleNr;
+                }
                 if (isTooDifferent(logLikelihood, originalLogP)) {
                     reportLogLikelihoods(posterior, "");
                     Log.err.println("At sample " + sampleNr + "\nLikelihood incorrectly calculated: " + originalLogP + " != " + logLikelihood
@@ -470,7 +1197,8 @@ public class ModelComparisonMCMC extends MCMC {
                             operatorSchedule.storeToFile();
                             System.exit(1);
                         }
-                        oldLogLikelihood = state.robustlyCalcPosterior(posterior);;
+                        oldLogLikelihood = state.robustlyCalcPosterior(posterior);
+                        innerLogPValues.copyFromDistribution();
                     }
                 } else {
                     if (isTooDifferent(logLikelihood, originalLogP)) {
@@ -487,12 +1215,26 @@ public class ModelComparisonMCMC extends MCMC {
             }
             callUserFunction(sampleNr);
 
+            if (profile != null && profileEveryInput.get() > 0 && sampleNr > 0 && sampleNr % profileEveryInput.get() == 0){
+                profile.report(Log.info, "Profile of the chain up to sample " + sampleNr + ":");
+            }
+
+            if (sampleNr == handoverSampleNr){
+                handOverState(sampleNr);
+            }
+
+            if (isPrecisionTargetReached(sampleNr)){
+                skipToEndOfStep(sampleNr);
+            }
+
             // make sure we always save just before exiting
-            if (storeEvery > 0 && (sampleNr + 1) % storeEvery == 0 || sampleNr == chainLength) {
-                /*final double logLikelihood = */
-                state.robustlyCalcNonStochasticPosterior(posterior);
-                state.storeToFile(sampleNr);
-                operatorSchedule.storeToFile();
+            if (storeEvery > 0 && (sampleNr + 1) % storeEvery == 0 || sampleNr == chainLength - savedSamples) {
+                //No need for a full recalculation if one has just confirmed the cached inner posteriors, at this sample and after its proposal
+                if (innerLogPVerifiedSampleNr != sampleNr){
+                    /*final double logLikelihood = */
+                    state.robustlyCalcNonStochasticPosterior(posterior);
+                }
+                storeStateAndCheckpoint(sampleNr);
             }
 
             /* Previously had this down here
@@ -510,15 +1252,53 @@ public class ModelComparisonMCMC extends MCMC {
             */
 
         }
+        handOverState(chainLength - savedSamples); // if the chain stopped before the handover sample
+        waitForCheckpointWriter();
+        if (checkpointWriter != null){
+            checkpointWriter.shutdown();
+            checkpointWriter = null;
+        }
+        if (operatorScheduleFile != null){
+            operatorScheduleFile.delete();
+            operatorScheduleFile = null;
+        }
+        if (monitor != null){
+            monitor.unregister();
+            monitor = null;
+        }
+
         if (corrections > 0) {
             Log.err.println("\n\nNB: " + corrections + " posterior calculation corrections were required. This analysis may not be valid!\n\n");
         }
+
+        if (betaPath != null && ! betaPath.isAdaptive()){
+            reportBetaPathSteps();
+            if (precisionTargetInput.get() > 0.0){
+                Log.warning.println("The steps of beta reached the precision target " + precisionTargetInput.get() + " with " + savedSamples + " fewer samples than the chainLength");
+            }
+        }
+        innerLogPValues.reportCalculationsLeftOut();
+        ((ModelComparisonDistribution) posterior).reportModelCalculations();
+        if (profile != null){
+            profile.report(Log.warning, "Profile of the chain:");
+        }
     }
 
 
     //Passing through all methods (because otherwise there will be an error, would need to cast this instanc of ModelComparisonMCMC to an MCMC object to cal these otherwise?
 
-    public void log(final int sampleNr) { super.log(sampleNr); } // log
+    public void log(final int sampleNr) {
+        //A logger which only has ModelComparisonLoggers that write no text would write nothing but the sample numbers
+        List<Logger> loggers = loggersInput.get();
+        for (int loggerNr = 0; loggerNr < loggers.size(); loggerNr++){
+            if (textlessLoggers != null && textlessLoggers[loggerNr]){
+                logToBinaryFiles(loggers.get(loggerNr), sampleNr);
+            }
+            else {
+                loggers.get(loggerNr).log(sampleNr);
+            }
+        }
+    } // log
 
     public void close() { super.close(); } // close
 
@@ -526,7 +1306,15 @@ public class ModelComparisonMCMC extends MCMC {
 
     public double robustlyCalcPosterior(final Distribution posterior) { return super.robustlyCalcPosterior(posterior); }
 
-    protected void callUserFunction(final int sample) {super.callUserFunction(sample);}
+    protected void callUserFunction(final int sample) {
+        super.callUserFunction(sample);
+        if (replicaExchange != null && sample % swapEvery == 0){
+            if (innerLogPValues.hasStaleModels()){
+                refreshDeferredModel(); // swaps use all the inner posteriors
+            }
+            replicaExchange.awaitSwaps();
+        }
+    }
 
     protected void reportLogLikelihoods(final Distribution distr, final String tabString) {super.reportLogLikelihoods(distr, tabString);}
 
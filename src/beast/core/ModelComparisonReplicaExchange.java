@@ -0,0 +1,139 @@
+package beast.core;
+
+import beast.core.util.Log;
+import beast.core.util.UValueStatistics;
+import beast.math.distributions.ModelComparisonDistribution;
+import beast.util.Randomizer;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Runs the 'replicaexchange' mode of ModelComparisonMCMC (parallel tempering along the beta path).
+ * Like a ladder, there is one chain (replica) per value of beta, but all replicas run at once, each on its own thread.
+ * Every swapEvery samples the replicas wait for each other and swaps of beta between neighbouring replicas are proposed,
+ * alternating between the even and the odd pairs. A swap is accepted using the cached inner logP values of the two replicas,
+ * so no likelihoods need to be recalculated. The U values are collected per value of beta rather than per replica.
+ */
+public class ModelComparisonReplicaExchange extends ModelComparisonLadder {
+
+    private CyclicBarrier swapBarrier;
+    private int[] chainAtRung; // which replica currently has each value of beta
+    private UValueStatistics[] rungStatistics;
+    private long[] swapAttempts; // per pair of neighbouring values of beta, indexed by the lower one
+    private long[] swapsAccepted;
+    private boolean swapOddPairs;
+    private volatile boolean failed; // a replica stopped with an exception, so the others must not wait for it
+
+    public ModelComparisonReplicaExchange(ModelComparisonMCMC templateChain, int nrOfReplicas){
+        super(templateChain, nrOfReplicas, nrOfReplicas);
+    }
+
+    @Override
+    protected void prepareRungs(){
+        chainAtRung = new int[nrOfRungs];
+        rungStatistics = new UValueStatistics[nrOfRungs];
+        for (int rung = 0; rung < nrOfRungs; rung++){
+            chainAtRung[rung] = rung;
+            rungStatistics[rung] = new UValueStatistics();
+            rungChains[rung].setUValueStatistics(rungStatistics[rung]);
+            rungChains[rung].initAsReplica(this);
+        }
+        swapAttempts = new long[nrOfRungs - 1];
+        swapsAccepted = new long[nrOfRungs - 1];
+        swapBarrier = new CyclicBarrier(nrOfRungs, this::proposeSwaps);
+    }
+
+    @Override
+    protected int getNrOfThreadsToUse(){
+        //Every replica has to be running for them to be able to wait for each other
+        return nrOfRungs;
+    }
+
+    @Override
+    protected void rungFailed(){
+        //Replicas which get to the barrier from now on stop rather than wait, and those waiting now are released
+        //(one which checked just before this and waits after the reset is interrupted, as the ladder cancels the other rungs)
+        failed = true;
+        swapBarrier.reset();
+    }
+
+    @Override
+    protected UValueStatistics getRungStatistics(int rung){
+        return rungStatistics[rung];
+    }
+
+    /**
+     * Called by each replica between samples. Returns once every replica has arrived and the swaps have been proposed.
+     */
+    void awaitSwaps(){
+        if (failed){
+            throw new RuntimeException("Stopping because another replica stopped");
+        }
+        try {
+            swapBarrier.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the other replicas", e);
+        } catch (BrokenBarrierException e) {
+            throw new RuntimeException("Stopping because another replica stopped", e);
+        }
+    }
+
+    private void proposeSwaps(){
+        for (int rung = swapOddPairs ? 1 : 0; rung + 1 < nrOfRungs; rung += 2){
+            proposeSwap(rung);
+        }
+        swapOddPairs = ! swapOddPairs;
+    }
+
+    private void proposeSwap(int lowerRung){
+        int upperRung = lowerRung + 1;
+        ModelComparisonMCMC lowerChain = rungChains[chainAtRung[lowerRung]];
+        ModelComparisonMCMC upperChain = rungChains[chainAtRung[upperRung]];
+        ModelComparisonDistribution distribution = lowerChain.getModelComparisonDistribution();
+        double[] lowerInnerLogP = lowerChain.getCurrentInnerLogPValues();
+        double[] upperInnerLogP = upperChain.getCurrentInnerLogPValues();
+        double lowerBeta = rungBetaValues[lowerRung];
+        double upperBeta = rungBetaValues[upperRung];
+
+        double logAlpha = distribution.calculateLogPFromInnerLogPValues(lowerBeta, upperInnerLogP)
+                + distribution.calculateLogPFromInnerLogPValues(upperBeta, lowerInnerLogP)
+                - distribution.calculateLogPFromInnerLogPValues(lowerBeta, lowerInnerLogP)
+                - distribution.calculateLogPFromInnerLogPValues(upperBeta, upperInnerLogP);
+
+        swapAttempts[lowerRung]++;
+        if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)){
+            swapsAccepted[lowerRung]++;
+
+            lowerChain.moveToBetaValue(upperBeta);
+            lowerChain.setUValueStatistics(rungStatistics[upperRung]);
+            upperChain.moveToBetaValue(lowerBeta);
+            upperChain.setUValueStatistics(rungStatistics[lowerRung]);
+
+            int swappedChain = chainAtRung[lowerRung];
+            chainAtRung[lowerRung] = chainAtRung[upperRung];
+            chainAtRung[upperRung] = swappedChain;
+        }
+    }
+
+    /**
+     * The fraction of the proposed swaps between the given value of beta and the next one up which were accepted
+     */
+    double getSwapAcceptanceRate(int lowerRung){
+        return swapAttempts[lowerRung] > 0 ? (double) swapsAccepted[lowerRung] / swapAttempts[lowerRung] : Double.NaN;
+    }
+
+    @Override
+    protected void reportEstimate(){
+        Log.warning.println();
+        Log.warning.println("Pair\tBetaValues\tSwapsProposed\tSwapsAccepted\tAcceptanceRate");
+        for (int rung = 0; rung + 1 < nrOfRungs; rung++){
+            Log.warning.println(rung + "-" + (rung + 1) + "\t" + rungBetaValues[rung] + "-" + rungBetaValues[rung + 1]
+                    + "\t" + swapAttempts[rung] + "\t" + swapsAccepted[rung] + "\t" + getSwapAcceptanceRate(rung));
+        }
+
+        super.reportEstimate();
+    }
+}
@@ -0,0 +1,210 @@
+package beast.core;
+
+import beast.core.util.CompoundDistribution;
+import beast.core.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Lets the models of a ModelComparisonDistribution share the components they have in common, so that each is calculated once per step.
+ * Every model is taken apart along its CompoundDistributions into the components which calculate a logP themselves (a tree likelihood,
+ * a coalescent prior, a Prior on a parameter ...). A component used by more than one model, or an identical copy of one, is calculated
+ * once and its logP is added to every model which uses it. The parts are added up in the same order as the CompoundDistributions
+ * would add them up, so the inner logPs are exactly the same as without sharing.
+ * The logP of a copy which is not calculated, and of every CompoundDistribution taken apart, is set from the shared values,
+ * so loggers and store/restore see the same values as they would otherwise.
+ */
+public class ModelComparisonSharedComponents {
+
+    //A part of a model: either one of the shared components, or a CompoundDistribution whose parts are added up here
+    private static class ModelPart {
+        final Distribution distribution;
+        final int component; // -1 for a CompoundDistribution
+        final ModelPart[] parts;
+
+        ModelPart(Distribution distribution, int component, ModelPart[] parts){
+            this.distribution = distribution;
+            this.component = component;
+            this.parts = parts;
+        }
+    }
+
+    private final Set<StateNode> stateNodes; // null if only the same Distribution objects are shared, not identical copies
+    private final List<Distribution> components = new ArrayList<>();
+    private final List<Distribution> sharedComponents = new ArrayList<>(); // used more than once
+    private final ModelPart[] modelParts;
+    private int nrOfCopies; // uses of a component after its first
+
+    private long evaluationNr;
+    private long[] componentEvaluationNr; // the evaluation in which the component was last calculated
+    private double[] componentLogP;
+    private long savedCalculations;
+
+    /**
+     * @param stateNodes the StateNodes of the State. If given, identical copies of a component are shared as well:
+     *                   the same class with equal inputs, where any StateNode of the State must be the same object
+     *                   and any other (constant) parameter must have the same values. Stochastic distributions are never copies.
+     */
+    public ModelComparisonSharedComponents(List<Distribution> models, Set<StateNode> stateNodes){
+        this.stateNodes = stateNodes;
+        modelParts = new ModelPart[models.size()];
+        for (int which_dist = 0; which_dist < models.size(); which_dist++){
+            modelParts[which_dist] = takeApart(models.get(which_dist));
+        }
+        componentEvaluationNr = new long[components.size()];
+        componentLogP = new double[components.size()];
+    }
+
+    public boolean hasSharedComponents(){
+        return nrOfCopies > 0;
+    }
+
+    public List<String> getSharedComponentNames(){
+        List<String> names = new ArrayList<>();
+        for (Distribution component : sharedComponents){
+            names.add(component.getID() != null ? component.getID() : component.getClass().getSimpleName());
+        }
+        return names;
+    }
+
+    private ModelPart takeApart(Distribution distribution){
+        //Only a plain CompoundDistribution which adds up its parts one after the other is taken apart
+        if (distribution.getClass() == CompoundDistribution.class
+                && ! ((CompoundDistribution) distribution).useThreadsInput.get()
+                && ! ((CompoundDistribution) distribution).ignoreInput.get()){
+            List<Distribution> distributions = ((CompoundDistribution) distribution).pDistributions.get();
+            ModelPart[] parts = new ModelPart[distributions.size()];
+            for (int i = 0; i < parts.length; i++){
+                parts[i] = takeApart(distributions.get(i));
+            }
+            return new ModelPart(distribution, -1, parts);
+        }
+
+        for (int component = 0; component < components.size(); component++){
+            if (components.get(component) == distribution || (stateNodes != null && areCopies(components.get(component), distribution))){
+                nrOfCopies++;
+                if ( ! sharedComponents.contains(components.get(component))){
+                    sharedComponents.add(components.get(component));
+                }
+                return new ModelPart(distribution, component, null);
+            }
+        }
+        components.add(distribution);
+        return new ModelPart(distribution, components.size() - 1, null);
+    }
+
+    private boolean areCopies(BEASTInterface first, BEASTInterface second){
+        if (first == second){
+            return true;
+        }
+        if (first.getClass() != second.getClass()){
+            return false;
+        }
+        if (first instanceof StateNode){
+            //A StateNode the operators can change has to be the same object, a constant one only needs the same values
+            if (stateNodes.contains(first) || stateNodes.contains(second) || ! (first instanceof Function)){
+                return false;
+            }
+            Function firstFunction = (Function) first;
+            Function secondFunction = (Function) second;
+            if (firstFunction.getDimension() != secondFunction.getDimension()){
+                return false;
+            }
+            for (int i = 0; i < firstFunction.getDimension(); i++){
+                if (Double.compare(firstFunction.getArrayValue(i), secondFunction.getArrayValue(i)) != 0){
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (first instanceof Distribution && ((Distribution) first).isStochastic()){
+            return false;
+        }
+        for (Input<?> input : first.listInputs()){
+            if ( ! areCopyValues(input.get(), second.getInput(input.getName()).get())){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean areCopyValues(Object first, Object second){
+        if (first instanceof BEASTInterface && second instanceof BEASTInterface){
+            return areCopies((BEASTInterface) first, (BEASTInterface) second);
+        }
+        if (first instanceof List && second instanceof List){
+            List<?> firstList = (List<?>) first;
+            List<?> secondList = (List<?>) second;
+            if (firstList.size() != secondList.size()){
+                return false;
+            }
+            for (int i = 0; i < firstList.size(); i++){
+                if ( ! areCopyValues(firstList.get(i), secondList.get(i))){
+                    return false;
+                }
+            }
+            return true;
+        }
+        return Objects.equals(first, second);
+    }
+
+    /**
+     * Starts a new evaluation: from now on until the next call, each component is calculated at most once
+     */
+    public void startEvaluation(){
+        evaluationNr++;
+    }
+
+    /**
+     * The logP of the given model, as its calculateLogP() would give it, using the components already calculated in this evaluation
+     */
+    public double calculateModelLogP(int which_dist){
+        return calculatePartLogP(modelParts[which_dist]);
+    }
+
+    private double calculatePartLogP(ModelPart part){
+        if (part.component >= 0){
+            double logP = calculateComponentLogP(part.component);
+            if (part.distribution != components.get(part.component)){
+                part.distribution.logP = logP; // a copy which is not calculated itself
+            }
+            return logP;
+        }
+
+        //As in CompoundDistribution.calculateLogP()
+        double logP = 0;
+        for (ModelPart innerPart : part.parts){
+            logP += calculatePartLogP(innerPart);
+            if (Double.isInfinite(logP) || Double.isNaN(logP)){
+                break;
+            }
+        }
+        part.distribution.logP = logP;
+        return logP;
+    }
+
+    private double calculateComponentLogP(int component){
+        Distribution distribution = components.get(component);
+        if (componentEvaluationNr[component] == evaluationNr){
+            if (distribution.isDirtyCalculation()){
+                savedCalculations++;
+            }
+            return componentLogP[component];
+        }
+        componentLogP[component] = distribution.isDirtyCalculation() ? distribution.calculateLogP() : distribution.getCurrentLogP();
+        componentEvaluationNr[component] = evaluationNr;
+        return componentLogP[component];
+    }
+
+    /**
+     * Reports how many calculations of components were saved by sharing them between the models
+     */
+    public void report(){
+        Log.warning.println("ModelComparisonDistribution shared the components " + getSharedComponentNames() + " between the models, "
+                + "saving " + savedCalculations + " calculations of them");
+    }
+}
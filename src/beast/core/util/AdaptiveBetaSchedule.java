@@ -0,0 +1,138 @@
+package beast.core.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Chooses each step in beta for the 'adaptive' betaSchedule of ModelComparisonMCMC.
+ * Keeps exponentially weighted estimates of the local mean and variance of U as beta moves. The derivative of the mean of U
+ * with respect to beta is the variance of U, so where the standard deviation of U is large, U is changing fast (or is noisy)
+ * and the samples should be closer together in beta.
+ * Since the steps left have to cover the rest of the path, the standard deviation of U over the rest of the path is forecast
+ * from how it has been changing with beta: beta moves faster than an even spacing of the remaining steps while U is flatter
+ * than it is going to be, and slower while it is steeper than it is going to be.
+ */
+public class AdaptiveBetaSchedule {
+
+    //How much slower or faster than spreading the remaining distance evenly beta may move on one step
+    private static final double MIN_STEP_FACTOR = 0.5;
+    private static final double MAX_STEP_FACTOR = 2.0;
+
+    private final double smoothing; // weight of each new value of U in the local estimates
+    private final int window; // beta moves evenly until the local estimates are based on this many values of U
+
+    private double localMean;
+    private double localVariance;
+    private long valuesSeen;
+
+    //For the change in the local standard deviation of U with beta, which is measured once per window
+    private int stepsSinceCheckpoint;
+    private double checkpointBeta = Double.NaN;
+    private double checkpointScale;
+    private double scaleSlope = Double.NaN;
+
+    public AdaptiveBetaSchedule(int window){
+        if (window < 1){
+            throw new IllegalArgumentException("The window of the adaptive beta schedule must be at least 1");
+        }
+        this.window = window;
+        smoothing = 1.0 / window;
+    }
+
+    /**
+     * @param UValue the value of U for the current state of the chain
+     * @return the value of beta for the next sample
+     */
+    public double nextBetaValue(double currentBeta, double targetBeta, int stepsLeft, double UValue){
+        addUValue(UValue);
+
+        if (stepsLeft <= 1){
+            return targetBeta;
+        }
+
+        double evenStep = (targetBeta - currentBeta) / stepsLeft;
+        return currentBeta + (evenStep * getStepFactor(currentBeta, targetBeta));
+    }
+
+    private void addUValue(double UValue){
+        if (Double.isNaN(UValue) || Double.isInfinite(UValue)){
+            return;
+        }
+        valuesSeen++;
+        if (valuesSeen == 1){
+            localMean = UValue;
+            return;
+        }
+        double deviation = UValue - localMean;
+        double increment = smoothing * deviation;
+        localMean = localMean + increment;
+        localVariance = (1 - smoothing) * (localVariance + (deviation * increment));
+    }
+
+    private double getStepFactor(double currentBeta, double targetBeta){
+        if (valuesSeen <= window){
+            return 1.0;
+        }
+
+        double localScale = Math.sqrt(localVariance);
+        updateScaleSlope(currentBeta, localScale);
+        if (Double.isNaN(scaleSlope)){
+            return 1.0;
+        }
+
+        //Assuming the standard deviation of U keeps changing linearly with beta, its average over the rest of the path is
+        double forecastScale = localScale + (scaleSlope * (targetBeta - currentBeta) / 2.0);
+
+        if (localScale <= 0.0){
+            return forecastScale > 0.0 ? MAX_STEP_FACTOR : 1.0;
+        }
+        return Math.max(MIN_STEP_FACTOR, Math.min(MAX_STEP_FACTOR, forecastScale / localScale));
+    }
+
+    private void updateScaleSlope(double currentBeta, double localScale){
+        stepsSinceCheckpoint++;
+        if (stepsSinceCheckpoint < window){
+            return;
+        }
+        stepsSinceCheckpoint = 0;
+
+        if ( ! Double.isNaN(checkpointBeta) && currentBeta != checkpointBeta){
+            double newSlope = (localScale - checkpointScale) / (currentBeta - checkpointBeta);
+            scaleSlope = Double.isNaN(scaleSlope) ? newSlope : 0.5 * (scaleSlope + newSlope);
+        }
+        checkpointBeta = currentBeta;
+        checkpointScale = localScale;
+    }
+
+    /**
+     * Writes the local estimates (for a checkpoint of the chain), to be read back with readFrom
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(window);
+        out.writeDouble(localMean);
+        out.writeDouble(localVariance);
+        out.writeLong(valuesSeen);
+        out.writeInt(stepsSinceCheckpoint);
+        out.writeDouble(checkpointBeta);
+        out.writeDouble(checkpointScale);
+        out.writeDouble(scaleSlope);
+    }
+
+    /**
+     * Replaces the local estimates with those written by writeTo
+     */
+    public void readFrom(DataInput in) throws IOException {
+        if (in.readInt() != window){
+            throw new IOException("The adaptive beta schedule was written with a different window");
+        }
+        localMean = in.readDouble();
+        localVariance = in.readDouble();
+        valuesSeen = in.readLong();
+        stepsSinceCheckpoint = in.readInt();
+        checkpointBeta = in.readDouble();
+        checkpointScale = in.readDouble();
+        scaleSlope = in.readDouble();
+    }
+}
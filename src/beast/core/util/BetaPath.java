@@ -0,0 +1,157 @@
+package beast.core.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * The path of beta of a 'oneway' or 'bothways' ModelComparisonMCMC chain, from its starting value to the other end (and back again after
+ * the inversion sample for 'bothways'). Beta either follows the segments a BetaSchedule works out for the whole chain before it starts,
+ * or is moved by an AdaptiveBetaSchedule, which picks each value of beta from the value of U at the time.
+ */
+public class BetaPath {
+
+    private final double betaStartingValue;
+    private final double betaEndValue; // the other end of the path from betaStartingValue
+    private final int chainLength;
+    private final int inversionSampleNr; // the last sample of the first pass of beta
+    private final List<BetaPathSegment> segments; // precomputed values of beta for every sample. null for the adaptive schedule
+    private final AdaptiveBetaSchedule adaptiveSchedule; // null unless there is no BetaSchedule
+    private int segmentIndex;
+
+    /**
+     * @param schedule the schedule beta follows, or null for the adaptive schedule
+     * @param adaptiveWindow the window of the adaptive schedule (0 for a tenth of the samples of a pass)
+     */
+    public BetaPath(BetaSchedule schedule, int adaptiveWindow, double betaStartingValue, double betaEndValue, int chainLength, boolean bothways){
+        this.betaStartingValue = betaStartingValue;
+        this.betaEndValue = betaEndValue;
+        this.chainLength = chainLength;
+        inversionSampleNr = bothways ? chainLength / 2 : chainLength; //integer division
+
+        if (schedule == null){
+            segments = null;
+            adaptiveSchedule = new AdaptiveBetaSchedule(adaptiveWindow > 0 ? adaptiveWindow : Math.max(1, inversionSampleNr / 10));
+            return;
+        }
+        //Work out beta for every sample now, rather than while the chain is running
+        adaptiveSchedule = null;
+        segments = new ArrayList<>(schedule.createPass(0, inversionSampleNr, betaStartingValue, betaEndValue, true));
+        if (bothways){
+            segments.addAll(schedule.createPass(inversionSampleNr, chainLength, betaEndValue, betaStartingValue, false));
+        }
+    }
+
+    public boolean isAdaptive(){
+        return adaptiveSchedule != null;
+    }
+
+    public AdaptiveBetaSchedule getAdaptiveSchedule(){
+        return adaptiveSchedule;
+    }
+
+    public int getInversionSampleNr(){
+        return inversionSampleNr;
+    }
+
+    public int getNrOfSegments(){
+        return segments != null ? segments.size() : 0;
+    }
+
+    public boolean hasEquilibration(){
+        boolean hasEquilibration = false;
+        for (BetaPathSegment segment : getSegments()){
+            hasEquilibration = hasEquilibration || segment.isEquilibrating();
+        }
+        return hasEquilibration;
+    }
+
+    /**
+     * The segment the chain is in, or null for the adaptive schedule
+     */
+    public BetaPathSegment getSegment(){
+        return segments != null ? segments.get(segmentIndex) : null;
+    }
+
+    /**
+     * Moves to the segment the sample is in, for a chain which starts (or is resumed) there
+     */
+    public void moveToSample(int sampleNr){
+        if (segments == null){
+            return;
+        }
+        segmentIndex = segments.size() - 1;
+        for (int index = 0; index < segments.size(); index++){
+            if (sampleNr <= segments.get(index).getLastSample()){
+                segmentIndex = index;
+                break;
+            }
+        }
+    }
+
+    /**
+     * The value of beta for the sample, moving on to the next segment once the sample is past the end of the current one
+     * @param betaValue the value of beta at the sample before
+     * @param UValue gives the value of U for the current state of the chain, which only the adaptive schedule asks for
+     * @return the new value of beta, or NaN if beta stays as it is
+     */
+    public double nextBetaValue(int sampleNr, double betaValue, DoubleSupplier UValue){
+        if (adaptiveSchedule != null){
+            double newValue;
+            if (sampleNr <= inversionSampleNr){
+                newValue = adaptiveSchedule.nextBetaValue(betaValue, betaEndValue, inversionSampleNr - sampleNr + 1, UValue.getAsDouble());
+            }
+            else {
+                newValue = adaptiveSchedule.nextBetaValue(betaValue, betaStartingValue, chainLength - sampleNr + 1, UValue.getAsDouble());
+            }
+            //Just to ensure that slight rounding/double precision doesn't mean we get outside the correct range
+            if (newValue > 1.0){newValue = 1.0;}
+            if (newValue < 0.0){newValue = 0.0;}
+            return newValue;
+        }
+
+        BetaPathSegment segment = segments.get(segmentIndex);
+        if (sampleNr > segment.getLastSample()){
+            segmentIndex++;
+            double newValue = segments.get(segmentIndex).getBetaValue(sampleNr);
+            return newValue == betaValue ? Double.NaN : newValue;
+        }
+        return segment.isBetaFixed() ? Double.NaN : segment.getBetaValue(sampleNr);
+    }
+
+    /**
+     * The values of U collected at each value beta is held fixed at (such as the steps of StepwiseBetaSchedule), in order
+     */
+    public List<UValueStatistics> getSegmentStatistics(){
+        List<UValueStatistics> segmentStatistics = new ArrayList<>();
+        for (BetaPathSegment segment : getSegments()){
+            if (segment.getUValueStatistics() != null){
+                segmentStatistics.add(segment.getUValueStatistics());
+            }
+        }
+        return segmentStatistics;
+    }
+
+    /**
+     * The segments at which U is collected with beta held fixed, for each pass (the second only if it has any)
+     */
+    public List<List<BetaPathSegment>> getPassSteps(){
+        List<List<BetaPathSegment>> passSteps = new ArrayList<>();
+        passSteps.add(new ArrayList<>());
+        for (BetaPathSegment segment : getSegments()){
+            if (segment.getUValueStatistics() == null){
+                continue;
+            }
+            if (passSteps.size() == 1 && segment.getFirstSample() > inversionSampleNr){
+                passSteps.add(new ArrayList<>());
+            }
+            passSteps.get(passSteps.size() - 1).add(segment);
+        }
+        return passSteps;
+    }
+
+    private List<BetaPathSegment> getSegments(){
+        return segments != null ? segments : new ArrayList<>();
+    }
+}
@@ -0,0 +1,76 @@
+package beast.core.util;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * A run of samples over which beta changes by the same amount every sample (or not at all).
+ * A BetaSchedule turns a pass of beta from one end of the path to the other into a list of these before the chain starts,
+ * so working out the value of beta for a sample is a multiply and an add, and nothing at all while beta is held fixed.
+ */
+public class BetaPathSegment {
+
+    private final int firstSample;
+    private final int lastSample;
+    private final int referenceSample;
+    private final double referenceBetaValue;
+    private final double betaChangePerSample;
+    private final boolean equilibrating;
+    private final UValueStatistics uValueStatistics; // only for the segments where beta is held fixed and U is collected
+    private double[] standardErrorTargets; // with a precisionTarget, the chain moves on from this segment once the standard error of U is below these
+
+    /**
+     * The value of beta at sample s is referenceBetaValue + (s - referenceSample) * betaChangePerSample
+     * @param equilibrating if true, the values of U sampled in this segment should not be used (because the chain is still adjusting to a new value of beta)
+     */
+    public BetaPathSegment(int firstSample, int lastSample, int referenceSample, double referenceBetaValue, double betaChangePerSample, boolean equilibrating){
+        this.firstSample = firstSample;
+        this.lastSample = lastSample;
+        this.referenceSample = referenceSample;
+        this.referenceBetaValue = referenceBetaValue;
+        this.betaChangePerSample = betaChangePerSample;
+        this.equilibrating = equilibrating;
+        uValueStatistics = (betaChangePerSample == 0.0 && ! equilibrating) ? new UValueStatistics() : null;
+    }
+
+    /**
+     * A segment where beta is held at betaValue
+     */
+    public BetaPathSegment(int firstSample, int lastSample, double betaValue, boolean equilibrating){
+        this(firstSample, lastSample, firstSample, betaValue, 0.0, equilibrating);
+    }
+
+    public double getBetaValue(int sampleNr){
+        double betaValue = referenceBetaValue + ((sampleNr - referenceSample) * betaChangePerSample);
+        //Just to ensure that slight rounding/double precision doesn't mean we get outside the correct range
+        if (betaValue > 1.0){betaValue = 1.0;}
+        if (betaValue < 0.0){betaValue = 0.0;}
+        return betaValue;
+    }
+
+    public int getFirstSample(){
+        return firstSample;
+    }
+
+    public int getLastSample(){
+        return lastSample;
+    }
+
+    public boolean isBetaFixed(){
+        return betaChangePerSample == 0.0;
+    }
+
+    public boolean isEquilibrating(){
+        return equilibrating;
+    }
+
+    public UValueStatistics getUValueStatistics(){
+        return uValueStatistics;
+    }
+
+    public double[] getStandardErrorTargets(){
+        return standardErrorTargets;
+    }
+
+    public void setStandardErrorTargets(double[] standardErrorTargets){
+        this.standardErrorTargets = standardErrorTargets;
+    }
+}
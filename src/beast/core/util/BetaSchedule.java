@@ -0,0 +1,75 @@
+package beast.core.util;
+
+import beast.core.BEASTObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Decides the value of beta at every sample of a 'oneway' or 'bothways' ModelComparisonMCMC chain.
+ * A schedule is a curve from a position along a pass (0 at the start, 1 at the end) to a value of beta, which is worked out
+ * once for the whole chain when it starts. Between knots of the curve beta changes linearly. Subclasses either change the curve
+ * (getBetaValue) or replace how a pass is split into segments altogether (createPass).
+ */
+public abstract class BetaSchedule extends BEASTObject {
+
+    //Caps the size of the precomputed path, however long the chain is
+    protected static final int MAX_KNOTS_PER_PASS = 1000;
+
+    @Override
+    public void initAndValidate(){
+    }
+
+    /**
+     * The value of beta a fraction of the way along a pass from beta = 0 to beta = 1 (passes from 1 to 0 use the same curve backwards)
+     */
+    public abstract double getBetaValue(double passFraction);
+
+    /**
+     * Number of evenly spaced positions along a pass at which the curve is evaluated exactly
+     */
+    protected int getNrOfKnots(int nrOfSamples){
+        return Math.max(1, Math.min(nrOfSamples, MAX_KNOTS_PER_PASS));
+    }
+
+    /**
+     * Splits one pass of beta into segments.
+     * Beta is at fromBeta at sample originSample and gets to toBeta at sample lastSample. The segments cover the samples after
+     * originSample up to lastSample, and originSample itself as well if includeOrigin (for the first pass of the chain).
+     */
+    public List<BetaPathSegment> createPass(int originSample, int lastSample, double fromBeta, double toBeta, boolean includeOrigin){
+        List<BetaPathSegment> segments = new ArrayList<>();
+        int nrOfSamples = lastSample - originSample;
+        if (nrOfSamples <= 0){
+            segments.add(new BetaPathSegment(originSample, lastSample, toBeta, false));
+            return segments;
+        }
+
+        int nrOfKnots = getNrOfKnots(nrOfSamples);
+        int knotSample = originSample;
+        double knotBeta = getPathBetaValue(0.0, fromBeta, toBeta);
+        for (int knot = 1; knot <= nrOfKnots; knot++){
+            int nextKnotSample = originSample + (int) Math.round((double) knot * nrOfSamples / nrOfKnots);
+            double nextKnotBeta = getPathBetaValue((double) knot / nrOfKnots, fromBeta, toBeta);
+            if (nextKnotSample > knotSample){
+                int firstSample = (knot == 1 && includeOrigin) ? originSample : knotSample + 1;
+                double betaChangePerSample = (nextKnotBeta - knotBeta) / (nextKnotSample - knotSample);
+                segments.add(new BetaPathSegment(firstSample, nextKnotSample, knotSample, knotBeta, betaChangePerSample, false));
+                knotSample = nextKnotSample;
+                knotBeta = nextKnotBeta;
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * The value of beta a fraction of the way along a pass between fromBeta and toBeta, in either direction
+     */
+    protected double getPathBetaValue(double passFraction, double fromBeta, double toBeta){
+        double lowerBeta = Math.min(fromBeta, toBeta);
+        double upperBeta = Math.max(fromBeta, toBeta);
+        double curveFraction = fromBeta <= toBeta ? passFraction : 1.0 - passFraction;
+        return lowerBeta + ((upperBeta - lowerBeta) * getBetaValue(curveFraction));
+    }
+}
@@ -0,0 +1,280 @@
+package beast.core.util;
+
+import beast.core.Distribution;
+import beast.core.Operator;
+import beast.core.State;
+import beast.core.StateNode;
+import beast.math.distributions.ModelComparisonDistribution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * The inner posterior values of the current state of a ModelComparisonMCMC chain and of the state proposed from it, and which of the
+ * inner posteriors are calculated after each proposal.
+ * An inner posterior which the operator cannot change keeps its value. With deferZeroWeightModels, one which has zero weight at the
+ * current value of beta is not calculated either, and is marked as out of date (stale) once a proposal which may have changed it is
+ * accepted, until it is refreshed.
+ */
+public class InnerLogPValues {
+
+    private final ModelComparisonDistribution distribution;
+    private final Distribution[] innerPosteriors;
+    //The two buffers swap over when a proposal is accepted, so none are allocated per sample
+    private double[] currentLogPValues;
+    private double[] proposedLogPValues;
+    private final Map<Operator, boolean[]> modelsAffectedByOperator; // which of the inner posteriors each operator can change
+    private boolean[] proposalAffectedModels; // those of the operator of the last proposal, null if it is not in modelsAffectedByOperator
+    private final boolean[] modelsAffected; // by the last proposal, if proposalAffectedModels is not null
+    private final boolean[] modelsToCalculate;
+    private long skippedCalculations;
+
+    private boolean deferZeroWeightModels;
+    private final boolean[] zeroWeightModels; // the inner posteriors with zero weight at the current value of beta (only kept up to date with deferZeroWeightModels)
+    private boolean hasZeroWeightModels;
+    private final boolean[] staleModels; // the inner posteriors whose current values are out of date because they were deferred
+    private boolean hasStaleModels;
+    private int[][] modelStateNodes; // the StateNodes each inner posterior depends on, by their number in the State
+    private long deferredCalculations;
+    private long refreshes;
+
+    public InnerLogPValues(ModelComparisonDistribution distribution, List<Operator> operators){
+        this.distribution = distribution;
+        int nrOfModels = distribution.getNrOfModels();
+        innerPosteriors = new Distribution[nrOfModels];
+        for (int which_dist = 0; which_dist < nrOfModels; which_dist++){
+            innerPosteriors[which_dist] = distribution.pDistributions.get().get(which_dist);
+        }
+        currentLogPValues = new double[nrOfModels];
+        proposedLogPValues = new double[nrOfModels];
+        modelsAffected = new boolean[nrOfModels];
+        modelsToCalculate = new boolean[nrOfModels];
+        zeroWeightModels = new boolean[nrOfModels];
+        staleModels = new boolean[nrOfModels];
+
+        //An operator can only change the inner posteriors which depend on the StateNodes it changes, so the others need not be calculated after it
+        modelsAffectedByOperator = new HashMap<>();
+        for (Operator operator : operators){
+            //Only a hint: an inner posterior is still calculated if it turns out to be dirty after a proposal of the operator
+            List<StateNode> stateNodes = operator.listStateNodes();
+            if (stateNodes.isEmpty()){
+                continue; // can't tell, so all the inner posteriors are calculated after it
+            }
+            boolean[] affectedModels = distribution.findModelsDependingOn(stateNodes);
+            modelsAffectedByOperator.put(operator, affectedModels);
+            List<Integer> affectedModelNrs = new ArrayList<>();
+            for (int which_dist = 0; which_dist < affectedModels.length; which_dist++){
+                if (affectedModels[which_dist]){
+                    affectedModelNrs.add(which_dist);
+                }
+            }
+            if (affectedModelNrs.size() < affectedModels.length){
+                System.out.println("Operator " + (operator.getID() != null ? operator.getID() : operator.getClass().getSimpleName())
+                        + " can only change inner posteriors " + affectedModelNrs);
+            }
+        }
+    }
+
+    /**
+     * From now on, the inner posteriors with zero weight are not calculated after each proposal, only when they are refreshed
+     */
+    public void deferZeroWeightModels(State state){
+        deferZeroWeightModels = true;
+        //For recalculating only the inner posteriors which were deferred
+        List<List<Integer>> stateNodeNrs = new ArrayList<>();
+        for (int which_dist = 0; which_dist < innerPosteriors.length; which_dist++){
+            stateNodeNrs.add(new ArrayList<>());
+        }
+        for (int stateNodeNr = 0; stateNodeNr < state.getNrOfStateNodes(); stateNodeNr++){
+            boolean[] dependingModels = distribution.findModelsDependingOn(Collections.singletonList(state.getStateNode(stateNodeNr)));
+            for (int which_dist = 0; which_dist < innerPosteriors.length; which_dist++){
+                if (dependingModels[which_dist]){
+                    stateNodeNrs.get(which_dist).add(stateNodeNr);
+                }
+            }
+        }
+        modelStateNodes = new int[innerPosteriors.length][];
+        for (int which_dist = 0; which_dist < innerPosteriors.length; which_dist++){
+            modelStateNodes[which_dist] = new int[stateNodeNrs.get(which_dist).size()];
+            for (int i = 0; i < modelStateNodes[which_dist].length; i++){
+                modelStateNodes[which_dist][i] = stateNodeNrs.get(which_dist).get(i);
+            }
+        }
+    }
+
+    public int getNrOfModels(){
+        return innerPosteriors.length;
+    }
+
+    /**
+     * The inner posterior values of the current state. Only valid between samples.
+     */
+    public double[] getCurrent(){
+        return currentLogPValues;
+    }
+
+    public boolean isStale(int which_dist){
+        return staleModels[which_dist];
+    }
+
+    public boolean hasStaleModels(){
+        return hasStaleModels;
+    }
+
+    public boolean hasZeroWeightModels(){
+        return hasZeroWeightModels;
+    }
+
+    /**
+     * Calculates all the inner posteriors for the current state, and caches them on the ModelComparisonDistribution
+     */
+    public void calculate(){
+        for (int which_dist = 0; which_dist < innerPosteriors.length; which_dist++){
+            currentLogPValues[which_dist] = innerPosteriors[which_dist].calculateLogP();
+        }
+        distribution.cacheInnerLogPValues(currentLogPValues);
+    }
+
+    /**
+     * Takes the current values from those cached on the ModelComparisonDistribution, after a full calculation of the posterior
+     */
+    public void copyFromDistribution(){
+        System.arraycopy(distribution.getInnerPosteriorLogP(), 0, currentLogPValues, 0, currentLogPValues.length);
+    }
+
+    /**
+     * Calculates the inner posteriors of the proposed state which the operator may have changed (in parallel if parallelModels is set)
+     * @return the inner posterior values of the proposed state
+     */
+    public double[] calculateProposal(Operator operator){
+        proposalAffectedModels = modelsAffectedByOperator.get(operator);
+        if (proposalAffectedModels == null && ! deferZeroWeightModels){
+            distribution.calculateInnerLogPValues(proposedLogPValues, false);
+            return proposedLogPValues;
+        }
+        //An inner posterior which the operator cannot change (or which has zero weight and is deferred) keeps its current value.
+        //Which StateNodes an operator changes is only known from its inputs, so one which has become dirty is calculated anyway
+        for (int which_dist = 0; which_dist < innerPosteriors.length; which_dist++){
+            boolean affected = proposalAffectedModels == null || proposalAffectedModels[which_dist] || innerPosteriors[which_dist].isDirtyCalculation();
+            modelsAffected[which_dist] = affected;
+            boolean deferred = deferZeroWeightModels && zeroWeightModels[which_dist];
+            modelsToCalculate[which_dist] = affected && ! deferred;
+            proposedLogPValues[which_dist] = currentLogPValues[which_dist];
+            if ( ! affected){
+                skippedCalculations++;
+            }
+            else if (deferred){
+                deferredCalculations++;
+            }
+        }
+        distribution.calculateInnerLogPValues(proposedLogPValues, modelsToCalculate);
+        return proposedLogPValues;
+    }
+
+    /**
+     * The proposed state becomes the current one, and its inner posterior values are cached on the ModelComparisonDistribution
+     */
+    public void acceptProposal(){
+        if (deferZeroWeightModels){
+            for (int which_dist = 0; which_dist < innerPosteriors.length; which_dist++){
+                if (zeroWeightModels[which_dist] && (proposalAffectedModels == null || modelsAffected[which_dist])){
+                    staleModels[which_dist] = true; // the operator may have changed it, but it was not calculated
+                    hasStaleModels = true;
+                }
+            }
+        }
+        double[] acceptedLogPValues = proposedLogPValues;
+        proposedLogPValues = currentLogPValues; // to be overwritten by the next proposal
+        currentLogPValues = acceptedLogPValues;
+        distribution.cacheInnerLogPValues(currentLogPValues);
+    }
+
+    public boolean proposalHasNegativeInfinity(){
+        for (double proposedLogP : proposedLogPValues){
+            if (proposedLogP == Double.NEGATIVE_INFINITY){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notes which inner posteriors have zero weight at the current value of beta, with deferZeroWeightModels
+     */
+    public void updateZeroWeightModels(){
+        if ( ! deferZeroWeightModels){
+            return;
+        }
+        hasZeroWeightModels = false;
+        for (int which_dist = 0; which_dist < zeroWeightModels.length; which_dist++){
+            zeroWeightModels[which_dist] = distribution.getModelWeight(which_dist) == 0.0;
+            hasZeroWeightModels = hasZeroWeightModels || zeroWeightModels[which_dist];
+        }
+    }
+
+    /**
+     * Whether any of the inner posteriors which are out of date now has some weight
+     */
+    public boolean staleModelHasWeight(){
+        for (int which_dist = 0; which_dist < staleModels.length; which_dist++){
+            if (staleModels[which_dist] && ! zeroWeightModels[which_dist]){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The StateNodes (by their number in the State) which the inner posteriors that are out of date depend on. Their CalculationNodes
+     * were not recalculated when the proposals which changed them were accepted, so they are all marked as changed before refreshing them
+     */
+    public List<Integer> getStaleModelStateNodes(){
+        List<Integer> stateNodeNrs = new ArrayList<>();
+        for (int which_dist = 0; which_dist < staleModels.length; which_dist++){
+            if (staleModels[which_dist]){
+                for (int stateNodeNr : modelStateNodes[which_dist]){
+                    stateNodeNrs.add(stateNodeNr);
+                }
+            }
+        }
+        return stateNodeNrs;
+    }
+
+    /**
+     * Recalculates only the inner posteriors which are out of date, once their StateNodes have been marked as changed, and caches the
+     * values on the ModelComparisonDistribution
+     */
+    public void refreshStaleModels(){
+        for (int which_dist = 0; which_dist < staleModels.length; which_dist++){
+            if (staleModels[which_dist]){
+                currentLogPValues[which_dist] = innerPosteriors[which_dist].calculateLogP();
+            }
+        }
+        distribution.cacheInnerLogPValues(currentLogPValues);
+        clearStaleModels();
+        refreshes++;
+    }
+
+    public void clearStaleModels(){
+        for (int which_dist = 0; which_dist < staleModels.length; which_dist++){
+            staleModels[which_dist] = false;
+        }
+        hasStaleModels = false;
+    }
+
+    /**
+     * Reports how many calculations of inner posteriors were left out, if any
+     */
+    public void reportCalculationsLeftOut(){
+        if (deferredCalculations > 0){
+            Log.warning.println("Deferred " + deferredCalculations + " calculations of inner posteriors with zero weight, which were recalculated " + refreshes + " times for logging");
+        }
+        if (skippedCalculations > 0){
+            Log.warning.println("Skipped " + skippedCalculations + " calculations of an inner posterior which the operator could not have changed");
+        }
+    }
+}
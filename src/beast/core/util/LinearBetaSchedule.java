@@ -0,0 +1,18 @@
+package beast.core.util;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Beta changes by the same amount every sample (this is what betaSchedule="linear" uses).
+ */
+public class LinearBetaSchedule extends BetaSchedule {
+
+    @Override
+    public double getBetaValue(double passFraction){
+        return passFraction;
+    }
+
+    @Override
+    protected int getNrOfKnots(int nrOfSamples){
+        return 1; // a straight line is exact with just the two ends
+    }
+}
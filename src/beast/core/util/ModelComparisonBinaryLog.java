@@ -0,0 +1,390 @@
+package beast.core.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Writes the values logged by ModelComparisonLogger as raw little-endian doubles, for logging every sample without the cost of
+ * formatting (and storing) them as text. ModelComparisonCalculator reads these files as well as text logs, by memory-mapping them.
+ *
+ * The file is a header followed by blocks of rows, stored column by column:
+ *   header: int MAGIC, int VERSION, int number of columns, int rows per full block, then for each column its name
+ *           (int length and UTF-8 bytes), padded with zeros to a multiple of 8 bytes
+ *   block:  long number of rows n, then n doubles of the first column, n doubles of the second column, ...
+ * A block has at most the full number of rows. Rows only reach the file a block at a time: when a block is full, and when the state
+ * of the chain is stored (see flush), so if the chain is killed the rows since the last stored state are lost. A resumed chain logs
+ * again from the stored state on, so the rows from there on are first taken out of the file (see removeRowsFrom).
+ *
+ * The file can also be compressed with gzip, with the header and each block as a gzip member of its own (so the file is still read
+ * as one gzip stream). The blocks are then compressed and written by a background thread while the next block is filled.
+ */
+public class ModelComparisonBinaryLog {
+
+    public static final int MAGIC = 0x4D43424C; // "MCBL"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_BLOCK_ROWS = 65536;
+
+    private final FileChannel channel;
+    private final int nrOfColumns;
+    private final int blockRows;
+    private final ByteBuffer block; // the rows of the current block, each column at its own offset
+    private final ByteBuffer blockHeader;
+    private int rows;
+    private int column;
+    private final List<Long> blockStarts = new ArrayList<>(); // of the blocks already in the file when it is appended to
+    private long dataEnd; // the end of those blocks
+
+    //With compression
+    private final boolean compress;
+    private ExecutorService compressor;
+    private Future<?> compressing; // the block being compressed
+    private Deflater deflater; // used for every member, by one thread at a time
+    private final CRC32 crc = new CRC32();
+    private byte[] deflated;
+
+    /**
+     * @param append if true and the file is already a log with the same columns, the rows are added after the complete blocks in it
+     * @param compress if true, the file is compressed with gzip
+     */
+    public ModelComparisonBinaryLog(File file, String[] columnNames, int blockRows, boolean append, boolean compress) throws IOException {
+        this.nrOfColumns = columnNames.length;
+        this.blockRows = blockRows;
+        this.compress = compress;
+        block = compress ? ByteBuffer.allocate(nrOfColumns * blockRows * 8) : ByteBuffer.allocateDirect(nrOfColumns * blockRows * 8);
+        block.order(ByteOrder.LITTLE_ENDIAN);
+        blockHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+        ByteBuffer header = createHeader(columnNames, blockRows);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (compress){
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflated = new byte[1 << 16];
+        }
+        long end = append ? (compress ? findEndOfCompleteMembers(header) : findEndOfCompleteBlocks(header)) : -1;
+        if (end < 0){
+            channel.truncate(0);
+            channel.position(0);
+            if (compress){
+                writeMember(header.array(), header.remaining());
+            }
+            else {
+                writeFully(header);
+            }
+        }
+        else {
+            channel.truncate(end);
+            channel.position(end);
+            dataEnd = end;
+        }
+        if (compress){
+            compressor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ModelComparisonBinaryLog compressor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static ByteBuffer createHeader(String[] columnNames, int blockRows){
+        int size = 16;
+        for (String columnName : columnNames){
+            size = size + 4 + columnName.getBytes(StandardCharsets.UTF_8).length;
+        }
+        size = ((size + 7) / 8) * 8;
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(columnNames.length).putInt(blockRows);
+        for (String columnName : columnNames){
+            byte[] name = columnName.getBytes(StandardCharsets.UTF_8);
+            header.putInt(name.length).put(name);
+        }
+        header.position(0);
+        return header;
+    }
+
+    /**
+     * The end of the last complete block of the file, or -1 if it does not start with the same header
+     */
+    private long findEndOfCompleteBlocks(ByteBuffer header) throws IOException {
+        long size = channel.size();
+        if (size < header.remaining()){
+            return -1;
+        }
+        ByteBuffer existingHeader = ByteBuffer.allocate(header.remaining());
+        channel.read(existingHeader, 0);
+        existingHeader.flip();
+        if ( ! existingHeader.equals(header)){
+            return -1;
+        }
+        long end = header.remaining();
+        ByteBuffer rowCount = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        while (end + 8 <= size){
+            rowCount.clear();
+            channel.read(rowCount, end);
+            long blockSize = 8 + (rowCount.getLong(0) * nrOfColumns * 8);
+            if (rowCount.getLong(0) <= 0 || rowCount.getLong(0) > blockRows || end + blockSize > size){
+                break;
+            }
+            blockStarts.add(end);
+            end = end + blockSize;
+        }
+        return end;
+    }
+
+    /**
+     * The end of the last gzip member of the file which is complete, or -1 if the first member is not the same header
+     */
+    private long findEndOfCompleteMembers(ByteBuffer header) throws IOException {
+        long size = channel.size();
+        long end = 0;
+        ByteBuffer input = ByteBuffer.allocate(1 << 16);
+        byte[] output = new byte[1 << 16];
+        Inflater inflater = new Inflater(true);
+        try {
+            while (end + 18 <= size){
+                //Header of the member (as written by GZIPOutputStream, without optional fields)
+                ByteBuffer memberHeader = ByteBuffer.allocate(10);
+                channel.read(memberHeader, end);
+                if ((memberHeader.get(0) & 0xFF) != 0x1F || (memberHeader.get(1) & 0xFF) != 0x8B || memberHeader.get(2) != 8 || memberHeader.get(3) != 0){
+                    break;
+                }
+                inflater.reset();
+                long position = end + 10;
+                ByteBuffer firstMember = end == 0 ? ByteBuffer.allocate(header.remaining() + 1) : null;
+                while ( ! inflater.finished()){
+                    if (inflater.needsInput()){
+                        input.clear();
+                        int read = channel.read(input, position);
+                        if (read <= 0){
+                            return end == 0 ? -1 : end;
+                        }
+                        position = position + read;
+                        inflater.setInput(input.array(), 0, read);
+                    }
+                    int inflated = inflater.inflate(output);
+                    if (firstMember != null){
+                        firstMember.put(output, 0, Math.min(inflated, firstMember.remaining()));
+                    }
+                }
+                long memberEnd = position - inflater.getRemaining() + 8; // with the CRC and size after the data
+                if (memberEnd > size){
+                    break;
+                }
+                if (firstMember != null){
+                    firstMember.flip();
+                    if ( ! firstMember.equals(header)){
+                        return -1;
+                    }
+                }
+                else {
+                    blockStarts.add(end);
+                }
+                end = memberEnd;
+            }
+        }
+        catch (DataFormatException e){
+            //The rest of the file is not a complete member
+        }
+        finally {
+            inflater.end();
+        }
+        return end == 0 ? -1 : end;
+    }
+
+    /**
+     * Takes the rows whose first column (the sample) is at least the given value out of the file, for a resumed chain which logs them again.
+     * To be called before any rows are added. The rows before them in the same block are kept as the start of the current block.
+     */
+    public void removeRowsFrom(double firstValue) throws IOException {
+        for (int blockNr = blockStarts.size() - 1; blockNr >= 0; blockNr--){
+            long blockEnd = blockNr + 1 < blockStarts.size() ? blockStarts.get(blockNr + 1) : dataEnd;
+            ByteBuffer existingBlock = readBlock(blockStarts.get(blockNr), blockEnd);
+            int existingRows = (int) existingBlock.getLong(0);
+            if (existingBlock.getDouble(8) < firstValue || blockNr == 0){
+                int keptRows = 0;
+                while (keptRows < existingRows && existingBlock.getDouble(8 + (keptRows * 8)) < firstValue){
+                    keptRows++;
+                }
+                for (int blockColumn = 0; blockColumn < nrOfColumns; blockColumn++){
+                    for (int row = 0; row < keptRows; row++){
+                        block.putDouble(((blockColumn * blockRows) + row) * 8, existingBlock.getDouble(8 + (((blockColumn * existingRows) + row) * 8)));
+                    }
+                }
+                rows = keptRows;
+                channel.truncate(blockStarts.get(blockNr));
+                channel.position(blockStarts.get(blockNr));
+                break;
+            }
+        }
+        blockStarts.clear();
+    }
+
+    /**
+     * The block (with its number of rows) of the file from start to end, decompressed if need be
+     */
+    private ByteBuffer readBlock(long start, long end) throws IOException {
+        ByteBuffer stored = ByteBuffer.allocate((int) (end - start));
+        while (stored.hasRemaining() && channel.read(stored, start + stored.position()) > 0){
+            //Reads up to end
+        }
+        if ( ! compress){
+            stored.flip();
+            return stored.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        //The deflated data of the gzip member, between its header and its CRC and size
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(stored.array(), 10, stored.capacity() - 18);
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+            byte[] output = new byte[1 << 16];
+            while ( ! inflater.finished()){
+                int length = inflater.inflate(output);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    throw new IOException("A block of the binary log could not be decompressed");
+                }
+                inflated.write(output, 0, length);
+            }
+            return ByteBuffer.wrap(inflated.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (DataFormatException e) {
+            throw new IOException("A block of the binary log could not be decompressed", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes the rows added so far to the file (as a block with fewer rows than a full one), so that they are not lost if the chain is stopped
+     */
+    public void flush() throws IOException {
+        writeBlock();
+        waitForCompressor();
+    }
+
+    /**
+     * Adds the next value of the current row. After the value of the last column, the next value starts a new row.
+     */
+    public void add(double value) throws IOException {
+        block.putDouble(((column * blockRows) + rows) * 8, value);
+        column++;
+        if (column == nrOfColumns){
+            column = 0;
+            rows++;
+            if (rows == blockRows){
+                writeBlock();
+            }
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (rows == 0){
+            return;
+        }
+        if (compress){
+            compressBlock();
+            return;
+        }
+        blockHeader.clear();
+        blockHeader.putLong(0, rows);
+        writeFully(blockHeader);
+        for (int blockColumn = 0; blockColumn < nrOfColumns; blockColumn++){
+            ByteBuffer columnValues = block.duplicate();
+            columnValues.position(blockColumn * blockRows * 8);
+            columnValues.limit(((blockColumn * blockRows) + rows) * 8);
+            writeFully(columnValues);
+        }
+        rows = 0;
+    }
+
+    /**
+     * Hands the block over to the compressor thread, once it has finished with the block before
+     */
+    private void compressBlock() throws IOException {
+        waitForCompressor();
+        //The columns are moved together, as they are in the file
+        byte[] data = new byte[8 + (rows * nrOfColumns * 8)];
+        ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).putLong(0, rows);
+        for (int blockColumn = 0; blockColumn < nrOfColumns; blockColumn++){
+            System.arraycopy(block.array(), blockColumn * blockRows * 8, data, 8 + (blockColumn * rows * 8), rows * 8);
+        }
+        compressing = compressor.submit(() -> {
+            writeMember(data, data.length);
+            return null;
+        });
+        rows = 0;
+    }
+
+    private void waitForCompressor() throws IOException {
+        if (compressing == null){
+            return;
+        }
+        try {
+            compressing.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while compressing the binary log", e);
+        }
+        compressing = null;
+    }
+
+    /**
+     * Writes the data as one gzip member: the header (as GZIPOutputStream writes it), the deflated data, and the CRC and size of the data
+     */
+    private void writeMember(byte[] data, int length) throws IOException {
+        writeFully(ByteBuffer.wrap(new byte[]{0x1F, (byte) 0x8B, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0}));
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        while ( ! deflater.finished()){
+            int deflatedLength = deflater.deflate(deflated);
+            writeFully(ByteBuffer.wrap(deflated, 0, deflatedLength));
+        }
+        crc.reset();
+        crc.update(data, 0, length);
+        ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt(0, (int) crc.getValue()).putInt(4, length);
+        writeFully(trailer);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes the rows of the last block (a row which is not complete is left out) and closes the file
+     */
+    public void close() throws IOException {
+        column = 0;
+        try {
+            writeBlock();
+            waitForCompressor();
+        }
+        finally {
+            if (compressor != null){
+                compressor.shutdown();
+            }
+            if (deflater != null){
+                deflater.end();
+            }
+            channel.close();
+        }
+    }
+}
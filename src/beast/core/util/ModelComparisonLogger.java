@@ -3,35 +3,122 @@ package beast.core.util;
 import beast.core.BEASTObject;
 import beast.core.Input;
 import beast.core.Loggable;
+import beast.core.Logger;
 import beast.math.distributions.ModelComparisonDistribution;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
  * This class defines a BEAST Object which can be used to log the values for beta and U at a given interval along the chain.
+ * With more than two models, the log ratio of the inner posteriors of each pair of neighbouring models is logged as well (UValue_0_1, UValue_1_2, ...)
+ * The same values (with the sample number) can also be written to a binary file, see ModelComparisonBinaryLog, and the text left out.
+ * With 'estimate', the log Bayes factor is also worked out from the values at every sample of the chain (see RunningPathIntegral), and reported
+ * when the chain ends, so that nothing needs to be logged at all when only the estimate is wanted.
  */
 public class ModelComparisonLogger extends BEASTObject implements Loggable {
 
     public Input<ModelComparisonDistribution> posteriorInput = new Input<>("posteriorDistribution", "The BEASTObject which is the posterior. Must be a ModelComparisonDistribution");
 
+    public Input<String> binaryFileNameInput = new Input<>("binaryFileName", "if given, the sample, beta and U are also written to this file as raw little-endian doubles in blocks of columns, which ModelComparisonCalculator can read much faster than text");
+
+    public Input<Boolean> compressInput = new Input<>("compress", "if true, binaryFileName is compressed with gzip, by a background thread (default false)", false);
+
+    public Input<Boolean> logTextInput = new Input<>("logText", "if false, beta and U are not written to the text log of the logger this is in (only to binaryFileName, or only used for the estimate). A logger which has nothing else to log then writes no rows at all (default true)", true);
+
+    public Input<Boolean> estimateInput = new Input<>("estimate", "if true, the log Bayes factor of each pass of beta along the path is estimated from the values at every sample of the chain, whatever the logEvery of the logger (without storing them), and printed at the end of the chain and written at the end of the log as a comment (default false)", false);
+
     public ModelComparisonDistribution posteriorObject;
 
+    private ModelComparisonBinaryLog binaryLog;
+    private boolean logText;
+    private RunningPathIntegral pathIntegral;
+    private List<Double> passIntegrals; // of the passes completed so far
+    private List<Double> passBetaCovered;
+    private List<Integer> passDirections;
+
     @Override
     public void initAndValidate(){
         posteriorObject = posteriorInput.get();
+        logText = logTextInput.get();
+        if ( ! logText && binaryFileNameInput.get() == null && ! estimateInput.get()){
+            throw new IllegalArgumentException("logText can only be false if there is a binaryFileName or estimate is true (on the ModelComparisonLogger object)");
+        }
+        if (compressInput.get() && binaryFileNameInput.get() == null){
+            throw new IllegalArgumentException("compress can only be true if there is a binaryFileName (on the ModelComparisonLogger object)");
+        }
+        if (estimateInput.get()){
+            pathIntegral = new RunningPathIntegral();
+            passIntegrals = new ArrayList<>();
+            passBetaCovered = new ArrayList<>();
+            passDirections = new ArrayList<>();
+        }
     }
 
     @Override
     public void init(PrintStream out) {
+        if (binaryFileNameInput.get() != null && binaryLog == null){
+            initBinaryLog();
+        }
+        if ( ! logText){
+            return;
+        }
         out.print("BetaValue\tUValue\t");
+        if (posteriorObject.getNrOfModels() > 2){
+            for (int pair = 0; pair < posteriorObject.getNrOfModels() - 1; pair++){
+                out.print("UValue_" + pair + "_" + (pair + 1) + "\t");
+            }
+        }
+        if (posteriorObject.isEquilibrationLogged()){
+            //Marks the samples whose value of U should not be used, so ModelComparisonCalculator can leave them out
+            out.print("Equilibrating\t");
+        }
+    }
+
+    private void initBinaryLog(){
+        List<String> columnNames = new ArrayList<>();
+        columnNames.add("Sample");
+        columnNames.add("BetaValue");
+        columnNames.add("UValue");
+        if (posteriorObject.getNrOfModels() > 2){
+            for (int pair = 0; pair < posteriorObject.getNrOfModels() - 1; pair++){
+                columnNames.add("UValue_" + pair + "_" + (pair + 1));
+            }
+        }
+        if (posteriorObject.isEquilibrationLogged()){
+            columnNames.add("Equilibrating");
+        }
+        File file = new File(binaryFileNameInput.get());
+        try {
+            //When a chain is resumed, its rows carry on after those already in the file
+            binaryLog = new ModelComparisonBinaryLog(file, columnNames.toArray(new String[0]), ModelComparisonBinaryLog.DEFAULT_BLOCK_ROWS,
+                    Logger.FILE_MODE == Logger.LogFileMode.resume, compressInput.get());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open the binary log " + file, e);
+        }
     }
 
     @Override
     public void log(int sample, PrintStream out) {
+        logToBinaryFile(sample);
+        if ( ! logText){
+            return;
+        }
         double betaValue = posteriorObject.getBetaValue();
         out.print(betaValue + "\t");
         out.print(calculateUValue() + "\t");
+        if (posteriorObject.getNrOfModels() > 2){
+            for (int pair = 0; pair < posteriorObject.getNrOfModels() - 1; pair++){
+                out.print(posteriorObject.calculatePairUValue(pair) + "\t");
+            }
+        }
+        if (posteriorObject.isEquilibrationLogged()){
+            out.print((posteriorObject.isEquilibrating() ? 1 : 0) + "\t");
+        }
     }
 
     public double calculateUValue(){
@@ -40,8 +127,123 @@ public class ModelComparisonLogger extends BEASTObject implements Loggable {
 
     }
 
+    public boolean isLoggingText(){
+        return logText;
+    }
+
+    public boolean isEstimating(){
+        return pathIntegral != null;
+    }
+
+    /**
+     * Adds the current values of beta and U to the estimate. ModelComparisonMCMC calls this at every sample (rather than only at those logged),
+     * except while the inner posterior with zero weight is deferred, when the values of U are only up to date at the samples logged.
+     */
+    public void addToEstimate(){
+        if (posteriorObject.isEquilibrationLogged() && posteriorObject.isEquilibrating()){
+            return; // left out, as ModelComparisonCalculator does
+        }
+        double betaCovered = pathIntegral.getBetaCovered();
+        int direction = pathIntegral.getDirection();
+        int nrOfCompletedPasses = pathIntegral.getNrOfCompletedPasses();
+        pathIntegral.add(posteriorObject.getBetaValue(), calculateUValue());
+        if (pathIntegral.getNrOfCompletedPasses() > nrOfCompletedPasses){
+            passIntegrals.add(pathIntegral.getPreviousPassIntegral());
+            passBetaCovered.add(betaCovered);
+            passDirections.add(direction);
+        }
+    }
+
+    /**
+     * Prints the estimate of each pass to the screen and to out, as comment lines
+     */
+    private void reportEstimate(PrintStream out){
+        List<String> lines = new ArrayList<>();
+        lines.add("Log Bayes factor estimated while the chain ran" + (getID() != null ? " (" + getID() + ")" : "")
+                + (Logger.FILE_MODE == Logger.LogFileMode.resume ? ", from the samples since the chain was resumed" : "") + ":");
+        int nrOfPasses = passIntegrals.size() + (pathIntegral.getBetaCovered() > 0.0 ? 1 : 0);
+        for (int pass = 0; pass < nrOfPasses; pass++){
+            boolean completed = pass < passIntegrals.size();
+            double integral = completed ? passIntegrals.get(pass) : pathIntegral.getIntegral();
+            double betaCovered = completed ? passBetaCovered.get(pass) : pathIntegral.getBetaCovered();
+            int direction = completed ? passDirections.get(pass) : pathIntegral.getDirection();
+            lines.add(" - Pass " + (pass + 1) + " (beta " + (direction > 0 ? "increasing" : "decreasing") + ", covering " + betaCovered + " of the path): " + integral);
+        }
+        if (nrOfPasses == 0){
+            lines.add(" - None (beta did not change)");
+        }
+        for (String line : lines){
+            Log.warning.println(line);
+            if (out != System.out){
+                out.println("# " + line);
+            }
+        }
+    }
+
+    /**
+     * Logs the sample to binaryFileName only (if there is one). ModelComparisonMCMC calls this for the samples of a resumed chain which are
+     * already in the text log, since the binary log is only kept up to the last stored state.
+     */
+    public void logToBinaryFile(int sample){
+        if (binaryFileNameInput.get() == null){
+            return;
+        }
+        if (binaryLog == null){
+            initBinaryLog(); // a resumed logger does not call init
+            try {
+                //The rows logged after the stored state the chain was resumed from are logged again
+                binaryLog.removeRowsFrom(sample);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read the binary log " + binaryFileNameInput.get(), e);
+            }
+        }
+        logBinary(sample);
+    }
+
+    /**
+     * Writes the rows logged so far to binaryFileName, for when the state of the chain is stored
+     */
+    public void flush(){
+        if (binaryLog == null){
+            return;
+        }
+        try {
+            binaryLog.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write to the binary log " + binaryFileNameInput.get(), e);
+        }
+    }
+
+    private void logBinary(int sample){
+        try {
+            binaryLog.add(sample);
+            binaryLog.add(posteriorObject.getBetaValue());
+            binaryLog.add(calculateUValue());
+            if (posteriorObject.getNrOfModels() > 2){
+                for (int pair = 0; pair < posteriorObject.getNrOfModels() - 1; pair++){
+                    binaryLog.add(posteriorObject.calculatePairUValue(pair));
+                }
+            }
+            if (posteriorObject.isEquilibrationLogged()){
+                binaryLog.add(posteriorObject.isEquilibrating() ? 1 : 0);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write to the binary log " + binaryFileNameInput.get(), e);
+        }
+    }
+
     @Override
     public void close(PrintStream out) {
-
+        if (pathIntegral != null){
+            reportEstimate(out);
+        }
+        if (binaryLog != null){
+            try {
+                binaryLog.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write to the binary log " + binaryFileNameInput.get(), e);
+            }
+            binaryLog = null;
+        }
     }
 }
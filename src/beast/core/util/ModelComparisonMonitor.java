@@ -0,0 +1,171 @@
+package beast.core.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Makes the progress of a running ModelComparisonMCMC chain available over JMX, for the 'monitor' option: the sample, beta and U,
+ * the speed of the chain and how long it has left, and a running estimate of the log Bayes factor (see RunningPathIntegral).
+ * The chain calls update after every sample. The estimate only covers the samples since the chain started or resumed,
+ * ModelComparisonCalculator gives the final estimate from the log file.
+ */
+public class ModelComparisonMonitor implements ModelComparisonMonitorMBean {
+
+    private static final long RECENT_NANOS = 5000000000L; // the recent speed is measured over about this long
+
+    private final long chainLength;
+    private final String betaControlMode;
+    private final RunningPathIntegral pathIntegral = new RunningPathIntegral();
+    private ObjectName objectName;
+
+    private long sampleNr;
+    private double betaValue = Double.NaN;
+    private double UValue = Double.NaN;
+    private long startNanos;
+    private long startSampleNr;
+    private long lastSampleNanos;
+    private long recentStartNanos;
+    private long recentStartSampleNr;
+    private double recentSamplesPerSecond = Double.NaN;
+
+    public ModelComparisonMonitor(long chainLength, String betaControlMode){
+        this.chainLength = chainLength;
+        this.betaControlMode = betaControlMode;
+    }
+
+    /**
+     * Registers the monitor with the platform MBean server as beast.core:type=ModelComparisonMCMC,name=(name),
+     * adding a number to the name if another chain in this JVM already has it.
+     * @return false (after a warning) if it could not be registered
+     */
+    public boolean register(String name){
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int copy = 1; ; copy++){
+            try {
+                ObjectName candidate = new ObjectName("beast.core:type=ModelComparisonMCMC,name=" + ObjectName.quote(copy == 1 ? name : name + "-" + copy));
+                server.registerMBean(this, candidate);
+                objectName = candidate;
+                Log.warning.println("Progress of the chain is available over JMX as " + objectName);
+                return true;
+            }
+            catch (InstanceAlreadyExistsException e){
+                // try the next name
+            }
+            catch (JMException e){
+                Log.warning.println("Could not register the progress of the chain over JMX: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    public void unregister(){
+        if (objectName == null){
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (JMException e){
+            // already gone
+        }
+        objectName = null;
+    }
+
+    /**
+     * Called by the chain before its first sample
+     */
+    public synchronized void start(long firstSampleNr){
+        startNanos = System.nanoTime();
+        lastSampleNanos = startNanos;
+        recentStartNanos = startNanos;
+        startSampleNr = firstSampleNr;
+        recentStartSampleNr = firstSampleNr;
+        sampleNr = firstSampleNr;
+    }
+
+    /**
+     * Called by the chain after every sample
+     * @param UValue the value of U at the state after the sample, or NaN if it is not known
+     */
+    public synchronized void update(long sampleNr, double betaValue, double UValue){
+        this.sampleNr = sampleNr;
+        this.betaValue = betaValue;
+        this.UValue = UValue;
+        lastSampleNanos = System.nanoTime();
+        if (lastSampleNanos - recentStartNanos >= RECENT_NANOS){
+            recentSamplesPerSecond = (sampleNr - recentStartSampleNr) / ((lastSampleNanos - recentStartNanos) / 1e9);
+            recentStartNanos = lastSampleNanos;
+            recentStartSampleNr = sampleNr;
+        }
+        if (sampleNr >= 0 && ! Double.isNaN(UValue)){
+            pathIntegral.add(betaValue, UValue);
+        }
+    }
+
+    @Override
+    public synchronized long getSampleNr(){
+        return sampleNr;
+    }
+
+    @Override
+    public long getChainLength(){
+        return chainLength;
+    }
+
+    @Override
+    public String getBetaControlMode(){
+        return betaControlMode;
+    }
+
+    @Override
+    public synchronized double getBeta(){
+        return betaValue;
+    }
+
+    @Override
+    public synchronized double getU(){
+        return UValue;
+    }
+
+    @Override
+    public synchronized double getSamplesPerSecond(){
+        long nanos = lastSampleNanos - startNanos;
+        return nanos > 0 ? (sampleNr - startSampleNr) / (nanos / 1e9) : Double.NaN;
+    }
+
+    @Override
+    public synchronized double getRecentSamplesPerSecond(){
+        //Until the first few seconds have passed, the speed since the start
+        return Double.isNaN(recentSamplesPerSecond) ? getSamplesPerSecond() : recentSamplesPerSecond;
+    }
+
+    @Override
+    public synchronized double getEstimatedSecondsRemaining(){
+        return (chainLength - sampleNr) / getRecentSamplesPerSecond();
+    }
+
+    @Override
+    public synchronized double getSecondsSinceLastSample(){
+        return (System.nanoTime() - lastSampleNanos) / 1e9;
+    }
+
+    @Override
+    public synchronized double getLogBayesFactorEstimate(){
+        return pathIntegral.getBetaCovered() > 0.0 ? pathIntegral.getIntegral() : Double.NaN;
+    }
+
+    @Override
+    public synchronized double getBetaPathCovered(){
+        return pathIntegral.getBetaCovered();
+    }
+
+    @Override
+    public synchronized double getPreviousPassLogBayesFactorEstimate(){
+        return pathIntegral.getPreviousPassIntegral();
+    }
+}
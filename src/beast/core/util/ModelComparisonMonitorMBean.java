@@ -0,0 +1,42 @@
+package beast.core.util;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * The attributes of a running ModelComparisonMCMC chain which ModelComparisonMonitor makes available over JMX
+ * (e.g. to jconsole, or to a scheduler through a JMX client).
+ */
+public interface ModelComparisonMonitorMBean {
+
+    /** The sample the chain is at (negative during pre-burnin) */
+    long getSampleNr();
+
+    long getChainLength();
+
+    String getBetaControlMode();
+
+    double getBeta();
+
+    /** The value of U at the current state, NaN while it is not known (such as while the inner posterior with zero weight is deferred) */
+    double getU();
+
+    /** Samples per second since the chain started (or resumed) */
+    double getSamplesPerSecond();
+
+    /** Samples per second over the last few seconds */
+    double getRecentSamplesPerSecond();
+
+    /** Seconds until the chain reaches chainLength at the recent speed */
+    double getEstimatedSecondsRemaining();
+
+    /** Seconds since the chain last finished a sample. A large value means the chain has stalled */
+    double getSecondsSinceLastSample();
+
+    /** The integral of U over the part of the path the current pass of beta has covered: the log Bayes factor estimate once it covers 0 to 1. NaN for 'static' chains */
+    double getLogBayesFactorEstimate();
+
+    /** How much of the path from 0 to 1 the current pass of beta has covered */
+    double getBetaPathCovered();
+
+    /** The log Bayes factor estimate of the previous pass of beta ('bothways'), NaN until beta has turned */
+    double getPreviousPassLogBayesFactorEstimate();
+}
@@ -0,0 +1,140 @@
+package beast.core.util;
+
+import beast.core.Operator;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Collects where a ModelComparisonMCMC chain spends its time, for the 'profile' option.
+ * For every operator and window of beta it counts the proposals and their outcomes, and adds up the time taken by the
+ * proposals and by the calculation of each inner posterior after them. Everything is kept in arrays of primitives
+ * which are only added to while the chain runs, so profiling costs little more than the calls to System.nanoTime().
+ * (With components shared between the models, a shared component is counted in the time of the first model which calculates it.)
+ */
+public class ModelComparisonProfile {
+
+    public static final int ACCEPTED = 0;
+    public static final int REJECTED = 1;
+    public static final int FAILED = 2; // the operator could not make a proposal
+
+    private final List<Operator> operators;
+    private final Map<Operator, Integer> operatorNrs = new HashMap<>();
+    private final int nrOfModels;
+    private final int nrOfBetaWindows;
+
+    //Indexed by operator * nrOfBetaWindows + beta window
+    private final long[] outcomeCounts; // * 3 + outcome
+    private final long[] proposalNanos;
+    private final long[] modelCalculations; // * nrOfModels + model
+    private final long[] modelNanos; // * nrOfModels + model
+
+    public ModelComparisonProfile(List<Operator> operators, int nrOfModels, int nrOfBetaWindows){
+        if (nrOfBetaWindows < 1){
+            throw new IllegalArgumentException("There must be at least one window of beta to profile");
+        }
+        this.operators = operators;
+        this.nrOfModels = nrOfModels;
+        this.nrOfBetaWindows = nrOfBetaWindows;
+        for (int operatorNr = 0; operatorNr < operators.size(); operatorNr++){
+            operatorNrs.put(operators.get(operatorNr), operatorNr);
+        }
+        int nrOfCells = operators.size() * nrOfBetaWindows;
+        outcomeCounts = new long[nrOfCells * 3];
+        proposalNanos = new long[nrOfCells];
+        modelCalculations = new long[nrOfCells * nrOfModels];
+        modelNanos = new long[nrOfCells * nrOfModels];
+    }
+
+    /**
+     * The cell of the profile for the given operator at the given value of beta, to pass to the record methods
+     */
+    public int getCell(Operator operator, double betaValue){
+        int betaWindow = Math.max(0, Math.min(nrOfBetaWindows - 1, (int) (betaValue * nrOfBetaWindows)));
+        return (operatorNrs.get(operator) * nrOfBetaWindows) + betaWindow;
+    }
+
+    public void recordProposal(int cell, long nanos){
+        proposalNanos[cell] += nanos;
+    }
+
+    /**
+     * @param nanos the time taken by each of the inner posteriors, or -1 for those which were not calculated
+     */
+    public void recordModelCalculations(int cell, long[] nanos){
+        for (int which_dist = 0; which_dist < nrOfModels; which_dist++){
+            if (nanos[which_dist] >= 0){
+                modelCalculations[(cell * nrOfModels) + which_dist]++;
+                modelNanos[(cell * nrOfModels) + which_dist] += nanos[which_dist];
+            }
+        }
+    }
+
+    public void recordOutcome(int cell, int outcome){
+        outcomeCounts[(cell * 3) + outcome]++;
+    }
+
+    /**
+     * Prints one row for every operator and window of beta in which the operator made proposals, with the mean times in ns,
+     * followed by the total time spent calculating each inner posterior
+     */
+    public void report(PrintStream out, String heading){
+        out.println(heading);
+        StringBuilder header = new StringBuilder("Operator\tBetaWindow\tProposals\tAccepted\tRejected\tFailed\tProposalNs");
+        for (int which_dist = 0; which_dist < nrOfModels; which_dist++){
+            header.append("\tModel").append(which_dist).append("Calculations\tModel").append(which_dist).append("Ns");
+        }
+        out.println(header);
+
+        long[] totalModelNanos = new long[nrOfModels];
+        long totalProposalNanos = 0;
+        for (int operatorNr = 0; operatorNr < operators.size(); operatorNr++){
+            for (int betaWindow = 0; betaWindow < nrOfBetaWindows; betaWindow++){
+                int cell = (operatorNr * nrOfBetaWindows) + betaWindow;
+                long proposals = outcomeCounts[cell * 3] + outcomeCounts[(cell * 3) + 1] + outcomeCounts[(cell * 3) + 2];
+                if (proposals == 0){
+                    continue;
+                }
+                totalProposalNanos += proposalNanos[cell];
+                StringBuilder row = new StringBuilder(getOperatorName(operatorNr));
+                row.append('\t').append(getBetaWindowName(betaWindow));
+                row.append('\t').append(proposals);
+                row.append('\t').append(outcomeCounts[(cell * 3) + ACCEPTED]);
+                row.append('\t').append(outcomeCounts[(cell * 3) + REJECTED]);
+                row.append('\t').append(outcomeCounts[(cell * 3) + FAILED]);
+                row.append('\t').append(proposalNanos[cell] / proposals);
+                for (int which_dist = 0; which_dist < nrOfModels; which_dist++){
+                    long calculations = modelCalculations[(cell * nrOfModels) + which_dist];
+                    totalModelNanos[which_dist] += modelNanos[(cell * nrOfModels) + which_dist];
+                    row.append('\t').append(calculations);
+                    row.append('\t').append(calculations > 0 ? modelNanos[(cell * nrOfModels) + which_dist] / calculations : 0);
+                }
+                out.println(row);
+            }
+        }
+
+        long totalNanos = totalProposalNanos;
+        for (long nanos : totalModelNanos){
+            totalNanos += nanos;
+        }
+        out.println("Proposals: " + (totalProposalNanos / 1000000) + " ms (" + getPercentage(totalProposalNanos, totalNanos) + "%)");
+        for (int which_dist = 0; which_dist < nrOfModels; which_dist++){
+            out.println("Model " + which_dist + ": " + (totalModelNanos[which_dist] / 1000000) + " ms (" + getPercentage(totalModelNanos[which_dist], totalNanos) + "%)");
+        }
+    }
+
+    private String getOperatorName(int operatorNr){
+        return operators.get(operatorNr).getName(); // as in the operator table BEAST prints
+    }
+
+    private String getBetaWindowName(int betaWindow){
+        return String.format("%.2f-%.2f", (double) betaWindow / nrOfBetaWindows, (double) (betaWindow + 1) / nrOfBetaWindows);
+    }
+
+    private static long getPercentage(long part, long total){
+        return total > 0 ? Math.round(100.0 * part / total) : 0;
+    }
+}
@@ -0,0 +1,106 @@
+package beast.core.util;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Keeps a running estimate of the integral of U over beta while the chain moves along the path, without storing the samples.
+ * Samples of U taken one after the other at the same value of beta (such as with a StepwiseBetaSchedule) are averaged first,
+ * and the trapezoid rule is applied between the averages, so with beta changing every sample this is the trapezoid rule of
+ * ModelComparisonCalculator.integrateOverBeta. When beta changes direction (betaControlMode 'bothways') a new pass is started.
+ * Once a pass covers the whole path from 0 to 1, its integral is the log Bayes factor estimate for that pass.
+ */
+public class RunningPathIntegral {
+
+    //The run of samples at the latest value of beta, which is still being added to
+    private double runBetaValue;
+    private double runMeanU;
+    private long runCount;
+
+    //The run before it
+    private boolean hasClosedRun;
+    private double closedBetaValue;
+    private double closedMeanU;
+
+    private int direction; // 1 if beta is increasing along the current pass, -1 if decreasing, 0 if not yet known
+    private double integral; // of the current pass, up to the closed run
+    private double betaCovered; // of the current pass, up to the closed run
+    private double previousPassIntegral = Double.NaN;
+    private int nrOfCompletedPasses;
+
+    public void add(double betaValue, double UValue){
+        if (runCount > 0 && betaValue != runBetaValue){
+            closeRun();
+        }
+        if (runCount == 0){
+            runBetaValue = betaValue;
+            runMeanU = 0.0;
+        }
+        runCount++;
+        runMeanU = runMeanU + ((UValue - runMeanU) / runCount);
+    }
+
+    private void closeRun(){
+        if (hasClosedRun){
+            double betaChange = runBetaValue - closedBetaValue;
+            if (startsNewPass(betaChange)){
+                previousPassIntegral = integral;
+                nrOfCompletedPasses++;
+                integral = 0.0;
+                betaCovered = 0.0;
+            }
+            direction = betaChange > 0 ? 1 : -1;
+            integral = integral + (0.5 * (closedMeanU + runMeanU) * Math.abs(betaChange));
+            betaCovered = betaCovered + Math.abs(betaChange);
+        }
+        closedBetaValue = runBetaValue;
+        closedMeanU = runMeanU;
+        hasClosedRun = true;
+        runCount = 0;
+    }
+
+    private boolean startsNewPass(double betaChange){
+        return direction != 0 && (betaChange > 0 ? 1 : -1) != direction;
+    }
+
+    private double getOpenBetaChange(){
+        return (hasClosedRun && runCount > 0) ? runBetaValue - closedBetaValue : 0.0;
+    }
+
+    /**
+     * The integral of U over the part of the path the current pass has covered so far
+     */
+    public double getIntegral(){
+        double openIntegral = 0.5 * (closedMeanU + runMeanU) * Math.abs(getOpenBetaChange());
+        return openRunStartsNewPass() ? openIntegral : integral + openIntegral;
+    }
+
+    /**
+     * How much of the path from 0 to 1 the current pass has covered so far
+     */
+    public double getBetaCovered(){
+        double openBetaCovered = Math.abs(getOpenBetaChange());
+        return openRunStartsNewPass() ? openBetaCovered : betaCovered + openBetaCovered;
+    }
+
+    /**
+     * The integral of U over the last pass which was completed (NaN if beta has not changed direction yet)
+     */
+    public double getPreviousPassIntegral(){
+        return openRunStartsNewPass() ? integral : previousPassIntegral;
+    }
+
+    /**
+     * 1 if beta is increasing along the current pass, -1 if it is decreasing, 0 if beta has not changed yet
+     */
+    public int getDirection(){
+        return openRunStartsNewPass() ? -direction : direction;
+    }
+
+    public int getNrOfCompletedPasses(){
+        return openRunStartsNewPass() ? nrOfCompletedPasses + 1 : nrOfCompletedPasses;
+    }
+
+    private boolean openRunStartsNewPass(){
+        double betaChange = getOpenBetaChange();
+        return betaChange != 0.0 && startsNewPass(betaChange);
+    }
+}
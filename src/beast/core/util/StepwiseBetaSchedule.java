@@ -0,0 +1,67 @@
+package beast.core.util;
+
+import beast.core.Input;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Instead of changing beta every sample, holds it fixed at each of nrOfSteps values in turn (like the rungs of a ladder, but in a single chain).
+ * After each change, the first equilibrationFraction of the samples at that value of beta let the chain adjust to it and their values of U are discarded.
+ * The values of beta for the steps are evenly spaced, or follow the curve of another schedule given as spacing.
+ */
+public class StepwiseBetaSchedule extends BetaSchedule {
+
+    final public Input<Integer> nrOfStepsInput = new Input<>("nrOfSteps", "number of values of beta to hold fixed in turn on each pass, including both ends of the path (default 11)", 11);
+
+    final public Input<Double> equilibrationFractionInput = new Input<>("equilibrationFraction", "fraction of the samples at each value of beta which are discarded after beta changes (default 0.2)", 0.2);
+
+    final public Input<BetaSchedule> spacingInput = new Input<>("spacing", "schedule whose curve places the values of beta of the steps (default evenly spaced)");
+
+    private int nrOfSteps;
+    private double equilibrationFraction;
+    private BetaSchedule spacing;
+
+    @Override
+    public void initAndValidate(){
+        nrOfSteps = nrOfStepsInput.get();
+        if (nrOfSteps < 2){
+            throw new IllegalArgumentException("nrOfSteps must be at least 2 (on the StepwiseBetaSchedule object)");
+        }
+        equilibrationFraction = equilibrationFractionInput.get();
+        if (equilibrationFraction < 0.0 || equilibrationFraction >= 1.0){
+            throw new IllegalArgumentException("equilibrationFraction must be at least 0 and less than 1 (on the StepwiseBetaSchedule object)");
+        }
+        spacing = spacingInput.get() != null ? spacingInput.get() : new LinearBetaSchedule();
+    }
+
+    @Override
+    public double getBetaValue(double passFraction){
+        //The values of beta of the steps are at evenly spaced positions along this curve
+        return spacing.getBetaValue(passFraction);
+    }
+
+    @Override
+    public List<BetaPathSegment> createPass(int originSample, int lastSample, double fromBeta, double toBeta, boolean includeOrigin){
+        int firstSample = includeOrigin ? originSample : originSample + 1;
+        int nrOfSamples = lastSample - firstSample + 1;
+        if (nrOfSamples < nrOfSteps){
+            throw new IllegalArgumentException("The chain is too short for " + nrOfSteps + " steps of beta (on the StepwiseBetaSchedule object)");
+        }
+
+        List<BetaPathSegment> segments = new ArrayList<>();
+        for (int step = 0; step < nrOfSteps; step++){
+            int stepFirstSample = firstSample + (int) ((long) step * nrOfSamples / nrOfSteps);
+            int stepLastSample = firstSample + (int) ((long) (step + 1) * nrOfSamples / nrOfSteps) - 1;
+            int nrOfEquilibrationSamples = (int) (equilibrationFraction * (stepLastSample - stepFirstSample + 1));
+            double stepBeta = getPathBetaValue((double) step / (nrOfSteps - 1), fromBeta, toBeta);
+
+            if (nrOfEquilibrationSamples > 0){
+                segments.add(new BetaPathSegment(stepFirstSample, stepFirstSample + nrOfEquilibrationSamples - 1, stepBeta, true));
+            }
+            segments.add(new BetaPathSegment(stepFirstSample + nrOfEquilibrationSamples, stepLastSample, stepBeta, false));
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,172 @@
+package beast.core.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Keeps a running mean and variance of the values of U sampled at one value of beta, without storing the samples.
+ * (Uses Welford's method, so it is fine to add hundreds of millions of values.)
+ * With more than two models, each sample has one value of U per pair of neighbouring models along the path, which are all kept.
+ * The standard error of the mean is estimated by batch means, because the samples of a chain are autocorrelated: the samples are
+ * split into between MIN_BATCHES and twice as many consecutive batches, and whenever there are too many the batches are merged in pairs.
+ */
+public class UValueStatistics {
+
+    public static final int MIN_BATCHES = 32;
+
+    private long count;
+    private double[] mean;
+    private double[] sumOfSquaredDeviations;
+
+    private long batchSize = 1;
+    private int nrOfBatches;
+    private double[][] batchMeans; // [pair][batch]
+    private double[] currentBatchSum;
+    private long currentBatchCount;
+
+    /**
+     * @param UValues the value of U for each pair of neighbouring models (just one value for two models)
+     */
+    public void add(double[] UValues){
+        if (mean == null){
+            initPairs(UValues.length);
+        }
+        count++;
+        for (int pair = 0; pair < mean.length; pair++){
+            double deviation = UValues[pair] - mean[pair];
+            mean[pair] = mean[pair] + (deviation / count);
+            sumOfSquaredDeviations[pair] = sumOfSquaredDeviations[pair] + (deviation * (UValues[pair] - mean[pair]));
+            currentBatchSum[pair] = currentBatchSum[pair] + UValues[pair];
+        }
+
+        currentBatchCount++;
+        if (currentBatchCount == batchSize){
+            for (int pair = 0; pair < mean.length; pair++){
+                batchMeans[pair][nrOfBatches] = currentBatchSum[pair] / batchSize;
+                currentBatchSum[pair] = 0.0;
+            }
+            currentBatchCount = 0;
+            nrOfBatches++;
+            if (nrOfBatches == 2 * MIN_BATCHES){
+                mergeBatches();
+            }
+        }
+    }
+
+    private void initPairs(int nrOfPairs){
+        mean = new double[nrOfPairs];
+        sumOfSquaredDeviations = new double[nrOfPairs];
+        batchMeans = new double[nrOfPairs][2 * MIN_BATCHES];
+        currentBatchSum = new double[nrOfPairs];
+    }
+
+    private void mergeBatches(){
+        for (double[] pairBatchMeans : batchMeans){
+            for (int batch = 0; batch < MIN_BATCHES; batch++){
+                pairBatchMeans[batch] = 0.5 * (pairBatchMeans[2 * batch] + pairBatchMeans[(2 * batch) + 1]);
+            }
+        }
+        nrOfBatches = MIN_BATCHES;
+        batchSize = 2 * batchSize;
+    }
+
+    public long getCount(){
+        return count;
+    }
+
+    public int getNrOfPairs(){
+        return mean != null ? mean.length : 0;
+    }
+
+    public double getMean(){
+        return getMean(0);
+    }
+
+    public double getMean(int pair){
+        return count > 0 ? mean[pair] : Double.NaN;
+    }
+
+    public double getVariance(){
+        return getVariance(0);
+    }
+
+    public double getVariance(int pair){
+        return count > 1 ? sumOfSquaredDeviations[pair] / (count - 1) : Double.NaN;
+    }
+
+    /**
+     * The batch means estimate of the standard error of the mean of U, NaN until there are at least MIN_BATCHES batches
+     * (the samples since the last complete batch are left out)
+     */
+    public double getStandardError(int pair){
+        if (nrOfBatches < MIN_BATCHES){
+            return Double.NaN;
+        }
+        double batchMeansMean = 0.0;
+        for (int batch = 0; batch < nrOfBatches; batch++){
+            batchMeansMean = batchMeansMean + batchMeans[pair][batch];
+        }
+        batchMeansMean = batchMeansMean / nrOfBatches;
+        double sumOfSquares = 0.0;
+        for (int batch = 0; batch < nrOfBatches; batch++){
+            sumOfSquares = sumOfSquares + ((batchMeans[pair][batch] - batchMeansMean) * (batchMeans[pair][batch] - batchMeansMean));
+        }
+        return Math.sqrt(sumOfSquares / (nrOfBatches - 1) / nrOfBatches);
+    }
+
+    /**
+     * Whether the standard error of every pair is known and at most its target (pairs with an infinite target are not checked)
+     */
+    public boolean isStandardErrorBelow(double[] targets){
+        for (int pair = 0; pair < getNrOfPairs(); pair++){
+            if (targets[pair] != Double.POSITIVE_INFINITY && ! (getStandardError(pair) <= targets[pair])){
+                return false;
+            }
+        }
+        return getNrOfPairs() > 0;
+    }
+
+    /**
+     * Writes the statistics collected so far (for a checkpoint of the chain), to be read back with readFrom
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(count);
+        out.writeInt(getNrOfPairs());
+        out.writeLong(batchSize);
+        out.writeInt(nrOfBatches);
+        out.writeLong(currentBatchCount);
+        for (int pair = 0; pair < getNrOfPairs(); pair++){
+            out.writeDouble(mean[pair]);
+            out.writeDouble(sumOfSquaredDeviations[pair]);
+            out.writeDouble(currentBatchSum[pair]);
+            for (int batch = 0; batch < nrOfBatches; batch++){
+                out.writeDouble(batchMeans[pair][batch]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the statistics with those written by writeTo
+     */
+    public void readFrom(DataInput in) throws IOException {
+        count = in.readLong();
+        int nrOfPairs = in.readInt();
+        batchSize = in.readLong();
+        nrOfBatches = in.readInt();
+        currentBatchCount = in.readLong();
+        mean = null;
+        if (nrOfPairs > 0){
+            initPairs(nrOfPairs);
+        }
+        for (int pair = 0; pair < nrOfPairs; pair++){
+            mean[pair] = in.readDouble();
+            sumOfSquaredDeviations[pair] = in.readDouble();
+            currentBatchSum[pair] = in.readDouble();
+            for (int batch = 0; batch < nrOfBatches; batch++){
+                batchMeans[pair][batch] = in.readDouble();
+            }
+        }
+    }
+}
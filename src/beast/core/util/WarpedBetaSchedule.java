@@ -0,0 +1,45 @@
+package beast.core.util;
+
+import beast.core.Input;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Beta follows a curve which puts more samples near the ends of the path, where U usually changes fastest.
+ * 'power': beta = x^shape, so for shape > 1 the samples are concentrated near beta = 0 (as in Xie et al. (2011), where shape is about 3).
+ * 'sigmoid': beta follows a tanh curve of the given steepness, concentrating the samples near both beta = 0 and beta = 1.
+ */
+public class WarpedBetaSchedule extends BetaSchedule {
+
+    final public Input<String> warpInput = new Input<>("warp", "shape of the curve of beta along the path. valid options: 'power'; 'sigmoid' (default power)", "power");
+
+    final public Input<Double> shapeInput = new Input<>("shape", "for 'power' the exponent, for 'sigmoid' the steepness of the curve. Larger values concentrate more samples near the ends (default 3.0)", 3.0);
+
+    private boolean sigmoid;
+    private double shape;
+    private double sigmoidScale;
+
+    @Override
+    public void initAndValidate(){
+        String warp = warpInput.get().toLowerCase();
+        if (warp.equals("sigmoid")){
+            sigmoid = true;
+        }
+        else if ( ! warp.equals("power")){
+            throw new IllegalArgumentException("Invalid option specified for warp (on the WarpedBetaSchedule object): " + warp + ". Valid options are: 'power'; 'sigmoid'");
+        }
+
+        shape = shapeInput.get();
+        if ( ! (shape > 0.0)){
+            throw new IllegalArgumentException("shape must be greater than zero (on the WarpedBetaSchedule object)");
+        }
+        sigmoidScale = Math.tanh(shape);
+    }
+
+    @Override
+    public double getBetaValue(double passFraction){
+        if (sigmoid){
+            return 0.5 * (1.0 + (Math.tanh(shape * ((2.0 * passFraction) - 1.0)) / sigmoidScale));
+        }
+        return Math.pow(passFraction, shape);
+    }
+}
@@ -1,20 +1,34 @@
 package beast.math.distributions;
 
 
+import beast.core.BEASTInterface;
+import beast.core.CalculationNode;
 import beast.core.Citation;
 import beast.core.Distribution;
 import beast.core.Input;
 import beast.core.ModelComparisonMCMC;
+import beast.core.ModelComparisonSharedComponents;
+import beast.core.StateNode;
 import beast.core.parameter.BooleanParameter;
 import beast.core.parameter.RealParameter;
 import beast.core.util.CompoundDistribution;
+import beast.core.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
  * This class extends the CompoundDistibution, but replaces the logP mechanism with one which
  * uses the value of beta to control the powers to which the inner distributions are raised.
+ * With more than two inner distributions (models), beta moves along a path through the models in the order they are given:
+ * for K models the path has K - 1 sections, and in section s (beta from s/(K-1) to (s+1)/(K-1)) only models s and s+1 have weight.
+ * With two models this is the same as before, with weights 1 - beta and beta.
  */
 
 @Citation("Lartilot and Philippe (2006) 'Computing Bayes Factors Using Thermodynamic Integration''")
@@ -22,10 +36,38 @@ public class ModelComparisonDistribution extends CompoundDistribution{
 
    public Input<RealParameter> betaParameterInput = new Input<>("betaParameter", "Beta parameter as in the paper by Lartillot and Philippe. ");
 
+   public Input<Boolean> shareComponentsInput = new Input<>("shareComponents", "if true, a part of the models which more than one of them uses (the same distribution object) is calculated only once per step, and its logP added to each of them. Not used when the models are calculated in parallel (default true)", true);
+
+   public Input<Boolean> shareIdenticalCopiesInput = new Input<>("shareIdenticalCopies", "if true, identical copies of a part in different models (the same class, with the same StateNodes and equal values of all other inputs) are shared as well when shareComponents is set. Only the inputs are compared, so only set this if the copies cannot differ in any other way (default false)", false);
+
+   public Input<Boolean> parallelModelsInput = new Input<>("parallelModels", "if true, the inner distributions are calculated at the same time on separate threads. Falls back to calculating them one after the other if any of the models share CalculationNodes (default false)", false);
+
+   private int nrOfModels;
    private double[] innerPosteriorLogP;
+   private double[] calculatedInnerLogP; // for calculateLogP, so that it does not allocate
+
+   //For calculating the inner distributions in parallel (all but the first on threads of their own, which are handed each calculation
+   //and hand back its result through the fields of their ModelThread, so that nothing is allocated per calculation)
+   private boolean useParallelModels;
+   private ModelThread[] otherModelThreads;
+   private int calculationNr;
+   private Thread callingThread;
+   private boolean otherModelsSkipIfClean;
+   private long parallelCalculationCount;
+   private long joinWaitNanos;
+
+   //For profiling: how long each inner distribution took in the last call of calculateInnerLogPValues (-1 if it was not calculated)
+   private boolean timeModels;
+   private long[] lastModelNanos;
+
+   private ModelComparisonSharedComponents sharedComponents; // null unless some part is used by more than one of the models
 
    private double betaValue;
 
+   //Set by ModelComparisonMCMC when its beta schedule discards the values of U sampled while the chain adjusts to a new value of beta
+   private boolean equilibrationLogged;
+   private boolean equilibrating;
+
    public double getBetaValue(){
        return betaValue;
    }
@@ -34,22 +76,237 @@ public class ModelComparisonDistribution extends CompoundDistribution{
         betaValue = newValue;
     }
 
+    public int getNrOfModels(){
+        return nrOfModels;
+    }
+
+    /**
+     * The section of the path (between models s and s+1) which the given value of beta is in
+     */
+    public int getPathSection(double beta){
+        return Math.max(0, Math.min(nrOfModels - 2, (int) Math.floor(beta * (nrOfModels - 1))));
+    }
+
+    /**
+     * How far beta is along its section of the path, from 0 (all the weight on model s) to 1 (all the weight on model s+1)
+     */
+    public double getSectionBeta(double beta, int section){
+        return (beta * (nrOfModels - 1)) - section;
+    }
+
+    /**
+     * The power to which the given inner distribution is raised at the current value of beta
+     */
+    public double getModelWeight(int which_dist){
+        int section = getPathSection(betaValue);
+        double sectionBeta = getSectionBeta(betaValue, section);
+        if (which_dist == section){
+            return 1 - sectionBeta;
+        }
+        if (which_dist == section + 1){
+            return sectionBeta;
+        }
+        return 0.0;
+    }
+
 
     @Override
     public void initAndValidate(){
         super.initAndValidate();
 
-        innerPosteriorLogP = new double[2]; //Set up empty
-
-        if (pDistributions.get().size() != 2){
-            System.out.println("Must provide exactly two distributions for ModelComparisonDistribution.");
+        nrOfModels = pDistributions.get().size();
+        if (nrOfModels < 2){
+            System.out.println("Must provide at least two distributions for ModelComparisonDistribution.");
             throw new IndexOutOfBoundsException("Wrong number of distributions provided.");
         }
 
+        innerPosteriorLogP = new double[nrOfModels]; //Set up empty
+        calculatedInnerLogP = new double[nrOfModels];
+
+        useParallelModels = false;
+        if (parallelModelsInput.get()){
+            initParallelModels();
+        }
+
+        //Identical copies can only be recognised once the State is known (see shareIdenticalComponents), so for now only the same objects are shared
+        initSharedComponents(null);
+
+    }
+
+    /**
+     * Also shares identical copies of components between the models, if shareIdenticalCopies is set. Called by ModelComparisonMCMC, which knows which StateNodes are in the State.
+     */
+    public void shareIdenticalComponents(List<StateNode> stateNodes){
+        if ( ! shareIdenticalCopiesInput.get()){
+            return; // only the same objects are shared, as set up by initAndValidate
+        }
+        initSharedComponents(new HashSet<>(stateNodes));
+    }
+
+    private void initSharedComponents(Set<StateNode> stateNodes){
+        sharedComponents = null;
+        if ( ! shareComponentsInput.get() || useParallelModels){
+            return; // the models only share objects when not in parallel, but may have copies which are calculated on each thread
+        }
+        ModelComparisonSharedComponents components = new ModelComparisonSharedComponents(pDistributions.get(), stateNodes);
+        if (components.hasSharedComponents()){
+            sharedComponents = components;
+            if (stateNodes != null){
+                System.out.println("The models of the ModelComparisonDistribution share " + components.getSharedComponentNames() + ", which will be calculated once per step.");
+            }
+        }
+    }
+
+    private void initParallelModels(){
+        //Calculating the models at once is only safe if no two of them (re)calculate the same CalculationNodes
+        //StateNodes are only read while calculating, so it is fine for the models to share those
+        Set<BEASTInterface> earlierModelNodes = new HashSet<>();
+        Set<String> sharedNodes = new HashSet<>();
+        for (int which_dist = 0; which_dist < nrOfModels; which_dist++){
+            Set<BEASTInterface> modelNodes = collectPredecessors(pDistributions.get().get(which_dist));
+            for (BEASTInterface beastObject : modelNodes){
+                if (beastObject instanceof CalculationNode && !(beastObject instanceof StateNode) && earlierModelNodes.contains(beastObject)){
+                    sharedNodes.add(beastObject.getID() != null ? beastObject.getID() : beastObject.getClass().getSimpleName());
+                }
+            }
+            earlierModelNodes.addAll(modelNodes);
+        }
+
+        if ( ! sharedNodes.isEmpty()){
+            System.out.println("The models of the ModelComparisonDistribution share CalculationNodes " + sharedNodes + ", so they will be calculated one after the other rather than in parallel.");
+            return;
+        }
+
+        useParallelModels = true;
+        otherModelThreads = new ModelThread[nrOfModels - 1];
+        for (int which_dist = 1; which_dist < nrOfModels; which_dist++){
+            otherModelThreads[which_dist - 1] = new ModelThread(which_dist);
+            otherModelThreads[which_dist - 1].start();
+        }
+    }
+
+    /**
+     * Calculates one of the other models each time it is handed a calculation by calculateInnerLogPValues, waiting (parked) in between
+     */
+    private class ModelThread extends Thread {
+
+        private final int model;
+        private volatile int requestedNr; // the calculation it was last handed
+        private volatile int doneNr; // the calculation it last finished
+        private double logP; // of the calculation it last finished (read after doneNr)
+        private Throwable failure;
+        private volatile boolean stopped;
+
+        ModelThread(int model){
+            super("ModelComparisonDistribution-model" + model);
+            this.model = model;
+            setDaemon(true);
+        }
+
+        void request(int nr){
+            requestedNr = nr;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run(){
+            int nr = 0;
+            while (true){
+                while (requestedNr == nr){
+                    if (stopped){
+                        return;
+                    }
+                    LockSupport.park(this);
+                }
+                nr = requestedNr;
+                try {
+                    logP = calculateTimedInnerLogP(model, otherModelsSkipIfClean);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                doneNr = nr;
+                LockSupport.unpark(callingThread);
+            }
+        }
+    }
+
+    /**
+     * Stops the threads the models are calculated on in parallel, once they have finished any calculation they were handed.
+     * The models are calculated one after the other from then on. Called by ModelComparisonMCMC when the chain ends.
+     */
+    public void shutdown(){
+        if (otherModelThreads == null){
+            return;
+        }
+        for (ModelThread otherModelThread : otherModelThreads){
+            otherModelThread.stopped = true;
+            LockSupport.unpark(otherModelThread);
+        }
+        try {
+            for (ModelThread otherModelThread : otherModelThreads){
+                otherModelThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // they stop anyway, as they are not waited for
+        }
+        otherModelThreads = null;
+        useParallelModels = false;
+    }
+
+    /**
+     * Every BEASTObject the given object depends on (including itself)
+     */
+    public static Set<BEASTInterface> collectPredecessors(BEASTInterface beastObject){
+        Set<BEASTInterface> predecessors = new HashSet<>();
+        List<BEASTInterface> toVisit = new ArrayList<>();
+        toVisit.add(beastObject);
+        while ( ! toVisit.isEmpty()){
+            BEASTInterface current = toVisit.remove(toVisit.size() - 1);
+            if (predecessors.add(current)){
+                toVisit.addAll(current.listActiveBEASTObjects());
+            }
+        }
+        return predecessors;
+    }
+
+    /**
+     * For each of the inner distributions, whether it depends on any of the given StateNodes (so whether changing them can change its logP)
+     */
+    public boolean[] findModelsDependingOn(List<StateNode> stateNodes){
+        boolean[] dependingModels = new boolean[nrOfModels];
+        for (int which_dist = 0; which_dist < nrOfModels; which_dist++){
+            Set<BEASTInterface> predecessors = collectPredecessors(pDistributions.get().get(which_dist));
+            for (StateNode stateNode : stateNodes){
+                if (predecessors.contains(stateNode)){
+                    dependingModels[which_dist] = true;
+                    break;
+                }
+            }
+        }
+        return dependingModels;
+    }
+
+    public boolean isEquilibrationLogged(){
+        return equilibrationLogged;
     }
 
+    public void setEquilibrationLogged(boolean equilibrationLogged){
+        this.equilibrationLogged = equilibrationLogged;
+    }
+
+    public boolean isEquilibrating(){
+        return equilibrating;
+    }
+
+    public void setEquilibrating(boolean equilibrating){
+        this.equilibrating = equilibrating;
+    }
+
+    /**
+     * Keeps a copy of the given inner logP values (those of the current state), without holding on to the given array
+     */
     public void cacheInnerLogPValues(double[] newInnerLogP){
-        innerPosteriorLogP = newInnerLogP.clone();
+        System.arraycopy(newInnerLogP, 0, innerPosteriorLogP, 0, nrOfModels);
     }
 
     public double[] getInnerPosteriorLogP(){
@@ -58,17 +315,59 @@ public class ModelComparisonDistribution extends CompoundDistribution{
 
     public double calculateLogPFromInnerLogPValues(double[] innerLogPValues){
 
+        double totalLogP = calculateLogPFromInnerLogPValues(betaValue, innerLogPValues);
+        logP = totalLogP;
+        return totalLogP;
+
+    }
+
+    /**
+     * The posterior for the given inner logP values as it would be at the given value of beta (does not change the state of this distribution)
+     */
+    public double calculateLogPFromInnerLogPValues(double beta, double[] innerLogPValues){
+
         double totalLogP = 0;
 
-        totalLogP = ((1 - betaValue) * innerLogPValues[0]);
-        totalLogP = totalLogP + (betaValue * innerLogPValues[1]);
-        logP = totalLogP;
+        //Only the two models at the ends of the section of the path which beta is in have any weight
+        int section = getPathSection(beta);
+        double sectionBeta = getSectionBeta(beta, section);
+        //(A model with zero weight is left out altogether, so that its logP being -Infinity does not matter)
+        if (sectionBeta == 0.0){
+            return innerLogPValues[section];
+        }
+        if (sectionBeta == 1.0){
+            return innerLogPValues[section + 1];
+        }
+        totalLogP = ((1 - sectionBeta) * innerLogPValues[section]);
+        totalLogP = totalLogP + (sectionBeta * innerLogPValues[section + 1]);
         return totalLogP;
 
     }
 
+    /**
+     * The log ratio of the inner posteriors of models pair+1 and pair for the current state
+     */
+    public double calculatePairUValue(int pair){
+        return innerPosteriorLogP[pair + 1] - innerPosteriorLogP[pair];
+    }
+
+    /**
+     * calculatePairUValue for every pair of neighbouring models along the path, into pairUValues (which has one less element than there are models)
+     */
+    public double[] calculatePairUValues(double[] pairUValues){
+        for (int pair = 0; pair < nrOfModels - 1; pair++){
+            pairUValues[pair] = innerPosteriorLogP[pair + 1] - innerPosteriorLogP[pair];
+        }
+        return pairUValues;
+    }
+
+    /**
+     * The derivative of the posterior with respect to beta, at the current value of beta.
+     * With two models this is the log ratio of their inner posteriors.
+     */
     public double calculateU(){
-        double UValue = innerPosteriorLogP[1] - innerPosteriorLogP[0];
+        int section = getPathSection(betaValue);
+        double UValue = (nrOfModels - 1) * (innerPosteriorLogP[section + 1] - innerPosteriorLogP[section]);
         //POTENTIAL for caching issues here!
         ///The above should be (but possibly might not be) equal to //double UValue = pDistributions.get().get(1).calculateLogP() - pDistributions.get().get(0).calculateLogP();
 
@@ -79,33 +378,148 @@ public class ModelComparisonDistribution extends CompoundDistribution{
         return UValue;
     }
 
-    @Override
-    public double calculateLogP(){
-       //Calculate separately for dist 0 and dist 1
-        double[] logPArray = new double[2];
-
-        int which_dist = 0;
-        for (Distribution dists : pDistributions.get()) {
-            if (dists.isDirtyCalculation()) {
-                logPArray[which_dist] += dists.calculateLogP();
-            } else {
-                logPArray[which_dist] += dists.getCurrentLogP();
+    /**
+     * Calculates the logP of all the inner distributions into innerLogPValues.
+     * With parallelModels, distribution 0 is calculated on the calling thread while the others are calculated on the model threads.
+     * @param skipIfClean if true, the current logP of a distribution which is not dirty is used rather than recalculating it
+     */
+    public void calculateInnerLogPValues(double[] innerLogPValues, boolean skipIfClean){
+        if (timeModels){
+            Arrays.fill(lastModelNanos, -1);
+        }
+        if ( ! useParallelModels){
+            if (sharedComponents != null){
+                sharedComponents.startEvaluation();
             }
+            for (int which_dist = 0; which_dist < nrOfModels; which_dist++){
+                innerLogPValues[which_dist] = calculateTimedInnerLogP(which_dist, skipIfClean);
+            }
+            return;
+        }
 
-            /*
-            //Curent caching is not suitable for replacing with cached values...
-            if (logPArray[which_dist] != innerPosteriorLogP[which_dist]){
-                System.out.println("The value for posteriorLogP was DIFFERENT from the cached value");
+        //Set before the calculation is handed over, which makes them visible to the model threads
+        otherModelsSkipIfClean = skipIfClean;
+        callingThread = Thread.currentThread();
+        calculationNr++;
+        for (ModelThread otherModelThread : otherModelThreads){
+            otherModelThread.request(calculationNr);
+        }
+        innerLogPValues[0] = calculateTimedInnerLogP(0, skipIfClean);
+
+        long joinStart = System.nanoTime();
+        Throwable failure = null;
+        for (int which_dist = 1; which_dist < nrOfModels; which_dist++){
+            ModelThread otherModelThread = otherModelThreads[which_dist - 1];
+            while (otherModelThread.doneNr != calculationNr){
+                LockSupport.park(this);
             }
-            else{
-                System.out.println("Values same");
+            innerLogPValues[which_dist] = otherModelThread.logP;
+            if (otherModelThread.failure != null){
+                failure = otherModelThread.failure;
+                otherModelThread.failure = null;
             }
-            */
+        }
+        if (failure != null){
+            throw new RuntimeException("Problem calculating one of the other models of the ModelComparisonDistribution", failure);
+        }
+        joinWaitNanos += System.nanoTime() - joinStart;
+        parallelCalculationCount++;
+    }
+
+    /**
+     * Like calculateInnerLogPValues, but only the inner distributions with modelsToCalculate set are calculated.
+     * The values for the others are left as they are in innerLogPValues.
+     */
+    public void calculateInnerLogPValues(double[] innerLogPValues, boolean[] modelsToCalculate){
+        int nrToCalculate = 0;
+        for (boolean modelToCalculate : modelsToCalculate){
+            if (modelToCalculate){
+                nrToCalculate++;
+            }
+        }
+        if (nrToCalculate == nrOfModels){
+            calculateInnerLogPValues(innerLogPValues, false);
+            return;
+        }
+        if (timeModels){
+            Arrays.fill(lastModelNanos, -1);
+        }
+        if (sharedComponents != null){
+            sharedComponents.startEvaluation();
+        }
+        for (int which_dist = 0; which_dist < nrOfModels; which_dist++){
+            if (modelsToCalculate[which_dist]){
+                innerLogPValues[which_dist] = calculateTimedInnerLogP(which_dist, false);
+            }
+        }
+    }
+
+    /**
+     * If true, calculateInnerLogPValues times each of the inner distributions, see getLastModelNanos
+     */
+    public void setTimeModels(boolean timeModels){
+        this.timeModels = timeModels;
+        if (timeModels && lastModelNanos == null){
+            lastModelNanos = new long[nrOfModels];
+        }
+    }
+
+    /**
+     * How long (in ns) each inner distribution took in the last call of calculateInnerLogPValues, or -1 for those which were not calculated
+     */
+    public long[] getLastModelNanos(){
+        return lastModelNanos;
+    }
+
+    private double calculateTimedInnerLogP(int which_dist, boolean skipIfClean){
+        if ( ! timeModels){
+            return calculateInnerLogP(which_dist, skipIfClean);
+        }
+        long start = System.nanoTime();
+        double logP = calculateInnerLogP(which_dist, skipIfClean);
+        lastModelNanos[which_dist] = System.nanoTime() - start;
+        return logP;
+    }
+
+    private double calculateInnerLogP(int which_dist, boolean skipIfClean){
+        Distribution dist = pDistributions.get().get(which_dist);
+        if (skipIfClean && ! dist.isDirtyCalculation()) {
+            return dist.getCurrentLogP();
+        }
+        if (sharedComponents != null){
+            return sharedComponents.calculateModelLogP(which_dist);
+        }
+        return dist.calculateLogP();
+    }
+
+    /**
+     * Reports how long the calling thread spent waiting for the other models when the models were calculated in parallel,
+     * and how many calculations were saved by sharing components between the models
+     */
+    public void reportModelCalculations(){
+        if (useParallelModels && parallelCalculationCount > 0){
+            Log.warning.println("ModelComparisonDistribution calculated the models in parallel " + parallelCalculationCount + " times, "
+                    + "waiting on average " + (joinWaitNanos / parallelCalculationCount) + " ns for the other models "
+                    + "(" + (joinWaitNanos / 1000000) + " ms in total)");
+        }
+        if (sharedComponents != null){
+            sharedComponents.report();
+        }
+    }
+
+    @Override
+    public double calculateLogP(){
+       //Calculate separately for dist 0 and dist 1
+        double[] logPArray = calculatedInnerLogP;
+        calculateInnerLogPValues(logPArray, true);
+
+        //This is a full calculation for the current state, so keep the cached inner values in step with it
+        cacheInnerLogPValues(logPArray);
 
-            if (Double.isInfinite(logPArray[which_dist]) || Double.isNaN(logPArray[which_dist])) {
+        for (int which_dist = 0; which_dist < nrOfModels; which_dist++) {
+            if (getModelWeight(which_dist) != 0.0 && (Double.isInfinite(logPArray[which_dist]) || Double.isNaN(logPArray[which_dist]))) {
                return logPArray[which_dist];
             }
-            which_dist = which_dist + 1;
         }
 
         //Perform the power step
@@ -0,0 +1,213 @@
+package beast.app.tools;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Checks the output of the calculator for small logs of each kind of analysis, whose log Bayes factors can be worked out by hand.
+ */
+public class ModelComparisonCalculatorTest extends TestCase {
+
+    private static File writeLog(String... lines) throws IOException {
+        File file = File.createTempFile("ModelComparisonCalculatorTest", ".log");
+        file.deleteOnExit();
+        writeLog(file, lines);
+        return file;
+    }
+
+    private static void writeLog(File file, String... lines) throws IOException {
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)){
+            for (String line : lines){
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static void assertOutput(File file, String... expectedLines) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(output, true, StandardCharsets.UTF_8.name()));
+        try {
+            ModelComparisonCalculator.main(new String[]{file.getPath()});
+        }
+        finally {
+            System.setOut(out);
+        }
+        String[] lines = output.toString(StandardCharsets.UTF_8.name()).split("\\R");
+        assertEquals(Arrays.asList(expectedLines), Arrays.asList(lines));
+    }
+
+    /**
+     * The mean of U with the first and last values given half the weight: (0.5 + 2 + 3 + 4 + 2.5) / 5
+     */
+    @Test
+    public void testOneway() throws Exception {
+        File file = writeLog("Sample\tBetaValue\tUValue",
+                "0\t0.0\t1.0", "1\t0.25\t2.0", "2\t0.5\t3.0", "3\t0.75\t4.0", "4\t1.0\t5.0");
+        assertOutput(file, "Checking and reading file...",
+                "Log file analysed. The log Bayes factor calculated is: ",
+                "2.4");
+    }
+
+    /**
+     * The trapezoid rule: 0.1 * 1.5 + 0.4 * 2.5 + 0.5 * 3.5
+     */
+    @Test
+    public void testOnewayNotEvenlySpaced() throws Exception {
+        File file = writeLog("Sample\tBetaValue\tUValue",
+                "0\t0.0\t1.0", "1\t0.1\t2.0", "2\t0.5\t3.0", "3\t1.0\t4.0");
+        assertOutput(file, "Checking and reading file...",
+                "The values of beta are not evenly spaced, so each value of U is weighted by the change in beta around it.",
+                "Log file analysed. The log Bayes factor calculated is: ",
+                "2.9");
+    }
+
+    /**
+     * The row at which beta turns belongs to the first direction: (0.5 + 2 + 2) / 3, then (1.5 + 1) / 2
+     */
+    @Test
+    public void testBothways() throws Exception {
+        File file = writeLog("Sample\tBetaValue\tUValue",
+                "0\t0.0\t1.0", "1\t0.5\t2.0", "2\t1.0\t4.0", "3\t0.5\t3.0", "4\t0.0\t2.0");
+        assertOutput(file, "Checking and reading file...",
+                "Changed direction!",
+                "Log file analysed. The log Bayes factor calculated is: ",
+                " - First Direction:",
+                "1.5",
+                " - Second Direction:",
+                "1.25");
+    }
+
+    /**
+     * The means of U at each value of beta (1, 2 and 4, with comment lines between the steps), by the trapezoid rule: 0.5 * 1.5 + 0.5 * 3
+     */
+    @Test
+    public void testStepwise() throws Exception {
+        File file = writeLog("# beta held fixed", "Sample\tBetaValue\tUValue",
+                "0\t0.0\t1.0", "1\t0.0\t1.5", "2\t0.0\t0.5", "# next step",
+                "3\t0.5\t2.0", "4\t0.5\t2.0", "5\t0.5\t2.0",
+                "6\t1.0\t3.0", "7\t1.0\t5.0", "8\t1.0\t4.0");
+        assertOutput(file, "Checking and reading file...",
+                "Log file analysed (beta was held fixed at 3 values in turn). The log Bayes factor calculated is: ",
+                "2.25");
+    }
+
+    /**
+     * Each pair over its half of the path by the trapezoid rule: 0.5 * 1.5 + 0.5 * 2.5, and 0.5 * 35 + 0.5 * 45
+     */
+    @Test
+    public void testMultiModel() throws Exception {
+        File file = writeLog("Sample\tBetaValue\tUValue\tUValue_0_1\tUValue_1_2",
+                "0\t0.0\t1.0\t1.0\t10.0", "1\t0.25\t1.0\t2.0\t20.0", "2\t0.5\t1.0\t3.0\t30.0",
+                "3\t0.75\t1.0\t4.0\t40.0", "4\t1.0\t1.0\t5.0\t50.0");
+        assertOutput(file, "Checking and reading file...",
+                "Log file analysed (3 models). The log Bayes factors calculated are: ",
+                " - Model 1 against model 0: 2.0",
+                " - Model 2 against model 0: 42.0",
+                " - Model 2 against model 1: 40.0");
+    }
+
+    /**
+     * A log compressed with gzip is recognised by its first bytes (not its name) and read as it is decompressed. Cut off in the
+     * middle of its compressed data, it is read up to its last complete line: the first three rows of testBothways, (0.5 + 2 + 2) / 3 as a oneway analysis
+     */
+    @Test
+    public void testGzipLog() throws Exception {
+        File file = writeLog("Sample\tBetaValue\tUValue",
+                "0\t0.0\t1.0", "1\t0.25\t2.0", "2\t0.5\t3.0", "3\t0.75\t4.0", "4\t1.0\t5.0");
+        File compressedFile = File.createTempFile("ModelComparisonCalculatorTest", ".log");
+        compressedFile.deleteOnExit();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(compressedFile))){
+            out.write(Files.readAllBytes(file.toPath()));
+        }
+        assertOutput(compressedFile, "Checking and reading file...",
+                "Log file analysed. The log Bayes factor calculated is: ",
+                "2.4");
+
+        byte[] log = ("Sample\tBetaValue\tUValue\n0\t0.0\t1.0\n1\t0.5\t2.0\n2\t1.0\t4.0\n3\t0.5\t3.0\n4\t0.0\t2.0\n").getBytes(StandardCharsets.UTF_8);
+        //Flushed after the third row, so that all of its compressed data comes before the cut
+        int thirdRowEnd = new String(log, StandardCharsets.UTF_8).indexOf("3\t0.5");
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        int cut;
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed, true)){
+            out.write(log, 0, thirdRowEnd);
+            out.flush();
+            cut = compressed.size() + 2;
+            out.write(log, thirdRowEnd, log.length - thirdRowEnd);
+        }
+        try (OutputStream out = new FileOutputStream(compressedFile)){
+            out.write(compressed.toByteArray(), 0, cut);
+        }
+        assertOutput(compressedFile, "Checking and reading file...",
+                compressedFile + " ends before the end of its compressed data (it may not have been copied completely), so it is only read up to the last complete line.",
+                "Log file analysed. The log Bayes factor calculated is: ",
+                "1.5");
+    }
+
+    /**
+     * The rows of the table are in the order the logs were given (the files of the directory and of the pattern sorted by name, a file
+     * given twice only once), although the first log is much longer than the others and so is analysed last. The estimates are
+     * worked out as in the tests above, e.g. (0.5 * 2 + 19998 * 2 + 0.5 * 2) / 20000 for the first log.
+     */
+    @Test
+    public void testBatchTableOrder() throws Exception {
+        File directory = Files.createTempDirectory("ModelComparisonCalculatorTest").toFile();
+        directory.deleteOnExit();
+        File subdirectory = new File(directory, "replicates");
+        subdirectory.mkdir();
+        subdirectory.deleteOnExit();
+
+        String[] longLog = new String[20001];
+        longLog[0] = "Sample\tBetaValue\tUValue";
+        for (int i = 0; i < 20000; i++){
+            longLog[i + 1] = i + "\t" + (i / 19999.0) + "\t2.0";
+        }
+        File longFile = new File(directory, "a.log");
+        writeLog(longFile, longLog);
+        File onewayFile = new File(directory, "b.log");
+        writeLog(onewayFile, "Sample\tBetaValue\tUValue",
+                "0\t0.0\t1.0", "1\t0.25\t2.0", "2\t0.5\t3.0", "3\t0.75\t4.0", "4\t1.0\t5.0");
+        writeLog(new File(directory, "notes.txt"), "not a log");
+        File bothwaysFile = new File(subdirectory, "2.log");
+        writeLog(bothwaysFile, "Sample\tBetaValue\tUValue",
+                "0\t1.0\t4.0", "1\t0.5\t2.0", "2\t0.0\t1.0", "3\t0.5\t3.0", "4\t1.0\t2.0");
+        File downwardFile = new File(subdirectory, "1.log");
+        writeLog(downwardFile, "Sample\tBetaValue\tUValue", "0\t1.0\t3.0", "1\t0.5\t2.0", "2\t0.0\t1.0");
+        File missingFile = new File(directory, "missing.log");
+        File table = new File(directory, "table.tsv");
+        table.deleteOnExit();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(output, true, StandardCharsets.UTF_8.name()));
+        try {
+            ModelComparisonCalculator.main(new String[]{"-batch", table.getPath(), "-threads", "3", directory.getPath(),
+                    subdirectory.getPath() + File.separator + "*.log", missingFile.getPath(), onewayFile.getPath()});
+        }
+        finally {
+            System.setOut(out);
+        }
+
+        assertEquals(Arrays.asList(ModelComparisonBatch.HEADER,
+                longFile.getPath() + "\toneway\t0to1\t1\t0\t1.9999\t20000\t20000",
+                onewayFile.getPath() + "\toneway\t0to1\t1\t0\t2.4\t5\t5",
+                downwardFile.getPath() + "\toneway\t1to0\t1\t0\t1.3333333333333333\t3\t3",
+                bothwaysFile.getPath() + "\tbothways\t1to0\t1\t0\t1.5\t3\t5",
+                bothwaysFile.getPath() + "\tbothways\t0to1\t1\t0\t1.25\t2\t5",
+                missingFile.getPath() + "\tfailed\t\t\t\tNaN\t0\t0"),
+                Files.readAllLines(table.toPath(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,323 @@
+package beast.app.tools;
+
+import beast.core.util.ModelComparisonBinaryLog;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Checks that text logs are read the same with any number of threads and any size of chunks, that numbers are parsed
+ * exactly as Double.parseDouble parses them, and that binary logs are read back as they were written.
+ */
+public class ModelComparisonLogReaderTest extends TestCase {
+
+    /**
+     * A log of three models, with comment and empty lines among the rows, lines ending with CRLF or LF, rows in which the chain
+     * was equilibrating, and no newline after the last row
+     */
+    private static File writeTextLog() throws IOException {
+        File file = File.createTempFile("ModelComparisonLogReaderTest", ".log");
+        file.deleteOnExit();
+        Random random = new Random(1);
+        StringBuilder log = new StringBuilder("# model comparison\n#\r\nSample\tBetaValue\tUValue\tUValue_0_1\tUValue_1_2\tEquilibrating\r\n");
+        for (int sample = 0; sample < 60; sample++){
+            if (random.nextInt(8) == 0){
+                log.append(random.nextBoolean() ? "# a comment\tin a row\n" : "\r\n");
+            }
+            log.append(sample).append('\t').append(random.nextDouble()).append('\t').append(random.nextGaussian() * 100.0)
+                    .append('\t').append(random.nextGaussian()).append('\t').append(-random.nextDouble())
+                    .append('\t').append(random.nextInt(5) == 0 ? 1 : 0);
+            if (sample < 59){
+                log.append(random.nextBoolean() ? "\r\n" : "\n");
+            }
+        }
+        try (OutputStream out = new FileOutputStream(file)){
+            out.write(log.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    private static List<double[]> readRows(File file, int nrOfThreads, long chunkSize) throws IOException {
+        ModelComparisonLogReader reader = new ModelComparisonLogReader(file);
+        reader.setNrOfThreads(nrOfThreads);
+        reader.setChunkSize(chunkSize);
+        List<double[]> rows = new ArrayList<>();
+        reader.read((betaValue, UValue, pairUValues) -> {
+            double[] row = Arrays.copyOf(new double[]{betaValue, UValue}, 2 + pairUValues.length);
+            System.arraycopy(pairUValues, 0, row, 2, pairUValues.length);
+            rows.add(row);
+        });
+        return rows;
+    }
+
+    /**
+     * With chunks of a single byte, a chunk starts at every byte of the rows: after each newline, between CR and LF, and within comments
+     */
+    @Test
+    public void testTinyChunks() throws IOException {
+        File file = writeTextLog();
+        List<double[]> expected = readRows(file, 1, Long.MAX_VALUE);
+        assertTrue(expected.size() > 40);
+        assertEquals(2, expected.get(0).length - 2);
+        for (int nrOfThreads : new int[]{2, 3, 8}){
+            for (long chunkSize = 1; chunkSize <= 64; chunkSize++){
+                List<double[]> rows = readRows(file, nrOfThreads, chunkSize);
+                assertEquals("rows with " + nrOfThreads + " threads and chunks of " + chunkSize, expected.size(), rows.size());
+                for (int row = 0; row < rows.size(); row++){
+                    assertTrue("row " + row + " with " + nrOfThreads + " threads and chunks of " + chunkSize, Arrays.equals(expected.get(row), rows.get(row)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the number from within other bytes (as it is in a row) and checks it gives the same bits as Double.parseDouble
+     */
+    private static void assertParsed(String number){
+        byte[] bytes = ("0\t" + number + "\t0").getBytes(StandardCharsets.UTF_8);
+        double parsed = ModelComparisonLogReader.parseDouble(bytes, 2, bytes.length - 2);
+        assertEquals(number, Double.doubleToLongBits(Double.parseDouble(number)), Double.doubleToLongBits(parsed));
+    }
+
+    @Test
+    public void testParseDoubleEdgeCases(){
+        String[] numbers = {"0", "-0", "+0", "0.0", "-0.0", "0e500", "1", "-1", "+1", ".5", "5.", "-.5", "00012.500", "1E5", "1e+05", "1e-05",
+                "0.1", "0.2", "0.3", "1e22", "1e23", "9007199254740992", "9007199254740993", "9007199254740995",
+                "4.9e-324", "2.4703282292062327e-324", "2.4703282292062328e-324", "1e-320", "2.2250738585072011e-308",
+                "2.2250738585072012e-308", "2.2250738585072014E-308", "1.7976931348623157e308", "1.7976931348623158e308",
+                "1.7976931348623159e308", "1e308", "1e309", "1e-400", "-1e400", "1e100000", "1e-100000", "0.000000000000000000000000000001",
+                "123456789012345678901234567890", "18446744073709551615", "18446744073709551616", "NaN", "Infinity", "-Infinity",
+                "0x1p3", "1d", "1f"};
+        for (String number : numbers){
+            assertParsed(number);
+        }
+        for (String number : new String[]{"", "-", ".", "e5", "1e", "1e+", "1.2.3", "abc", "1 2"}){
+            byte[] bytes = number.getBytes(StandardCharsets.UTF_8);
+            try {
+                ModelComparisonLogReader.parseDouble(bytes, 0, bytes.length);
+                fail("parsed " + number);
+            } catch (NumberFormatException e) {
+                // expected, as from Double.parseDouble
+            }
+        }
+    }
+
+    /**
+     * Doubles of any bits, written as Java writes them, with fewer digits, and in other notations
+     */
+    @Test
+    public void testParseDoubleRandomValues(){
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++){
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(value)){
+                continue;
+            }
+            assertParsed(Double.toString(value));
+            assertParsed(String.format(Locale.ROOT, "%." + random.nextInt(20) + "e", value));
+            assertParsed(new BigDecimal(value).round(new MathContext(1 + random.nextInt(25))).toString());
+        }
+        for (int i = 0; i < 100000; i++){
+            assertParsed(Double.toString(random.nextDouble()));
+            assertParsed(Double.toString(random.nextGaussian() * Math.pow(10, random.nextInt(40) - 20)));
+        }
+    }
+
+    /**
+     * Numbers of exactly 19 significant digits (the most converted without Double.parseDouble), at any power of ten
+     */
+    @Test
+    public void testParseDouble19Digits(){
+        Random random = new Random(2);
+        for (int i = 0; i < 100000; i++){
+            StringBuilder digits = new StringBuilder().append(1 + random.nextInt(9));
+            for (int digit = 1; digit < 19; digit++){
+                digits.append(random.nextInt(10));
+            }
+            assertParsed(digits.toString());
+            assertParsed(digits + "e" + (random.nextInt(660) - 345));
+            assertParsed("0." + digits + "e" + (random.nextInt(660) - 330));
+        }
+        assertParsed("9999999999999999999");
+        assertParsed("9999999999999999999e-343");
+        assertParsed("1000000000000000000e-342");
+    }
+
+    /**
+     * Numbers exactly halfway between two doubles (which round to the one with an even mantissa), and just either side of them
+     */
+    @Test
+    public void testParseDoubleHalfwayCases(){
+        Random random = new Random(3);
+        for (int i = 0; i < 50000; i++){
+            //Halfway between (mantissa << shift) and ((mantissa + 1) << shift), an integer of up to 19 digits
+            long mantissa = (1L << 52) | (random.nextLong() >>> 12);
+            int shift = 1 + random.nextInt(10);
+            long halfway = ((2 * mantissa) + 1) << (shift - 1);
+            assertParsed(Long.toString(halfway));
+            assertParsed(Long.toString(halfway - 1));
+            assertParsed(Long.toString(halfway + 1));
+            assertParsed(Long.toString(halfway) + "e0");
+            //Halfway between a double and the next one, written out exactly (with more than 19 digits), and cut to 19 digits
+            double value = Double.longBitsToDouble(random.nextLong() & Long.MAX_VALUE);
+            if (Double.isInfinite(value) || Double.isNaN(value) || Double.isInfinite(Math.nextUp(value))){
+                continue;
+            }
+            BigDecimal exactHalfway = new BigDecimal(value).add(new BigDecimal(Math.nextUp(value))).divide(BigDecimal.valueOf(2));
+            assertParsed(exactHalfway.toString());
+            assertParsed(exactHalfway.round(new MathContext(19, RoundingMode.DOWN)).toString());
+            assertParsed(exactHalfway.round(new MathContext(19, RoundingMode.UP)).toString());
+        }
+    }
+
+    private static final String[] BINARY_COLUMNS = {"Sample", "BetaValue", "UValue", "UValue_0_1", "UValue_1_2"};
+
+    /**
+     * The row of a binary log of three models for the sample, with U told apart by the session which wrote it. Reading it gives
+     * the row without its sample
+     */
+    private static double[] createBinaryRow(int sample, int session){
+        return new double[]{sample, sample / 100.0, sample + (1000.0 * session), -sample, session};
+    }
+
+    /**
+     * Adds the rows of the samples from firstSample up to lastSample to the binary log, and returns them as they are read
+     */
+    private static List<double[]> addBinaryRows(ModelComparisonBinaryLog binaryLog, int firstSample, int lastSample, int session) throws IOException {
+        List<double[]> rows = new ArrayList<>();
+        for (int sample = firstSample; sample <= lastSample; sample++){
+            double[] row = createBinaryRow(sample, session);
+            for (double value : row){
+                binaryLog.add(value);
+            }
+            rows.add(Arrays.copyOfRange(row, 1, row.length));
+        }
+        return rows;
+    }
+
+    private static void assertRowsRead(List<double[]> expected, File file) throws IOException {
+        for (int nrOfThreads : new int[]{1, 3}){
+            List<double[]> rows = readRows(file, nrOfThreads, 64);
+            assertEquals("rows with " + nrOfThreads + " threads", expected.size(), rows.size());
+            for (int row = 0; row < rows.size(); row++){
+                assertTrue("row " + row + " with " + nrOfThreads + " threads: " + Arrays.toString(rows.get(row)), Arrays.equals(expected.get(row), rows.get(row)));
+            }
+        }
+    }
+
+    private static File createBinaryLogFile() throws IOException {
+        File file = File.createTempFile("ModelComparisonLogReaderTest", ".mcb");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Blocks of 8 rows, some of which are written before they are full, as when the state of the chain is stored
+     */
+    private static void checkBinaryLogRoundTrip(boolean compress) throws IOException {
+        File file = createBinaryLogFile();
+        ModelComparisonBinaryLog binaryLog = new ModelComparisonBinaryLog(file, BINARY_COLUMNS, 8, false, compress);
+        List<double[]> expected = addBinaryRows(binaryLog, 0, 20, 0);
+        binaryLog.flush();
+        expected.addAll(addBinaryRows(binaryLog, 21, 49, 0));
+        binaryLog.close();
+        assertRowsRead(expected, file);
+    }
+
+    @Test
+    public void testBinaryLogRoundTrip() throws IOException {
+        checkBinaryLogRoundTrip(false);
+    }
+
+    @Test
+    public void testCompressedBinaryLogRoundTrip() throws IOException {
+        checkBinaryLogRoundTrip(true);
+    }
+
+    /**
+     * The chain stored its state at sample 9 (in the middle of a block, which is written then), carried on to sample 17
+     * (filling a block), and was then resumed from sample 9, so it logs the samples from 10 on again
+     */
+    private static void checkBinaryLogTruncatedOnResume(boolean compress) throws IOException {
+        File file = createBinaryLogFile();
+        ModelComparisonBinaryLog binaryLog = new ModelComparisonBinaryLog(file, BINARY_COLUMNS, 8, false, compress);
+        List<double[]> expected = addBinaryRows(binaryLog, 0, 9, 0);
+        binaryLog.close();
+        binaryLog = new ModelComparisonBinaryLog(file, BINARY_COLUMNS, 8, true, compress);
+        addBinaryRows(binaryLog, 10, 17, 1);
+        binaryLog.close();
+
+        binaryLog = new ModelComparisonBinaryLog(file, BINARY_COLUMNS, 8, true, compress);
+        binaryLog.removeRowsFrom(10);
+        expected.addAll(addBinaryRows(binaryLog, 10, 30, 2));
+        binaryLog.close();
+        assertRowsRead(expected, file);
+
+        //A log with other columns is not appended to but started again
+        binaryLog = new ModelComparisonBinaryLog(file, Arrays.copyOf(BINARY_COLUMNS, 3), 8, true, compress);
+        binaryLog.close();
+        assertRowsRead(new ArrayList<>(), file);
+    }
+
+    @Test
+    public void testBinaryLogTruncatedOnResume() throws IOException {
+        checkBinaryLogTruncatedOnResume(false);
+    }
+
+    @Test
+    public void testCompressedBinaryLogTruncatedOnResume() throws IOException {
+        checkBinaryLogTruncatedOnResume(true);
+    }
+
+    /**
+     * A compressed binary log is one gzip stream. If the chain stopped while a block was being written, the log is appended to
+     * after the last complete block, and the reader reads up to it as well
+     */
+    @Test
+    public void testCompressedBinaryLogCutOff() throws IOException {
+        File file = createBinaryLogFile();
+        ModelComparisonBinaryLog binaryLog = new ModelComparisonBinaryLog(file, BINARY_COLUMNS, 8, false, true);
+        List<double[]> expected = addBinaryRows(binaryLog, 0, 15, 0);
+        binaryLog.close();
+        long completeLength = file.length();
+        binaryLog = new ModelComparisonBinaryLog(file, BINARY_COLUMNS, 8, true, true);
+        addBinaryRows(binaryLog, 16, 23, 1);
+        binaryLog.close();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals(0x1f, bytes[0] & 0xff);
+        assertEquals(0x8b, bytes[1] & 0xff);
+        try (GZIPInputStream in = new GZIPInputStream(new FileInputStream(file))){
+            while (in.read(new byte[4096]) >= 0){
+                //The whole file has to decompress as one gzip stream
+            }
+        }
+
+        try (RandomAccessFile cutFile = new RandomAccessFile(file, "rw")){
+            cutFile.setLength(completeLength + ((bytes.length - completeLength) / 2));
+        }
+        assertRowsRead(expected, file);
+        binaryLog = new ModelComparisonBinaryLog(file, BINARY_COLUMNS, 8, true, true);
+        expected.addAll(addBinaryRows(binaryLog, 16, 20, 2));
+        binaryLog.close();
+        assertRowsRead(expected, file);
+    }
+}
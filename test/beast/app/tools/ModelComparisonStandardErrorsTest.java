@@ -0,0 +1,80 @@
+package beast.app.tools;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Checks the standard errors against simulated values of U whose true standard error is known: independent values, and an AR(1) chain
+ * whose mean changes along the path (as it does with beta).
+ */
+public class ModelComparisonStandardErrorsTest extends TestCase {
+
+    private static final int NR_OF_VALUES = 50000;
+    private static final int NR_OF_CHAINS = 8;
+    private static final int NR_OF_REPLICATES = 1000;
+
+    /**
+     * The mean over the chains of the standard errors divided by the true one, {batch means, bootstrap}
+     */
+    private double[] getStandardErrorRatios(double phi, double slope, double trueStandardError){
+        double[] ratios = new double[2];
+        List<long[]> rowRanges = Collections.singletonList(new long[]{0, NR_OF_VALUES});
+        for (int chain = 0; chain < NR_OF_CHAINS; chain++){
+            Random random = new Random(chain);
+            double[] betaValues = new double[NR_OF_VALUES];
+            double[] UValues = new double[NR_OF_VALUES];
+            double noise = random.nextGaussian() / Math.sqrt(1.0 - (phi * phi)); // started from the stationary distribution
+            for (int row = 0; row < NR_OF_VALUES; row++){
+                betaValues[row] = (double) row / (NR_OF_VALUES - 1);
+                UValues[row] = (slope * betaValues[row]) + noise;
+                noise = (phi * noise) + random.nextGaussian();
+            }
+            ModelComparisonStandardErrors standardErrors = new ModelComparisonStandardErrors(betaValues, UValues, rowRanges, true);
+            assertTrue(standardErrors.isBlockLengthFound());
+            ratios[0] = ratios[0] + (standardErrors.getBatchMeansStandardError() / trueStandardError / NR_OF_CHAINS);
+            ratios[1] = ratios[1] + (standardErrors.getBootstrapStandardError(NR_OF_REPLICATES, ForkJoinPool.commonPool()) / trueStandardError / NR_OF_CHAINS);
+        }
+        return ratios;
+    }
+
+    @Test
+    public void testIndependentValues(){
+        double[] ratios = getStandardErrorRatios(0.0, 0.0, 1.0 / Math.sqrt(NR_OF_VALUES));
+        assertEquals(1.0, ratios[0], 0.05);
+        assertEquals(1.0, ratios[1], 0.05);
+    }
+
+    @Test
+    public void testAutocorrelatedValuesWithTrend(){
+        double phi = 0.9;
+        double[] ratios = getStandardErrorRatios(phi, 2.0, 1.0 / ((1.0 - phi) * Math.sqrt(NR_OF_VALUES)));
+        assertEquals(1.0, ratios[0], 0.05);
+        assertEquals(1.0, ratios[1], 0.05);
+    }
+
+    /**
+     * The bootstrap does not depend on the number of threads
+     */
+    @Test
+    public void testBootstrapIsReproducible(){
+        Random random = new Random(1);
+        double[] betaValues = new double[1000];
+        double[] UValues = new double[1000];
+        for (int row = 0; row < UValues.length; row++){
+            betaValues[row] = row / 999.0;
+            UValues[row] = random.nextGaussian();
+        }
+        ModelComparisonStandardErrors standardErrors = new ModelComparisonStandardErrors(betaValues, UValues, Collections.singletonList(new long[]{0, 1000}), false);
+        ForkJoinPool onePool = new ForkJoinPool(1);
+        ForkJoinPool fourPool = new ForkJoinPool(4);
+        assertEquals(standardErrors.getBootstrapStandardError(200, onePool), standardErrors.getBootstrapStandardError(200, fourPool), 0.0);
+        onePool.shutdown();
+        fourPool.shutdown();
+    }
+}
@@ -0,0 +1,1063 @@
+package beast.core;
+
+import beast.core.parameter.RealParameter;
+import beast.app.tools.ModelComparisonCalculator;
+import beast.app.tools.ModelComparisonLogReader;
+import beast.core.util.AdaptiveBetaSchedule;
+import beast.core.util.BetaPathSegment;
+import beast.core.util.CompoundDistribution;
+import beast.core.util.LinearBetaSchedule;
+import beast.core.util.Log;
+import beast.core.util.ModelComparisonLogger;
+import beast.core.util.StepwiseBetaSchedule;
+import beast.core.util.UValueStatistics;
+import beast.core.util.WarpedBetaSchedule;
+import beast.evolution.operators.RealRandomWalkOperator;
+import beast.math.distributions.ModelComparisonDistribution;
+import beast.math.distributions.Normal;
+import beast.math.distributions.Prior;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Checks that the chain allocates nothing per sample, other than what the operators and the distributions of the models allocate,
+ * and how the chain behaves in its other modes.
+ */
+public class ModelComparisonMCMCTest extends TestCase {
+
+    /**
+     * Sets the parameter to one of a few values, which are boxed beforehand so that (unlike most operators) it allocates nothing
+     */
+    public static class NonAllocatingOperator extends Operator {
+
+        public Input<RealParameter> parameterInput = new Input<>("parameter", "the parameter to change", Input.Validate.REQUIRED);
+
+        private final Double[] values = new Double[64];
+
+        @Override
+        public void initAndValidate(){
+            for (int value = 0; value < values.length; value++){
+                values[value] = (value - 32) * 0.05;
+            }
+        }
+
+        @Override
+        public double proposal(){
+            parameterInput.get().setValue(0, values[Randomizer.nextInt(values.length)]);
+            return 0.0;
+        }
+    }
+
+    /**
+     * Changes its parameter, and also a StateNode it was handed without an input, so that listStateNodes() does not know about it
+     */
+    public static class UnlistedChangeOperator extends NonAllocatingOperator {
+
+        RealParameter unlisted;
+        private int proposals;
+
+        @Override
+        public double proposal(){
+            super.proposal();
+            //Not on its first proposal, as the chain exits if its check at sample 0 finds the posterior calculated wrongly
+            if (++proposals > 1){
+                unlisted.startEditing(this);
+                unlisted.setValue(0, unlisted.getValue() > 0.0 ? -0.75 : 0.25);
+            }
+            return 0.0;
+        }
+    }
+
+    /**
+     * Adds one to its parameter, which no model depends on, so every proposal is accepted and the parameter counts them
+     */
+    public static class CountingOperator extends NonAllocatingOperator {
+
+        @Override
+        public double proposal(){
+            parameterInput.get().setValue(0, parameterInput.get().getValue() + 1.0);
+            return 0.0;
+        }
+    }
+
+    /**
+     * Throws once the calculations of all its copies (as in the chains of a ladder) add up to failAt
+     */
+    public static class FailingDistribution extends Distribution {
+
+        public Input<RealParameter> xInput = new Input<>("x", "the parameter it depends on", Input.Validate.REQUIRED);
+        public Input<Integer> failAtInput = new Input<>("failAt", "the calculation at which it throws, counted over all its copies", Input.Validate.REQUIRED);
+
+        static final AtomicInteger calculations = new AtomicInteger();
+
+        @Override
+        public double calculateLogP(){
+            if (calculations.incrementAndGet() == failAtInput.get()){
+                throw new RuntimeException("test failure");
+            }
+            logP = 0.0;
+            return logP;
+        }
+
+        @Override
+        public List<String> getArguments(){
+            return null;
+        }
+
+        @Override
+        public List<String> getConditions(){
+            return null;
+        }
+
+        @Override
+        public void sample(State state, Random random){
+        }
+    }
+
+    /**
+     * Depends on x, but its logP also creeps up with every calculation after the first few (which the chain checks at sample 0), so a cached value of it goes out of date
+     */
+    public static class DriftingDistribution extends FailingDistribution {
+
+        @Override
+        public double calculateLogP(){
+            logP = 1e-3 * Math.max(0, calculations.incrementAndGet() - 50);
+            return logP;
+        }
+    }
+
+    /**
+     * Stops the chain by throwing when it is logged at the given sample, as if the run had been killed there
+     */
+    public static class StoppingLoggable extends BEASTObject implements Loggable {
+
+        static int stopAt = -1;
+
+        @Override
+        public void initAndValidate(){
+        }
+
+        @Override
+        public void init(PrintStream out){
+            out.print("stop\t");
+        }
+
+        @Override
+        public void log(int sample, PrintStream out){
+            if (sample == stopAt){
+                throw new RuntimeException("test failure");
+            }
+            out.print("0\t");
+        }
+
+        @Override
+        public void close(PrintStream out){
+        }
+    }
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("ModelComparisonMCMCTest").toFile();
+        Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+        Randomizer.setSeed(1);
+    }
+
+    @Override
+    protected void tearDown(){
+        Logger.sampleOffset = -1;
+        StoppingLoggable.stopAt = -1;
+        for (File file : directory.listFiles()){
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static RealParameter createParameter(double value){
+        RealParameter parameter = new RealParameter();
+        parameter.initByName("value", Double.toString(value));
+        return parameter;
+    }
+
+    /**
+     * Two models of the parameter x, x ~ Normal(0, 1) and x ~ Normal(0, 2), each with any extra components given for it
+     */
+    private static ModelComparisonDistribution createPosterior(RealParameter x, boolean parallelModels, Distribution... extraComponents){
+        return createPosterior(x, parallelModels, 2.0, extraComponents);
+    }
+
+    /**
+     * As above, but with x ~ Normal(0, secondSigma) in the second model
+     */
+    private static ModelComparisonDistribution createPosterior(RealParameter x, boolean parallelModels, double secondSigma, Distribution... extraComponents){
+        List<Object> models = new ArrayList<>();
+        for (int model = 0; model < 2; model++){
+            Normal normal = new Normal();
+            normal.initByName("mean", createParameter(0.0), "sigma", createParameter(model == 0 ? 1.0 : secondSigma));
+            Prior prior = new Prior();
+            prior.initByName("x", x, "distr", normal);
+            List<Distribution> components = new ArrayList<>();
+            components.add(prior);
+            if (model < extraComponents.length && extraComponents[model] != null){
+                components.add(extraComponents[model]);
+            }
+            CompoundDistribution compound = new CompoundDistribution();
+            compound.initByName("distribution", components);
+            models.add(compound);
+        }
+        RealParameter beta = createParameter(0.0);
+        beta.setID("beta");
+        ModelComparisonDistribution posterior = new ModelComparisonDistribution();
+        posterior.initByName("distribution", models, "betaParameter", beta, "parallelModels", parallelModels);
+        posterior.setID("posterior");
+        return posterior;
+    }
+
+    /**
+     * A chain with the operator on x, logging the posterior to a file in the temporary directory
+     * @param otherInputs further inputs of ModelComparisonMCMC, as names and values
+     */
+    private ModelComparisonMCMC createChain(String betaControlMode, int chainLength, RealParameter x, ModelComparisonDistribution posterior, Object... otherInputs) throws IOException {
+        return createChain(betaControlMode, chainLength, new RealParameter[]{x}, null, posterior, otherInputs);
+    }
+
+    /**
+     * A chain whose State holds the parameters, with the given operator (or by default the one above on the first of them)
+     */
+    private ModelComparisonMCMC createChain(String betaControlMode, int chainLength, RealParameter[] parameters, Operator operator, ModelComparisonDistribution posterior, Object... otherInputs) throws IOException {
+        State state = new State();
+        state.initByName("stateNode", Arrays.asList(parameters));
+        if (operator == null){
+            operator = new NonAllocatingOperator();
+            operator.initByName("parameter", parameters[0], "weight", 1.0);
+            operator.setID("operator");
+        }
+        Logger logger = new Logger();
+        logger.initByName("fileName", new File(directory, "chain.log").getPath(), "logEvery", chainLength, "log", posterior);
+        List<Object> inputs = new ArrayList<>(Arrays.asList("chainLength", chainLength, "betaControlMode", betaControlMode, "betaParameter", posterior.betaParameterInput.get(),
+                "state", state, "distribution", posterior, "operator", operator, "logger", logger));
+        inputs.addAll(Arrays.asList(otherInputs));
+        ModelComparisonMCMC mcmc = new ModelComparisonMCMC();
+        mcmc.initByName(inputs.toArray());
+        mcmc.setStateFile(new File(directory, "chain.state").getPath(), false);
+        return mcmc;
+    }
+
+    private Logger createLogger(String fileName, int logEvery, Object... loggables){
+        Logger logger = new Logger();
+        List<Object> inputs = new ArrayList<>(Arrays.asList("fileName", new File(directory, fileName).getPath(), "logEvery", logEvery));
+        for (Object loggable : loggables){
+            inputs.add("log");
+            inputs.add(loggable);
+        }
+        logger.initByName(inputs.toArray());
+        return logger;
+    }
+
+    private String readLog(String fileName) throws IOException {
+        return new String(Files.readAllBytes(new File(directory, fileName).toPath()), StandardCharsets.UTF_8);
+    }
+
+    private interface ChainRun {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs the chain (or ladder) with a System.out which it cannot close (as it does when it finishes)
+     */
+    private static void run(ChainRun chain) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new FilterOutputStream(out){
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        }));
+        try {
+            chain.run();
+        }
+        finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Two models of x with the prior x ~ Normal(0, 1), the second also with the likelihood of an observation of 1 from Normal(x, 1), and a random walk on x.
+     * The marginal likelihood of the first model is 1 and that of the second is the density of Normal(0, sqrt(2)) at 1, so the log Bayes factor is known
+     */
+    private ModelComparisonMCMC createGaussianPairChain(String betaControlMode, int chainLength, Object... otherInputs) throws IOException {
+        return createGaussianModelsChain(2, betaControlMode, chainLength, otherInputs);
+    }
+
+    /**
+     * As the Gaussian pair, but with the given number of models, where each model has one more observation of 1 than the one before
+     */
+    private ModelComparisonMCMC createGaussianModelsChain(int nrOfModels, String betaControlMode, int chainLength, Object... otherInputs) throws IOException {
+        RealParameter x = createParameter(0.0);
+        x.setID("x");
+        List<Object> models = new ArrayList<>();
+        for (int model = 0; model < nrOfModels; model++){
+            Normal normal = new Normal();
+            normal.initByName("mean", createParameter(0.0), "sigma", createParameter(1.0));
+            Prior prior = new Prior();
+            prior.initByName("x", x, "distr", normal);
+            List<Distribution> components = new ArrayList<>();
+            components.add(prior);
+            for (int observationNr = 0; observationNr < model; observationNr++){
+                Normal observationDistribution = new Normal();
+                observationDistribution.initByName("mean", x, "sigma", createParameter(1.0));
+                Prior observation = new Prior();
+                observation.initByName("x", createParameter(1.0), "distr", observationDistribution);
+                components.add(observation);
+            }
+            CompoundDistribution compound = new CompoundDistribution();
+            compound.initByName("distribution", components);
+            models.add(compound);
+        }
+        RealParameter beta = createParameter(0.0);
+        beta.setID("beta");
+        ModelComparisonDistribution posterior = new ModelComparisonDistribution();
+        posterior.initByName("distribution", models, "betaParameter", beta);
+        posterior.setID("posterior");
+        RealRandomWalkOperator operator = new RealRandomWalkOperator();
+        operator.initByName("parameter", x, "windowSize", 1.0, "weight", 1.0);
+        return createChain(betaControlMode, chainLength, new RealParameter[]{x}, operator, posterior, otherInputs);
+    }
+
+    private static final double GAUSSIAN_PAIR_LOG_BAYES_FACTOR = -0.5 * Math.log(4 * Math.PI) - 0.25;
+
+    /**
+     * The log marginal likelihood of the model of x with the given number of observations of 1, for which the observations are
+     * jointly normal with mean 0, variance 2 and covariance 1
+     */
+    private static double getGaussianModelLogMarginalLikelihood(int nrOfObservations){
+        return (-0.5 * nrOfObservations * Math.log(2 * Math.PI)) - (0.5 * Math.log(1 + nrOfObservations)) - (0.5 * nrOfObservations / (1.0 + nrOfObservations));
+    }
+
+    /**
+     * Runs a chain of the given length between two models of one parameter, returning the bytes allocated by the thread running it
+     */
+    private long runChain(String betaControlMode, boolean parallelModels, int chainLength) throws IOException {
+        Randomizer.setSeed(1);
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        ModelComparisonMCMC mcmc = createChain(betaControlMode, chainLength, x, createPosterior(x, parallelModels));
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        try {
+            run(mcmc::run);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+    }
+
+    /**
+     * Runs the chain on a thread of its own, and returns what it stopped with, failing if it does not stop within a minute
+     */
+    private static Throwable runUntilStopped(ModelComparisonMCMC mcmc) throws InterruptedException {
+        AtomicReference<Throwable> stoppedWith = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                run(mcmc::run);
+            } catch (Exception | Error e) {
+                stoppedWith.set(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(60000);
+        assertFalse("The chain did not stop", thread.isAlive());
+        return stoppedWith.get();
+    }
+
+    private static void assertStoppedWithTestFailure(Throwable stoppedWith){
+        assertNotNull("The chain finished without the exception", stoppedWith);
+        Throwable cause = stoppedWith;
+        while (cause != null && ! "test failure".equals(cause.getMessage())){
+            cause = cause.getCause();
+        }
+        assertNotNull("The chain stopped with " + stoppedWith + " rather than the exception", cause);
+    }
+
+    /**
+     * Runs the chain, returning what it printed to Log.warning
+     */
+    private static String runCapturingWarnings(ChainRun chain) throws Exception {
+        PrintStream warning = Log.warning;
+        ByteArrayOutputStream warnings = new ByteArrayOutputStream();
+        Log.warning = new PrintStream(warnings, true);
+        try {
+            run(chain);
+        }
+        finally {
+            Log.warning = warning;
+        }
+        return new String(warnings.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The bytes allocated per sample, from the difference between a long and a short chain (which leaves out setting up and finishing the chain)
+     */
+    private double getBytesPerSample(String betaControlMode, boolean parallelModels) throws IOException {
+        //Both lengths once first, for the code to be compiled
+        runChain(betaControlMode, parallelModels, 100000);
+        runChain(betaControlMode, parallelModels, 300000);
+        long shortChain = runChain(betaControlMode, parallelModels, 100000);
+        long longChain = runChain(betaControlMode, parallelModels, 300000);
+        return (longChain - shortChain) / 200000.0;
+    }
+
+    @Test
+    public void testNoAllocationPerSample() throws IOException {
+        for (String betaControlMode : new String[]{"static", "oneway", "bothways"}){
+            double bytesPerSample = getBytesPerSample(betaControlMode, false);
+            assertTrue(bytesPerSample + " bytes allocated per sample with betaControlMode " + betaControlMode, bytesPerSample < 1.0);
+        }
+    }
+
+    @Test
+    public void testNoAllocationPerSampleWithParallelModels() throws IOException {
+        double bytesPerSample = getBytesPerSample("oneway", true);
+        assertTrue(bytesPerSample + " bytes allocated per sample", bytesPerSample < 1.0);
+    }
+
+    @Test
+    public void testFailingReplicaStopsReplicaExchange() throws Exception {
+        //Each replica calculates the failing component after every proposal, so one of them throws part way through its chain
+        FailingDistribution.calculations.set(0);
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        FailingDistribution failing = new FailingDistribution();
+        failing.initByName("x", x, "failAt", 20000);
+        ModelComparisonMCMC mcmc = createChain("replicaexchange", 100000, x, createPosterior(x, false, failing), "nrOfRungs", 4, "swapEvery", 10);
+        assertStoppedWithTestFailure(runUntilStopped(mcmc));
+    }
+
+    @Test
+    public void testFailingRungStopsLadder() throws Exception {
+        FailingDistribution.calculations.set(0);
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        FailingDistribution failing = new FailingDistribution();
+        failing.initByName("x", x, "failAt", 20000);
+        ModelComparisonMCMC mcmc = createChain("ladder", 10000000, x, createPosterior(x, false, failing), "nrOfRungs", 4, "nrOfThreads", 2);
+        assertStoppedWithTestFailure(runUntilStopped(mcmc));
+    }
+
+    @Test
+    public void testOperatorChangingUnlistedStateNode() throws Exception {
+        //The first model only depends on x and the second only on y, and the operator lists only x
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        RealParameter y = createParameter(0.25);
+        y.setID("y");
+        List<Object> models = new ArrayList<>();
+        for (RealParameter parameter : new RealParameter[]{x, y}){
+            Normal normal = new Normal();
+            normal.initByName("mean", createParameter(0.0), "sigma", createParameter(1.0));
+            Prior prior = new Prior();
+            prior.initByName("x", parameter, "distr", normal);
+            CompoundDistribution compound = new CompoundDistribution();
+            compound.initByName("distribution", prior);
+            models.add(compound);
+        }
+        ModelComparisonDistribution posterior = new ModelComparisonDistribution();
+        posterior.initByName("distribution", models, "betaParameter", createParameter(0.5));
+        UnlistedChangeOperator operator = new UnlistedChangeOperator();
+        operator.initByName("parameter", x, "weight", 1.0);
+        operator.unlisted = y;
+        ModelComparisonMCMC mcmc = createChain("static", 5000, new RealParameter[]{x, y}, operator, posterior);
+        run(mcmc::run);
+
+        double[] chainInnerLogP = mcmc.getCurrentInnerLogPValues().clone();
+        mcmc.robustlyCalcPosterior(posterior);
+        double[] recalculatedInnerLogP = posterior.getInnerPosteriorLogP();
+        for (int model = 0; model < 2; model++){
+            assertEquals("inner posterior " + model, recalculatedInnerLogP[model], chainInnerLogP[model], 1e-10);
+        }
+    }
+
+    /**
+     * Runs a static chain at beta = 0 with the failing component (which does not fail) in the first model, returning how often it was calculated
+     */
+    private int countFirstModelCalculations(boolean deferZeroWeightModel) throws Exception {
+        Randomizer.setSeed(1);
+        FailingDistribution.calculations.set(0);
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        FailingDistribution counting = new FailingDistribution();
+        counting.initByName("x", x, "failAt", Integer.MAX_VALUE);
+        ModelComparisonDistribution posterior = createPosterior(x, false, counting);
+        ModelComparisonMCMC mcmc = createChain("static", 5000, x, posterior, "deferZeroWeightModel", deferZeroWeightModel,
+                "logger", createLogger("static.log", 10, posterior));
+        run(mcmc::run);
+
+        double[] chainInnerLogP = mcmc.getCurrentInnerLogPValues().clone();
+        int calculations = FailingDistribution.calculations.get();
+        mcmc.robustlyCalcPosterior(posterior);
+        for (int model = 0; model < 2; model++){
+            assertEquals("inner posterior " + model, posterior.getInnerPosteriorLogP()[model], chainInnerLogP[model], 1e-10);
+        }
+        return calculations;
+    }
+
+    @Test
+    public void testDeferredModelIsRefreshedOnItsOwn() throws Exception {
+        //Refreshing the deferred second model at every logged sample must not calculate the first model again
+        assertEquals(countFirstModelCalculations(false), countFirstModelCalculations(true));
+    }
+
+    private String runAdaptiveChain(boolean deferZeroWeightModel) throws Exception {
+        Randomizer.setSeed(1);
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        ModelComparisonDistribution posterior = createPosterior(x, false);
+        String logName = "adaptive" + deferZeroWeightModel + ".log";
+        ModelComparisonMCMC mcmc = createChain("bothways", 2002, x, posterior, "betaSchedule", "adaptive", "deferZeroWeightModel", deferZeroWeightModel,
+                "logger", createLogger(logName, 10, posterior, posterior.betaParameterInput.get()));
+        run(mcmc::run);
+        return readLog(logName);
+    }
+
+    @Test
+    public void testDeferredModelBeforeAdaptiveMove() throws Exception {
+        //Beta gets to 1 at sample 1001, which is not logged, and the move back from there uses U, so the deferred model has to be up to date for it
+        assertEquals(runAdaptiveChain(false), runAdaptiveChain(true));
+    }
+
+    private static Set<Thread> getModelThreads(){
+        Set<Thread> modelThreads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()){
+            if (thread.getName().startsWith("ModelComparisonDistribution-model") && thread.isAlive()){
+                modelThreads.add(thread);
+            }
+        }
+        return modelThreads;
+    }
+
+    /**
+     * Inputs which the chain would ignore with the other inputs given are rejected, naming the input
+     */
+    @Test
+    public void testUnsupportedInputCombinationsAreRejected() throws Exception {
+        Object[][] combinations = {
+                {"static", "betaSchedule", "adaptive"},
+                {"ladder", "betaEnd", 0.5},
+                {"replicaexchange", "schedule", new LinearBetaSchedule()},
+                {"oneway", "betaScheduleWindow", 100},
+                {"replicaexchange", "nrOfThreads", 2},
+                {"ladder", "warmStartBurnIn", 100},
+                {"static", "profileEvery", 100},
+                {"oneway", "betaSchedule", "adaptive", "precisionTarget", 0.1},
+                {"bothways", "schedule", new LinearBetaSchedule(), "betaSchedule", "adaptive"}
+        };
+        for (Object[] combination : combinations){
+            RealParameter x = createParameter(0.0);
+            try {
+                createChain((String) combination[0], 1000, x, createPosterior(x, false), Arrays.copyOfRange(combination, 1, combination.length));
+                fail("No exception for " + Arrays.toString(combination));
+            } catch (RuntimeException e) {
+                String input = (String) combination[combination.length - 2];
+                assertTrue(e.getMessage(), e.getMessage().matches("(?s).*\\b" + input + "\\b.*\\(on the ModelComparisonMCMC object\\).*"));
+            }
+        }
+        //The inputs are accepted where they are used
+        RealParameter x = createParameter(0.0);
+        createChain("oneway", 1000, x, createPosterior(x, false), "betaSchedule", "adaptive", "betaScheduleWindow", 100);
+    }
+
+    @Test
+    public void testModelThreadsStopAfterRun() throws Exception {
+        Set<Thread> earlierThreads = getModelThreads();
+        for (String betaControlMode : new String[]{"static", "ladder"}){
+            RealParameter x = createParameter(0.5);
+            x.setID("x");
+            Object[] ladderInputs = betaControlMode.equals("ladder") ? new Object[]{"nrOfRungs", 3, "nrOfThreads", 2} : new Object[0];
+            ModelComparisonMCMC mcmc = createChain(betaControlMode, 1000, x, createPosterior(x, true), ladderInputs);
+            run(mcmc::run);
+            Set<Thread> modelThreads = getModelThreads();
+            modelThreads.removeAll(earlierThreads);
+            assertTrue(modelThreads.size() + " threads still running after the chain with betaControlMode " + betaControlMode, modelThreads.isEmpty());
+        }
+    }
+
+    @Test
+    public void testEstimateUsesEverySample() throws Exception {
+        //The estimate of a logger which logs rarely and writes no text, against the values of every sample logged by another
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        ModelComparisonDistribution posterior = createPosterior(x, false);
+        ModelComparisonLogger estimating = new ModelComparisonLogger();
+        estimating.initByName("posteriorDistribution", posterior, "estimate", true, "logText", false);
+        ModelComparisonLogger everySample = new ModelComparisonLogger();
+        everySample.initByName("posteriorDistribution", posterior);
+        ModelComparisonMCMC mcmc = createChain("oneway", 2000, x, posterior,
+                "logger", createLogger("estimate.log", 1000, estimating), "logger", createLogger("everySample.log", 1, everySample));
+        run(mcmc::run);
+
+        List<Double> betaValues = new ArrayList<>();
+        List<Double> UValues = new ArrayList<>();
+        for (String line : readLog("everySample.log").split("\n")){
+            String[] fields = line.split("\t");
+            if ( ! line.startsWith("Sample") && ! line.startsWith("#")){
+                betaValues.add(Double.parseDouble(fields[1]));
+                UValues.add(Double.parseDouble(fields[2]));
+            }
+        }
+        assertEquals(2001, betaValues.size());
+        double[] betaArray = new double[betaValues.size()];
+        double[] UArray = new double[UValues.size()];
+        for (int i = 0; i < betaArray.length; i++){
+            betaArray[i] = betaValues.get(i);
+            UArray[i] = UValues.get(i);
+        }
+
+        String estimatedLine = null;
+        for (String line : readLog("estimate.log").split("\n")){
+            assertTrue("row written by a logger with nothing to log: " + line, line.startsWith("Sample") || line.startsWith("#"));
+            if (line.contains("Pass 1")){
+                estimatedLine = line;
+            }
+        }
+        assertNotNull("no estimate in the log", estimatedLine);
+        double estimate = Double.parseDouble(estimatedLine.substring(estimatedLine.lastIndexOf(':') + 1).trim());
+        assertEquals(ModelComparisonCalculator.integrateOverBeta(betaArray, UArray), estimate, 1e-9);
+    }
+
+    /**
+     * The estimate of the log Bayes factor from the mean of U at each rung of the ladder
+     */
+    private static double getLadderEstimate(ModelComparisonLadder ladder){
+        double[] meanUValues = new double[ladder.nrOfRungs];
+        for (int rung = 0; rung < ladder.nrOfRungs; rung++){
+            meanUValues[rung] = ladder.getRungStatistics(rung).getMean(0);
+        }
+        return ModelComparisonCalculator.integrateOverBeta(ladder.rungBetaValues, meanUValues);
+    }
+
+    @Test
+    public void testLadderEstimateOfGaussianPair() throws Exception {
+        Randomizer.setSeed(1);
+        ModelComparisonMCMC mcmc = createGaussianPairChain("ladder", 20000);
+        ModelComparisonLadder ladder = new ModelComparisonLadder(mcmc, 11, 2);
+        run(ladder::run);
+        assertEquals(GAUSSIAN_PAIR_LOG_BAYES_FACTOR, getLadderEstimate(ladder), 0.05);
+    }
+
+    @Test
+    public void testLadderOnOneThreadIsRepeatable() throws Exception {
+        //With more than one thread the rungs share the Randomizer in whatever order they are scheduled, but one after the other they do not
+        double[] estimates = new double[2];
+        for (int repeat = 0; repeat < 2; repeat++){
+            Randomizer.setSeed(1);
+            ModelComparisonLadder ladder = new ModelComparisonLadder(createGaussianPairChain("ladder", 2000), 3, 1);
+            run(ladder::run);
+            estimates[repeat] = getLadderEstimate(ladder);
+        }
+        assertEquals(estimates[0], estimates[1], 0.0);
+    }
+
+    @Test
+    public void testResumeFromStateFile() throws Exception {
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        ModelComparisonMCMC mcmc = createChain("oneway", 2000, x, createPosterior(x, false), "storeEvery", 1000);
+        run(mcmc::run);
+
+        //The state file ends with the operator schedule just as OperatorSchedule writes it, which is what it is restored from
+        File operatorScheduleFile = new File(directory, "operators");
+        mcmc.operatorSchedule.setStateFileName(operatorScheduleFile.getPath());
+        mcmc.operatorSchedule.storeToFile();
+        String operatorSchedule = readLog("operators");
+        assertTrue("no operator schedule at the end of the state file", readLog("chain.state").endsWith(operatorSchedule));
+        int accepted = mcmc.operatorsInput.get().get(0).m_nNrAccepted;
+
+        Logger.FILE_MODE = Logger.LogFileMode.resume;
+        x = createParameter(0.5);
+        x.setID("x");
+        ModelComparisonMCMC resumed = createChain("oneway", 2000, x, createPosterior(x, false), "storeEvery", 1000);
+        resumed.setStateFile(new File(directory, "chain.state").getPath(), true);
+        run(resumed::run);
+        assertEquals(accepted, resumed.operatorsInput.get().get(0).m_nNrAccepted);
+        //The chain numbers its samples from the checkpoint rather than from the end of the log files only while it runs,
+        //and leaves the offset the resumed log files set to the loggers of whatever runs next
+        assertEquals(2000, Logger.sampleOffset);
+    }
+
+    /**
+     * Runs a oneway chain checking the re-weighted posterior every so many samples, with the first model drifting if asked to
+     */
+    private String runReweightCheckedChain(int betaReweightCheckEvery, boolean drifting, StringBuilder warnings) throws Exception {
+        Randomizer.setSeed(1);
+        FailingDistribution.calculations.set(0);
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        DriftingDistribution drift = null;
+        if (drifting){
+            drift = new DriftingDistribution();
+            drift.initByName("x", x, "failAt", Integer.MAX_VALUE);
+        }
+        ModelComparisonDistribution posterior = createPosterior(x, false, drift);
+        String logName = "reweighted" + betaReweightCheckEvery + ".log";
+        ModelComparisonMCMC mcmc = createChain("oneway", 2000, x, posterior, "betaReweightCheckEvery", betaReweightCheckEvery,
+                "logger", createLogger(logName, 10, posterior, posterior.betaParameterInput.get()));
+        warnings.append(runCapturingWarnings(mcmc::run));
+        return readLog(logName);
+    }
+
+    @Test
+    public void testReweightedPosteriorMatchesRecalculation() throws Exception {
+        //Re-weighting the cached inner posteriors when beta changes is exact, so checking it at every sample changes nothing
+        StringBuilder warnings = new StringBuilder();
+        String unchecked = runReweightCheckedChain(0, false, warnings);
+        String checked = runReweightCheckedChain(1, false, warnings);
+        assertEquals(unchecked, checked);
+        assertFalse(warnings.toString(), warnings.toString().contains("did not match"));
+    }
+
+    @Test
+    public void testReweightCheckFindsOutOfDateInnerPosterior() throws Exception {
+        StringBuilder warnings = new StringBuilder();
+        runReweightCheckedChain(100, true, warnings);
+        assertTrue("no warning of the mismatch", warnings.toString().contains("the re-weighted posterior did not match a full recalculation"));
+    }
+
+    @Test
+    public void testReplicaExchangeEstimateOfGaussianPair() throws Exception {
+        Randomizer.setSeed(1);
+        ModelComparisonReplicaExchange replicaExchange = new ModelComparisonReplicaExchange(createGaussianPairChain("replicaexchange", 20000, "swapEvery", 10), 6);
+        run(replicaExchange::run);
+        assertEquals(GAUSSIAN_PAIR_LOG_BAYES_FACTOR, getLadderEstimate(replicaExchange), 0.05);
+        for (int pair = 0; pair < 5; pair++){
+            double acceptanceRate = replicaExchange.getSwapAcceptanceRate(pair);
+            assertTrue("swap acceptance rate " + acceptanceRate + " of pair " + pair, acceptanceRate > 0.0 && acceptanceRate < 1.0);
+        }
+    }
+
+    @Test
+    public void testReplicaExchangeAcceptsEverySwapOfIdenticalModels() throws Exception {
+        //With the same inner posterior in both models the posterior does not depend on beta, so a swap never changes it
+        Randomizer.setSeed(1);
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        ModelComparisonMCMC mcmc = createChain("replicaexchange", 2000, x, createPosterior(x, false, 1.0), "swapEvery", 10);
+        ModelComparisonReplicaExchange replicaExchange = new ModelComparisonReplicaExchange(mcmc, 4);
+        run(replicaExchange::run);
+        for (int pair = 0; pair < 3; pair++){
+            assertEquals(1.0, replicaExchange.getSwapAcceptanceRate(pair), 0.0);
+        }
+    }
+
+    @Test
+    public void testReplicaExchangeRarelySwapsDistantModels() throws Exception {
+        //At beta = 1, x ~ Normal(0, 0.01) keeps x at 0, where the second model is far more likely than the first, while x at beta = 0 is
+        //almost never close enough to 0 for the second model, so swapping their values of beta almost always lowers the posterior of both
+        Randomizer.setSeed(1);
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        ModelComparisonMCMC mcmc = createChain("replicaexchange", 2000, x, createPosterior(x, false, 0.01), "swapEvery", 10);
+        ModelComparisonReplicaExchange replicaExchange = new ModelComparisonReplicaExchange(mcmc, 2);
+        run(replicaExchange::run);
+        assertTrue("swap acceptance rate " + replicaExchange.getSwapAcceptanceRate(0), replicaExchange.getSwapAcceptanceRate(0) < 0.1);
+    }
+
+    /**
+     * Moves beta from 0 to 1 in the given number of steps of the adaptive schedule, with U drawn from Normal(0, sd) where sd
+     * changes linearly from startSd at beta = 0 to endSd at beta = 1, returning the value of beta after each step
+     */
+    private static double[] runAdaptiveSchedule(int nrOfSteps, double startSd, double endSd){
+        AdaptiveBetaSchedule schedule = new AdaptiveBetaSchedule(nrOfSteps / 20);
+        Random random = new Random(1);
+        double[] betaValues = new double[nrOfSteps];
+        double beta = 0.0;
+        for (int step = 0; step < nrOfSteps; step++){
+            double sd = startSd + ((endSd - startSd) * beta);
+            beta = schedule.nextBetaValue(beta, 1.0, nrOfSteps - step, sd * random.nextGaussian());
+            betaValues[step] = beta;
+        }
+        return betaValues;
+    }
+
+    @Test
+    public void testAdaptiveScheduleIsEvenWhereUDoesNotChange(){
+        double[] betaValues = runAdaptiveSchedule(1000, 1.0, 1.0);
+        assertEquals(1.0, betaValues[betaValues.length - 1], 0.0);
+        //Once the window is full it only departs from even steps as far as the spread of U seems to change from noise
+        assertEquals(0.5, betaValues[499], 0.05);
+        double[] constantU = new double[1000];
+        AdaptiveBetaSchedule schedule = new AdaptiveBetaSchedule(50);
+        double beta = 0.0;
+        for (int step = 0; step < constantU.length; step++){
+            beta = schedule.nextBetaValue(beta, 1.0, constantU.length - step, 1.0);
+            assertEquals((step + 1) / 1000.0, beta, 1e-9);
+        }
+    }
+
+    @Test
+    public void testAdaptiveScheduleSlowsDownWhereUChangesFastest(){
+        //The spread of U is the rate at which its mean changes with beta, so beta should be slower where it is larger
+        double[] fastUAtStart = runAdaptiveSchedule(1000, 10.0, 0.5);
+        double[] fastUAtEnd = runAdaptiveSchedule(1000, 0.5, 10.0);
+        assertTrue("beta half way along the path " + fastUAtStart[499], fastUAtStart[499] < 0.4);
+        assertTrue("beta half way along the path " + fastUAtEnd[499], fastUAtEnd[499] > 0.6);
+        assertEquals(1.0, fastUAtStart[999], 0.0);
+        assertEquals(1.0, fastUAtEnd[999], 0.0);
+    }
+
+    @Test
+    public void testAdaptiveChainEndsAtTheOtherEnd() throws Exception {
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        ModelComparisonDistribution posterior = createPosterior(x, false, 0.1);
+        ModelComparisonLogger betaLogger = new ModelComparisonLogger();
+        betaLogger.initByName("posteriorDistribution", posterior);
+        ModelComparisonMCMC mcmc = createChain("oneway", 2000, x, posterior, "betaSchedule", "adaptive",
+                "logger", createLogger("adaptiveBeta.log", 1, betaLogger));
+        run(mcmc::run);
+        double previousBeta = 0.0;
+        int samples = 0;
+        for (String line : readLog("adaptiveBeta.log").split("\n")){
+            if ( ! line.startsWith("Sample") && ! line.startsWith("#")){
+                double beta = Double.parseDouble(line.split("\t")[1]);
+                assertTrue("beta went back from " + previousBeta + " to " + beta, beta >= previousBeta);
+                previousBeta = beta;
+                samples++;
+            }
+        }
+        assertEquals(2001, samples);
+        assertEquals(1.0, previousBeta, 0.0);
+    }
+
+    /**
+     * Each segment as "firstSample-lastSample beta" followed by "(equilibrating)" if it is
+     */
+    private static List<String> describeSegments(List<BetaPathSegment> segments){
+        List<String> descriptions = new ArrayList<>();
+        for (BetaPathSegment segment : segments){
+            assertTrue(segment.isBetaFixed());
+            descriptions.add(segment.getFirstSample() + "-" + segment.getLastSample() + " " + segment.getBetaValue(segment.getFirstSample())
+                    + (segment.isEquilibrating() ? " (equilibrating)" : ""));
+        }
+        return descriptions;
+    }
+
+    @Test
+    public void testStepwiseScheduleSegments(){
+        StepwiseBetaSchedule schedule = new StepwiseBetaSchedule();
+        schedule.initByName("nrOfSteps", 3, "equilibrationFraction", 0.2);
+        assertEquals(Arrays.asList("0-5 0.0 (equilibrating)", "6-32 0.0", "33-38 0.5 (equilibrating)", "39-65 0.5", "66-71 1.0 (equilibrating)", "72-99 1.0"),
+                describeSegments(schedule.createPass(0, 99, 0.0, 1.0, true)));
+        //The way back starts after the sample the first pass ended with, and goes through the same values of beta the other way round
+        assertEquals(Arrays.asList("100-105 1.0 (equilibrating)", "106-132 1.0", "133-138 0.5 (equilibrating)", "139-165 0.5", "166-171 0.0 (equilibrating)", "172-199 0.0"),
+                describeSegments(schedule.createPass(99, 199, 1.0, 0.0, false)));
+
+        WarpedBetaSchedule spacing = new WarpedBetaSchedule();
+        spacing.initByName("warp", "power", "shape", 2.0);
+        StepwiseBetaSchedule spaced = new StepwiseBetaSchedule();
+        spaced.initByName("nrOfSteps", 3, "equilibrationFraction", 0.0, "spacing", spacing);
+        assertEquals(Arrays.asList("0-32 0.0", "33-65 0.25", "66-99 1.0"), describeSegments(spaced.createPass(0, 99, 0.0, 1.0, true)));
+    }
+
+    @Test
+    public void testStepwiseEstimateOfGaussianPair() throws Exception {
+        Randomizer.setSeed(1);
+        StepwiseBetaSchedule schedule = new StepwiseBetaSchedule();
+        schedule.initByName("nrOfSteps", 11, "equilibrationFraction", 0.2);
+        ModelComparisonMCMC mcmc = createGaussianPairChain("oneway", 219999, "schedule", schedule);
+        String[] warnings = runCapturingWarnings(mcmc::run).split("\n");
+
+        //A row for each step, with the mean of U over the samples after equilibrating
+        int header = Arrays.asList(warnings).indexOf("Step\tBetaValue\tMeanUValue\tStandardError\tSamples");
+        assertTrue("no table of the steps", header >= 0);
+        for (int step = 0; step < 11; step++){
+            String[] row = warnings[header + 1 + step].split("\t");
+            assertEquals(Integer.toString(step), row[0]);
+            assertEquals(step / 10.0, Double.parseDouble(row[1]), 1e-12);
+            assertEquals("16000", row[4]);
+        }
+        int estimate = Arrays.asList(warnings).indexOf("Steps of beta analysed. The log Bayes factor calculated is: ");
+        assertTrue("no estimate", estimate >= 0);
+        assertEquals(GAUSSIAN_PAIR_LOG_BAYES_FACTOR, Double.parseDouble(warnings[estimate + 1]), 0.05);
+    }
+
+    @Test
+    public void testLadderEstimateOfThreeGaussianModels() throws Exception {
+        Randomizer.setSeed(1);
+        ModelComparisonLadder ladder = new ModelComparisonLadder(createGaussianModelsChain(3, "ladder", 20000), 21, 2);
+        run(ladder::run);
+        double[][] meanUValues = new double[21][2];
+        for (int rung = 0; rung < 21; rung++){
+            for (int pair = 0; pair < 2; pair++){
+                meanUValues[rung][pair] = ladder.getRungStatistics(rung).getMean(pair);
+            }
+        }
+        double[] pairEstimates = ModelComparisonCalculator.integrateSections(ladder.rungBetaValues, meanUValues, 3);
+        assertEquals(GAUSSIAN_PAIR_LOG_BAYES_FACTOR, getGaussianModelLogMarginalLikelihood(1) - getGaussianModelLogMarginalLikelihood(0), 1e-12);
+        for (int pair = 0; pair < 2; pair++){
+            assertEquals("log Bayes factor of model " + (pair + 1) + " against model " + pair,
+                    getGaussianModelLogMarginalLikelihood(pair + 1) - getGaussianModelLogMarginalLikelihood(pair), pairEstimates[pair], 0.05);
+        }
+    }
+
+    /**
+     * Runs (or resumes) a bothways chain on the Gaussian pair which stores its state every 1000 samples and logs beta and U every sample
+     * (to a binary log as well, compressed if compress is true),
+     * with the StoppingLoggable logged before it, so that neither of their logs has the sample it stops at.
+     * Beta follows a warped schedule, which is made of a segment of the path every few samples
+     */
+    private String runCheckpointedChain(boolean resume, boolean compress) throws Exception {
+        WarpedBetaSchedule schedule = new WarpedBetaSchedule();
+        schedule.initByName("warp", "power", "shape", 2.0);
+        ModelComparisonMCMC mcmc = createGaussianPairChain("bothways", 6000, "storeEvery", 1000, "schedule", schedule);
+        ModelComparisonLogger betaLogger = new ModelComparisonLogger();
+        betaLogger.initByName("posteriorDistribution", mcmc.getModelComparisonDistribution(), "binaryFileName", new File(directory, "checkpointed.mcb").getPath(),
+                "compress", compress);
+        List<Logger> loggers = mcmc.loggersInput.get();
+        loggers.add(createLogger("stop.log", 1, new StoppingLoggable()));
+        loggers.add(createLogger("checkpointed.log", 1, betaLogger));
+        mcmc.setStateFile(new File(directory, "chain.state").getPath(), resume);
+        return runCapturingWarnings(mcmc::run);
+    }
+
+    private List<String> readBetaColumn(String fileName) throws IOException {
+        List<String> betaValues = new ArrayList<>();
+        for (String line : readLog(fileName).split("\n")){
+            if ( ! line.startsWith("Sample") && ! line.startsWith("#")){
+                String[] fields = line.split("\t");
+                assertEquals("sample " + betaValues.size() + " logged as " + fields[0], Integer.toString(betaValues.size()), fields[0]);
+                betaValues.add(fields[1]);
+            }
+        }
+        return betaValues;
+    }
+
+    private void checkResumeFromCheckpoint(boolean compress) throws Exception {
+        Randomizer.setSeed(1);
+        runCheckpointedChain(false, compress);
+        List<String> uninterrupted = readBetaColumn("checkpointed.log");
+        assertEquals(6001, uninterrupted.size());
+
+        //Stopped on the way back, after the checkpoint of sample 3999
+        Randomizer.setSeed(1);
+        StoppingLoggable.stopAt = 4500;
+        try {
+            runCheckpointedChain(false, compress);
+            fail("The chain was not stopped");
+        } catch (RuntimeException e) {
+            assertStoppedWithTestFailure(e);
+        }
+        StoppingLoggable.stopAt = -1;
+        Logger.FILE_MODE = Logger.LogFileMode.resume;
+        String warnings = runCheckpointedChain(true, compress);
+
+        assertTrue(warnings, warnings.contains("Resuming from sample 3999 with beta = " + Double.parseDouble(uninterrupted.get(3999))));
+        assertFalse(warnings, warnings.contains("differ from those in the checkpoint"));
+        //Every sample logged once, and beta carrying on along the way back exactly as if the chain had not stopped
+        assertEquals(uninterrupted, readBetaColumn("checkpointed.log"));
+        //The binary log only had the samples up to the checkpoint, and the resumed chain logs the rest of them again
+        List<String> binaryBetaValues = new ArrayList<>();
+        new ModelComparisonLogReader(new File(directory, "checkpointed.mcb")).read((betaValue, UValue, pairUValues) -> binaryBetaValues.add(Double.toString(betaValue)));
+        assertEquals(uninterrupted, binaryBetaValues);
+        byte[] binaryLog = Files.readAllBytes(new File(directory, "checkpointed.mcb").toPath());
+        assertEquals("compressed with gzip", compress, (binaryLog[0] & 0xff) == 0x1f && (binaryLog[1] & 0xff) == 0x8b);
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws Exception {
+        checkResumeFromCheckpoint(false);
+    }
+
+    @Test
+    public void testResumeFromCheckpointWithCompressedBinaryLog() throws Exception {
+        checkResumeFromCheckpoint(true);
+    }
+
+    @Test
+    public void testLadderStopsAtPrecisionTarget() throws Exception {
+        Randomizer.setSeed(1);
+        ModelComparisonLadder ladder = new ModelComparisonLadder(createGaussianPairChain("ladder", 10000000, "precisionTarget", 0.02), 6, 2);
+        run(ladder::run);
+
+        //Each rung stops once the standard error of its mean of U is small enough for the estimate to have the target standard error
+        double[][] weights = ModelComparisonLadder.calculateTrapezoidWeights(ladder.rungBetaValues, 2);
+        double variance = 0.0;
+        long samples = 0;
+        for (int rung = 0; rung < 6; rung++){
+            UValueStatistics statistics = ladder.getRungStatistics(rung);
+            variance = variance + (weights[rung][0] * weights[rung][0] * statistics.getStandardError(0) * statistics.getStandardError(0));
+            samples = samples + statistics.getCount();
+            assertEquals(statistics.getCount() - 1, 10000000 - ladder.rungChains[rung].getSavedSamples());
+        }
+        assertTrue("standard error " + Math.sqrt(variance), Math.sqrt(variance) <= 0.02);
+        assertTrue(samples + " samples", samples < 1000000);
+        assertEquals(GAUSSIAN_PAIR_LOG_BAYES_FACTOR, getLadderEstimate(ladder), 0.05);
+    }
+
+    @Test
+    public void testStepsStopAtPrecisionTarget() throws Exception {
+        Randomizer.setSeed(1);
+        StepwiseBetaSchedule schedule = new StepwiseBetaSchedule();
+        schedule.initByName("nrOfSteps", 6, "equilibrationFraction", 0.0);
+        ModelComparisonMCMC mcmc = createGaussianPairChain("oneway", 5999999, "schedule", schedule, "precisionTarget", 0.02);
+        String[] warnings = runCapturingWarnings(mcmc::run).split("\n");
+
+        assertTrue(mcmc.getSavedSamples() + " samples saved", mcmc.getSavedSamples() > 5000000);
+        int estimate = Arrays.asList(warnings).indexOf("Steps of beta analysed. The log Bayes factor calculated is: ");
+        assertTrue("no estimate", estimate >= 0);
+        assertEquals(GAUSSIAN_PAIR_LOG_BAYES_FACTOR, Double.parseDouble(warnings[estimate + 1]), 0.05);
+        String standardError = warnings[estimate + 2];
+        assertTrue(standardError, standardError.startsWith("Standard error (batch means): "));
+        assertTrue(standardError, Double.parseDouble(standardError.substring(standardError.indexOf(':') + 1)) <= 0.02);
+    }
+
+    @Test
+    public void testWarmStartedRungsCarryOnFromTheRungBelow() throws Exception {
+        //y counts the proposals since the state the chain started from, so a rung which takes over the state the rung below had at
+        //its handover sample 10 (after 11 proposals), and then takes 5 pre-burnin samples, is 16 ahead of it at every sample
+        RealParameter x = createParameter(0.5);
+        x.setID("x");
+        RealParameter y = createParameter(0.0);
+        y.setID("y");
+        CountingOperator operator = new CountingOperator();
+        operator.initByName("parameter", y, "weight", 1.0);
+        operator.setID("operator");
+        ModelComparisonMCMC mcmc = createChain("ladder", 100, new RealParameter[]{x, y}, operator, createPosterior(x, false),
+                "warmStart", true, "warmStartBurnIn", 5, "logger", createLogger("warm.log", 1, y));
+        run(new ModelComparisonLadder(mcmc, 3, 2)::run);
+
+        for (int rung = 0; rung < 3; rung++){
+            int sampleNr = 0;
+            for (String line : readLog(ModelComparisonLadder.rungFileName("warm.log", rung)).split("\n")){
+                if ( ! line.startsWith("Sample") && ! line.startsWith("#")){
+                    String[] fields = line.split("\t");
+                    assertEquals(Integer.toString(sampleNr), fields[0]);
+                    assertEquals("rung " + rung + " at sample " + sampleNr, (rung * 16) + sampleNr + 1.0, Double.parseDouble(fields[1]), 0.0);
+                    sampleNr++;
+                }
+            }
+            assertEquals(101, sampleNr);
+        }
+    }
+}
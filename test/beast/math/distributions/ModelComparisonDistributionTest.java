@@ -0,0 +1,247 @@
+package beast.math.distributions;
+
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.core.util.CompoundDistribution;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created by Andre Lichtsteiner (https://andre-lichtsteiner.github.io/)
+ * Checks that calculating the posterior at each step allocates nothing, whether the models are calculated one after the other or in parallel,
+ * and which parts of the models are shared between them.
+ */
+public class ModelComparisonDistributionTest extends TestCase {
+
+    private static final int NR_OF_STEPS = 100000;
+
+    /**
+     * Counts how often it is calculated
+     */
+    public static class CountingPrior extends Prior {
+
+        int calculations;
+
+        @Override
+        public double calculateLogP(){
+            calculations++;
+            return super.calculateLogP();
+        }
+    }
+
+    private RealParameter x;
+    private final Double[] xValues = new Double[100]; // boxed beforehand, as setValue takes a Double
+
+    @Override
+    protected void setUp(){
+        for (int value = 0; value < xValues.length; value++){
+            xValues[value] = value * 0.01;
+        }
+    }
+
+    private static RealParameter createParameter(double value){
+        RealParameter parameter = new RealParameter();
+        parameter.initByName("value", Double.toString(value));
+        return parameter;
+    }
+
+    private ModelComparisonDistribution createDistribution(int nrOfModels, boolean parallelModels){
+        x = createParameter(0.5);
+        State state = new State();
+        state.initByName("stateNode", x);
+        state.initialise();
+        List<Object> models = new ArrayList<>();
+        for (int model = 0; model < nrOfModels; model++){
+            Normal normal = new Normal();
+            normal.initByName("mean", createParameter(0.0), "sigma", createParameter(1.0 + model));
+            Prior prior = new Prior();
+            prior.initByName("x", x, "distr", normal);
+            CompoundDistribution compound = new CompoundDistribution();
+            compound.initByName("distribution", prior);
+            models.add(compound);
+        }
+        ModelComparisonDistribution distribution = new ModelComparisonDistribution();
+        distribution.initByName("distribution", models, "betaParameter", createParameter(0.0), "parallelModels", parallelModels);
+        return distribution;
+    }
+
+    /**
+     * Steps the value of x and beta, calculating the inner logPs, the posterior and U, as ModelComparisonMCMC does at each sample
+     */
+    private void step(ModelComparisonDistribution distribution, double[] innerLogPValues, int step){
+        x.setValue(0, xValues[step % xValues.length]);
+        distribution.setBetaValue((step % 1000) * 0.001);
+        distribution.calculateInnerLogPValues(innerLogPValues, false);
+        distribution.calculateLogPFromInnerLogPValues(innerLogPValues);
+        distribution.cacheInnerLogPValues(innerLogPValues);
+        distribution.calculateU();
+    }
+
+    /**
+     * The bytes allocated by all threads per step, after enough steps for the code to be compiled
+     */
+    private double getBytesPerStep(ModelComparisonDistribution distribution){
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        double[] innerLogPValues = new double[distribution.getNrOfModels()];
+        for (int step = 0; step < NR_OF_STEPS; step++){
+            step(distribution, innerLogPValues, step);
+        }
+        long[] threadIds = threadBean.getAllThreadIds();
+        long[] allocatedBefore = threadBean.getThreadAllocatedBytes(threadIds);
+        for (int step = 0; step < NR_OF_STEPS; step++){
+            step(distribution, innerLogPValues, step);
+        }
+        long[] allocatedAfter = threadBean.getThreadAllocatedBytes(threadIds);
+        long allocated = 0;
+        for (int thread = 0; thread < threadIds.length; thread++){
+            if (allocatedBefore[thread] >= 0 && allocatedAfter[thread] >= 0){
+                allocated = allocated + (allocatedAfter[thread] - allocatedBefore[thread]);
+            }
+        }
+        return (double) allocated / NR_OF_STEPS;
+    }
+
+    @Test
+    public void testNoAllocationPerStep(){
+        double bytesPerStep = getBytesPerStep(createDistribution(3, false));
+        assertTrue(bytesPerStep + " bytes allocated per step", bytesPerStep < 1.0);
+    }
+
+    @Test
+    public void testNoAllocationPerStepWithParallelModels(){
+        ModelComparisonDistribution distribution = createDistribution(3, true);
+        double bytesPerStep = getBytesPerStep(distribution);
+        distribution.shutdown();
+        assertTrue(bytesPerStep + " bytes allocated per step", bytesPerStep < 1.0);
+    }
+
+    private static Set<Thread> getModelThreads(){
+        Set<Thread> modelThreads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()){
+            if (thread.getName().startsWith("ModelComparisonDistribution-model")){
+                modelThreads.add(thread);
+            }
+        }
+        return modelThreads;
+    }
+
+    @Test
+    public void testShutdownStopsModelThreads(){
+        Set<Thread> earlierThreads = getModelThreads();
+        ModelComparisonDistribution distribution = createDistribution(3, true);
+        Set<Thread> modelThreads = getModelThreads();
+        modelThreads.removeAll(earlierThreads);
+        assertEquals(2, modelThreads.size());
+
+        double[] parallelLogP = new double[3];
+        step(distribution, parallelLogP, 7);
+        distribution.shutdown();
+        for (Thread modelThread : modelThreads){
+            assertFalse(modelThread.getName() + " is still running", modelThread.isAlive());
+        }
+
+        //The models are then calculated one after the other, to the same values
+        double[] serialLogP = new double[3];
+        step(distribution, serialLogP, 7);
+        for (int model = 0; model < 3; model++){
+            assertEquals(parallelLogP[model], serialLogP[model], 0.0);
+        }
+    }
+
+    private CountingPrior createCountingPrior(double sigma){
+        Normal normal = new Normal();
+        normal.initByName("mean", createParameter(0.0), "sigma", createParameter(sigma));
+        CountingPrior prior = new CountingPrior();
+        prior.initByName("x", x, "distr", normal);
+        return prior;
+    }
+
+    /**
+     * Two models, each made of its own prior on x and the given part, calculated once in full as the chain does at its start
+     */
+    private double[] calculateModelsWithParts(CountingPrior firstPart, CountingPrior secondPart, boolean shareIdenticalCopies){
+        State state = new State();
+        state.initByName("stateNode", x);
+        List<Object> models = new ArrayList<>();
+        CountingPrior[] parts = {firstPart, secondPart};
+        for (int model = 0; model < 2; model++){
+            Normal normal = new Normal();
+            normal.initByName("mean", createParameter(1.0), "sigma", createParameter(1.0 + model));
+            Prior prior = new Prior();
+            prior.initByName("x", x, "distr", normal);
+            CompoundDistribution compound = new CompoundDistribution();
+            compound.initByName("distribution", prior, "distribution", parts[model]);
+            models.add(compound);
+        }
+        ModelComparisonDistribution distribution = new ModelComparisonDistribution();
+        distribution.initByName("distribution", models, "betaParameter", createParameter(0.0), "shareIdenticalCopies", shareIdenticalCopies);
+        distribution.shareIdenticalComponents(state.stateNodeInput.get()); // as ModelComparisonMCMC does
+        state.initialise();
+        state.setPosterior(distribution);
+        firstPart.calculations = 0;
+        secondPart.calculations = 0;
+        state.robustlyCalcPosterior(distribution);
+        return distribution.getInnerPosteriorLogP().clone();
+    }
+
+    /**
+     * The logP of x = 0.5 under a model made of Normal(1, 1 + model) and Normal(0, sigma of its part)
+     */
+    private static double expectedModelLogP(int model, double partSigma){
+        return logNormalDensity(0.5, 1.0, 1.0 + model) + logNormalDensity(0.5, 0.0, partSigma);
+    }
+
+    private static double logNormalDensity(double x, double mean, double sigma){
+        return -0.5 * Math.log(2 * Math.PI) - Math.log(sigma) - ((x - mean) * (x - mean)) / (2 * sigma * sigma);
+    }
+
+    @Test
+    public void testSharedInstanceIsCalculatedOnce(){
+        x = createParameter(0.5);
+        CountingPrior shared = createCountingPrior(1.0);
+        double[] innerLogP = calculateModelsWithParts(shared, shared, false);
+        assertEquals(1, shared.calculations);
+        assertEquals(expectedModelLogP(0, 1.0), innerLogP[0], 1e-12);
+        assertEquals(expectedModelLogP(1, 1.0), innerLogP[1], 1e-12);
+    }
+
+    @Test
+    public void testIdenticalCopiesAreOnlySharedIfAskedFor(){
+        x = createParameter(0.5);
+        CountingPrior first = createCountingPrior(1.0);
+        CountingPrior second = createCountingPrior(1.0);
+        double[] innerLogP = calculateModelsWithParts(first, second, false);
+        assertEquals(1, first.calculations);
+        assertEquals(1, second.calculations);
+        assertEquals(expectedModelLogP(0, 1.0), innerLogP[0], 1e-12);
+        assertEquals(expectedModelLogP(1, 1.0), innerLogP[1], 1e-12);
+
+        first = createCountingPrior(1.0);
+        second = createCountingPrior(1.0);
+        innerLogP = calculateModelsWithParts(first, second, true);
+        assertEquals(1, first.calculations);
+        assertEquals(0, second.calculations);
+        assertEquals(expectedModelLogP(0, 1.0), innerLogP[0], 1e-12);
+        assertEquals(expectedModelLogP(1, 1.0), innerLogP[1], 1e-12);
+        assertEquals(first.getCurrentLogP(), second.getCurrentLogP(), 0.0);
+    }
+
+    @Test
+    public void testNearCopiesAreNotShared(){
+        //The same class of part on the same StateNode, but with a different constant parameter
+        x = createParameter(0.5);
+        CountingPrior first = createCountingPrior(1.0);
+        CountingPrior second = createCountingPrior(3.0);
+        double[] innerLogP = calculateModelsWithParts(first, second, true);
+        assertEquals(1, first.calculations);
+        assertEquals(1, second.calculations);
+        assertEquals(expectedModelLogP(0, 1.0), innerLogP[0], 1e-12);
+        assertEquals(expectedModelLogP(1, 3.0), innerLogP[1], 1e-12);
+    }
+}